@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Transfert d'un dossier ou d'un ensemble de fichiers désignés par un motif (glob).
+// Les petits fichiers sont regroupés en lots (SEND_BATCH / RETRIEVE_BATCH): un aller-retour et une
+// écriture du journal par lot plutôt que par fichier. Les gros fichiers passent par le transfert normal.
+// Un nombre borné de connexions travaillent en parallèle, chacune prenant le lot suivant.
+public class BatchTransfer {
+    private static Properties config;
+    private static final int WORKERS;
+    // Au-delà de cette taille un fichier est transféré seul
+    private static final long SMALL_FILE_SIZE;
+    // Limites d'un lot: octets cumulés et nombre de fichiers (le serveur en accepte 1000 au plus)
+    private static final long BATCH_MAX_BYTES;
+    private static final int BATCH_MAX_FILES = 1000;
+    // Un lot interrompu est renvoyé en entier
+    private static final int MAX_ATTEMPTS = 3;
+
+    static {
+        config = new Properties();
+        try {
+            config.load(new FileInputStream("config.properties"));
+        } catch (IOException e) {
+            System.err.println("Erreur lors du chargement de la configuration: " + e.getMessage());
+        }
+
+        WORKERS = Integer.parseInt(config.getProperty("client.batch.workers", "4"));
+        SMALL_FILE_SIZE = Long.parseLong(config.getProperty("client.batch.small.file.size", String.valueOf(1024 * 1024)));
+        BATCH_MAX_BYTES = Long.parseLong(config.getProperty("client.batch.max.bytes", String.valueOf(8 * 1024 * 1024)));
+    }
+
+    private final String host;
+    private final int port;
+    private final int workers;
+
+    public BatchTransfer(String host, int port) {
+        this(host, port, WORKERS);
+    }
+
+    public BatchTransfer(String host, int port, int workers) {
+        this.host = host;
+        this.port = port;
+        this.workers = Math.max(1, workers);
+    }
+
+    // Fichiers désignés par un dossier (parcouru récursivement) ou un motif comme build/**/*.class.
+    // Les noms sur le serveur sont relatifs au dossier parent de la partie fixe du motif, séparés par /.
+    public static List<LocalFile> expand(String pattern) throws IOException {
+        Path path = Paths.get(pattern);
+        Path base = path;
+        String glob = null;
+        if (!Files.isDirectory(path)) {
+            // La partie fixe s'arrête au premier élément qui contient un caractère de motif
+            base = path.getRoot();
+            int index = 0;
+            for (; index < path.getNameCount(); index++) {
+                String element = path.getName(index).toString();
+                if (element.matches(".*[*?\\[{].*")) {
+                    break;
+                }
+                base = base == null ? path.getName(index) : base.resolve(path.getName(index));
+            }
+            if (index == path.getNameCount()) {
+                throw new FileNotFoundException("Ni dossier ni motif: " + pattern);
+            }
+            glob = path.subpath(index, path.getNameCount()).toString();
+            if (base == null) {
+                base = Paths.get("").toAbsolutePath();
+            }
+        }
+        PathMatcher matcher = glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        Path root = base.toAbsolutePath().normalize();
+        Path parent = root.getParent() != null ? root.getParent() : root;
+
+        List<LocalFile> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(Files::isRegularFile)
+                    .filter(file -> matcher == null || matcher.matches(root.relativize(file)))
+                    .sorted()
+                    .forEach(file -> files.add(new LocalFile(file.toFile(),
+                            parent.relativize(file).toString().replace(File.separatorChar, '/'))));
+        }
+        return files;
+    }
+
+    public Result sendFiles(List<LocalFile> files) {
+        Queue<List<LocalFile>> tasks = new ConcurrentLinkedQueue<>();
+        List<LocalFile> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (LocalFile file : files) {
+            long size = file.file.length();
+            if (size > SMALL_FILE_SIZE) {
+                tasks.add(List.of(file));
+                continue;
+            }
+            if (!batch.isEmpty() && (batchBytes + size > BATCH_MAX_BYTES || batch.size() >= BATCH_MAX_FILES)) {
+                tasks.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(file);
+            batchBytes += size;
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(batch);
+        }
+
+        return run(tasks, files.size(), (client, task, result) -> {
+            if (task.size() == 1 && task.get(0).file.length() > SMALL_FILE_SIZE) {
+                LocalFile file = task.get(0);
+                if (!client.sendFile(file.file.getPath(), file.name)) {
+                    throw new IOException("Le serveur n'a pas enregistré " + file.name);
+                }
+                result.done(1, file.file.length());
+                return;
+            }
+            List<File> localFiles = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            long bytes = 0;
+            for (LocalFile file : task) {
+                localFiles.add(file.file);
+                names.add(file.name);
+                bytes += file.file.length();
+            }
+            if (!client.sendBatch(localFiles, names)) {
+                throw new IOException("Le serveur n'a pas enregistré le lot de " + task.size() + " fichiers");
+            }
+            result.done(task.size(), bytes);
+        });
+    }
+
+    public Result retrieveFiles(List<FileTransferHistory.RemoteFile> files) {
+        Queue<List<FileTransferHistory.RemoteFile>> tasks = new ConcurrentLinkedQueue<>();
+        List<FileTransferHistory.RemoteFile> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (FileTransferHistory.RemoteFile file : files) {
+            if (file.getFileSize() > SMALL_FILE_SIZE) {
+                tasks.add(List.of(file));
+                continue;
+            }
+            if (!batch.isEmpty() && (batchBytes + file.getFileSize() > BATCH_MAX_BYTES || batch.size() >= BATCH_MAX_FILES)) {
+                tasks.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(file);
+            batchBytes += file.getFileSize();
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(batch);
+        }
+
+        return run(tasks, files.size(), (client, task, result) -> {
+            if (task.size() == 1 && task.get(0).getFileSize() > SMALL_FILE_SIZE) {
+                // Les connexions du lot sont déjà en parallèle: un seul flux par gros fichier
+                if (!client.retrieveFile(task.get(0).getFileName(), 1)) {
+                    throw new IOException("Téléchargement de " + task.get(0).getFileName() + " impossible");
+                }
+                result.done(1, task.get(0).getFileSize());
+                return;
+            }
+            List<String> names = new ArrayList<>();
+            long bytes = 0;
+            for (FileTransferHistory.RemoteFile file : task) {
+                names.add(file.getFileName());
+                bytes += file.getFileSize();
+            }
+            List<String> missing = client.retrieveBatch(names);
+            for (String name : missing) {
+                System.err.println("\nFichier absent du serveur: " + name);
+            }
+            result.failed(missing.size());
+            result.done(task.size() - missing.size(), bytes);
+        });
+    }
+
+    private <T> Result run(Queue<List<T>> tasks, int fileCount, Transfer<T> transfer) {
+        Result result = new Result(fileCount);
+        ProgressLine progressLine = new ProgressLine();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            pool.execute(() -> {
+                // Chaque connexion traite les lots l'un après l'autre
+                try (Client client = new Client(host, port)) {
+                    List<T> task;
+                    while ((task = tasks.poll()) != null) {
+                        for (int attempt = 1; ; attempt++) {
+                            try {
+                                transfer.apply(client, task, result);
+                                break;
+                            } catch (IOException e) {
+                                if (attempt >= MAX_ATTEMPTS) {
+                                    System.err.println("\nÉchec du transfert de " + task.size() + " fichiers: " + e.getMessage());
+                                    result.failed(task.size());
+                                    break;
+                                }
+                            }
+                        }
+                        if (progressLine.due(result.getProcessed() >= fileCount)) {
+                            System.out.print("\rFichiers traités: " + result.getProcessed() + "/" + fileCount);
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Attente de la fin des transferts
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+        result.finish();
+        System.out.println();
+        return result;
+    }
+
+    private interface Transfer<T> {
+        void apply(Client client, List<T> task, Result result) throws IOException;
+    }
+
+    public static class LocalFile {
+        private final File file;
+        private final String name;
+
+        public LocalFile(File file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+
+        public File getFile() { return file; }
+        public String getName() { return name; }
+    }
+
+    // Bilan d'un transfert: fichiers et octets transférés, échecs et durée totale
+    public static class Result {
+        private final int fileCount;
+        private final long start = System.nanoTime();
+        private final AtomicInteger transferred = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private long elapsedNanos;
+
+        Result(int fileCount) {
+            this.fileCount = fileCount;
+        }
+
+        void done(int files, long size) {
+            transferred.addAndGet(files);
+            bytes.addAndGet(size);
+        }
+
+        void failed(int files) {
+            failed.addAndGet(files);
+        }
+
+        void finish() {
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        int getProcessed() { return transferred.get() + failed.get(); }
+
+        public int getFileCount() { return fileCount; }
+        public int getTransferred() { return transferred.get(); }
+        public int getFailed() { return failed.get(); }
+        public long getBytes() { return bytes.get(); }
+        public double getSeconds() { return elapsedNanos / 1e9; }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(getSeconds(), 1e-9);
+            return String.format("%d fichiers transférés sur %d (%d échecs), %.2f Mo en %.2f s: %.1f Mo/s, %.0f fichiers/s",
+                    getTransferred(), fileCount, getFailed(), getBytes() / 1048576.0, getSeconds(),
+                    getBytes() / 1048576.0 / seconds, getTransferred() / seconds);
+        }
+    }
+}
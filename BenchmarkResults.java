@@ -0,0 +1,87 @@
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// Résultats d'une série de mesures (CopyBenchmark, LoadGenerator). Enregistrés avec --resultats=fichier,
+// ils servent de référence à une série suivante passée avec --reference=fichier: chaque mesure est
+// alors comparée à sa valeur de référence. Un écart défavorable est signalé s'il dépasse 5 % et deux
+// fois l'écart type combiné des deux séries, pour ne pas confondre régression et bruit de mesure.
+final class BenchmarkResults {
+    private static final double TOLERANCE = 0.05;
+
+    private final Map<String, Double> values = new LinkedHashMap<>();
+    private final Map<String, Double> deviations = new LinkedHashMap<>();
+    // true si une valeur plus grande est meilleure (débit), false sinon (latence)
+    private final Map<String, Boolean> higherIsBetter = new LinkedHashMap<>();
+
+    void put(String name, double value, double deviation, boolean higherBetter) {
+        values.put(name, value);
+        deviations.put(name, deviation);
+        higherIsBetter.put(name, higherBetter);
+    }
+
+    // Enregistre (--resultats=) et compare (--reference=) selon les options de la ligne de commande
+    void finish(String[] args) throws IOException {
+        String reference = option(args, "--reference=");
+        if (reference != null) {
+            compare(new File(reference));
+        }
+        String output = option(args, "--resultats=");
+        if (output != null) {
+            save(new File(output));
+            System.out.println("Résultats enregistrés dans " + output);
+        }
+    }
+
+    void save(File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+            properties.setProperty(entry.getKey() + ".ecart", String.valueOf(deviations.get(entry.getKey())));
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "Mesures de référence");
+        }
+    }
+
+    void compare(File file) throws IOException {
+        Properties reference = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            reference.load(in);
+        }
+        System.out.println();
+        System.out.println("Comparaison avec " + file.getName());
+        System.out.printf("%-36s %12s %12s %9s%n", "Mesure", "Référence", "Actuel", "Écart");
+        int regressions = 0;
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            String previous = reference.getProperty(entry.getKey());
+            if (previous == null) {
+                continue;
+            }
+            double before = Double.parseDouble(previous);
+            double now = entry.getValue();
+            double change = before == 0 ? 0 : (now - before) / before;
+            double noise = 2 * Math.hypot(deviations.get(entry.getKey()),
+                    Double.parseDouble(reference.getProperty(entry.getKey() + ".ecart", "0")));
+            boolean significant = Math.abs(now - before) > Math.max(TOLERANCE * Math.abs(before), noise);
+            boolean worse = significant && (higherIsBetter.get(entry.getKey()) ? now < before : now > before);
+            if (worse) {
+                regressions++;
+            }
+            System.out.printf("%-36s %12.1f %12.1f %+8.1f%%%s%n", entry.getKey(), before, now, change * 100,
+                    worse ? "  <- régression" : "");
+        }
+        System.out.println(regressions == 0 ? "Aucune régression significative"
+                : regressions + " mesure(s) significativement dégradée(s)");
+    }
+
+    static String option(String[] args, String prefix) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+}
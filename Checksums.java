@@ -0,0 +1,61 @@
+// Sommes de contrôle CRC32C (accélérées par le processeur) des blocs et des fichiers.
+// Le CRC d'un fichier se déduit de ceux de ses blocs sans relire leur contenu (combine):
+// chaque bloc n'est parcouru qu'une fois, pendant sa copie.
+public class Checksums {
+    // Somme inconnue: blocs et manifestes enregistrés avant l'ajout des sommes de contrôle
+    public static final long UNKNOWN = -1;
+    // Polynôme de CRC32C (Castagnoli), forme réfléchie
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    // CRC de la concaténation de deux suites d'octets, connaissant leurs CRC et la longueur de la seconde
+    // (méthode de zlib: multiplication par l'opérateur « ajouter length octets nuls »)
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        // Opérateur pour un bit nul
+        odd[0] = POLYNOMIAL;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+        int crc = (int) crc1;
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Cache des blocs récemment servis, hors du tas Java: les fichiers très demandés sont renvoyés
+// sans relire les sous-serveurs. Chaque bloc occupe un emplacement de la plus petite classe de taille qui le
+// contient (de 4 Ko jusqu'à la taille maximale d'un bloc): la capacité configurée compte
+// les octets réservés, et les petits blocs n'occupent pas la place d'un gros. Les emplacements libérés sont
+// réutilisés pour leur classe; quand la place manque, les emplacements libres d'autres classes sont rendus,
+// puis les blocs les moins récemment utilisés évincés.
+//
+// Les blocs sont nommés par l'empreinte de leur contenu: un contenu modifié porte toujours un autre nom,
+// l'invalidation ne fait que libérer la place d'un bloc supprimé.
+public class ChunkCache {
+    private static final int MIN_SLOT_SIZE = 4 * 1024;
+
+    private final long capacityBytes;
+    // Taille des emplacements de chaque classe, croissante, la dernière étant la taille maximale d'un bloc
+    private final int[] slotSizes;
+    private final List<Deque<ByteBuffer>> freeSlots;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Octets des emplacements alloués, libres ou occupés
+    private long allocatedBytes;
+    private long usedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ChunkCache(long capacityBytes, int maxEntrySize) {
+        this.capacityBytes = Math.max(0, capacityBytes);
+        // 4 Ko, 6 Ko, 8 Ko, 12 Ko, 16 Ko...: un bloc perd au plus un tiers de son emplacement
+        List<Integer> sizes = new ArrayList<>();
+        long size = MIN_SLOT_SIZE;
+        while (size < maxEntrySize) {
+            sizes.add((int) size);
+            size = Long.bitCount(size) == 1 ? size * 3 / 2 : size * 4 / 3;
+        }
+        sizes.add(Math.max(maxEntrySize, 1));
+        this.slotSizes = new int[sizes.size()];
+        this.freeSlots = new ArrayList<>(sizes.size());
+        for (int i = 0; i < slotSizes.length; i++) {
+            slotSizes[i] = sizes.get(i);
+            freeSlots.add(new ArrayDeque<>());
+        }
+    }
+
+    public boolean isEnabled() {
+        return capacityBytes >= slotSizes[0];
+    }
+
+    // Bloc en cache, épinglé jusqu'à release(); null si absent
+    public synchronized Entry acquire(String partName) {
+        Entry entry = entries.get(partName);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.pins++;
+        return entry;
+    }
+
+    // Emplacement à remplir avant publish(); null si le bloc est trop grand ou si tout est épinglé
+    public synchronized Entry reserve(String partName, long length) {
+        int sizeClass = sizeClassFor(length);
+        if (sizeClass < 0 || slotSizes[sizeClass] > capacityBytes) {
+            return null;
+        }
+        ByteBuffer slot;
+        while ((slot = freeSlots.get(sizeClass).pollFirst()) == null) {
+            if (allocatedBytes + slotSizes[sizeClass] <= capacityBytes) {
+                allocatedBytes += slotSizes[sizeClass];
+                slot = ByteBuffer.allocateDirect(slotSizes[sizeClass]);
+                break;
+            }
+            // Place rendue par un emplacement libre d'une autre classe, sinon par une éviction
+            if (!dropFreeSlot() && !evictLeastRecentlyUsed()) {
+                return null;
+            }
+        }
+        slot.clear();
+        Entry entry = new Entry(partName, slot, (int) length);
+        entry.pins = 1;
+        return entry;
+    }
+
+    public synchronized void publish(Entry entry) {
+        if (entry.slot.position() != entry.length) {
+            discard(entry);
+            return;
+        }
+        entry.slot.flip();
+        Entry replaced = entries.put(entry.partName, entry);
+        if (replaced != null) {
+            detach(replaced);
+        }
+        entry.cached = true;
+        usedBytes += entry.length;
+        release(entry);
+    }
+
+    // Remplissage abandonné: l'emplacement retourne dans la réserve
+    public synchronized void discard(Entry entry) {
+        entry.pins = 0;
+        freeSlot(entry.slot);
+    }
+
+    public synchronized void release(Entry entry) {
+        entry.pins--;
+        if (entry.pins == 0 && !entry.cached) {
+            freeSlot(entry.slot);
+        }
+    }
+
+    public synchronized void invalidate(String partName) {
+        Entry entry = entries.remove(partName);
+        if (entry != null) {
+            detach(entry);
+        }
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized int getEntryCount() { return entries.size(); }
+    public synchronized long getUsedBytes() { return usedBytes; }
+    public long getCapacityBytes() { return capacityBytes; }
+
+    // Plus petite classe contenant length, -1 au-delà de la taille maximale d'un bloc
+    private int sizeClassFor(long length) {
+        for (int i = 0; i < slotSizes.length; i++) {
+            if (length <= slotSizes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void freeSlot(ByteBuffer slot) {
+        freeSlots.get(sizeClassFor(slot.capacity())).addLast(slot);
+    }
+
+    // Rend la mémoire d'un emplacement libre, de la plus grande classe d'abord
+    private boolean dropFreeSlot() {
+        for (int i = slotSizes.length - 1; i >= 0; i--) {
+            if (freeSlots.get(i).pollFirst() != null) {
+                allocatedBytes -= slotSizes[i];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // L'emplacement du bloc évincé rejoint les emplacements libres de sa classe
+    private boolean evictLeastRecentlyUsed() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.pins == 0) {
+                iterator.remove();
+                usedBytes -= entry.length;
+                entry.cached = false;
+                evictions++;
+                freeSlot(entry.slot);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Retire l'entrée du cache; son emplacement n'est réutilisé qu'une fois les lectures en cours terminées
+    private void detach(Entry entry) {
+        usedBytes -= entry.length;
+        entry.cached = false;
+        if (entry.pins == 0) {
+            freeSlot(entry.slot);
+        }
+    }
+
+    public static class Entry {
+        private final String partName;
+        private final ByteBuffer slot;
+        private final int length;
+        private int pins;
+        private boolean cached;
+
+        private Entry(String partName, ByteBuffer slot, int length) {
+            this.partName = partName;
+            this.slot = slot;
+            this.length = length;
+        }
+
+        public int getLength() { return length; }
+
+        // Ajoute des données pendant le remplissage
+        public void append(byte[] data, int offset, int count) {
+            slot.put(data, offset, count);
+        }
+
+        // Vue en lecture seule du contenu publié, indépendante pour chaque lecteur
+        public ByteBuffer contents() {
+            return slot.asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compression d'un bloc (Deflate, niveau le plus rapide), utilisée sur le réseau et sur les sous-serveurs.
+// Les premiers octets du bloc servent d'échantillon: si leur compression ne gagne pas assez, le bloc
+// (images, archives, vidéos...) est gardé tel quel sans compresser la suite.
+public class ChunkCodec {
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+    // Taille de l'échantillon et gain minimal attendu sur celui-ci
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final int PIECE_SIZE = 64 * 1024;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final List<byte[]> pieces = new ArrayList<>();
+    private byte[] piece;
+    private int pieceLength;
+    private long consumed;
+    private long produced;
+    private boolean rejected;
+
+    // Commence la compression d'un nouveau bloc
+    public void begin() {
+        deflater.reset();
+        pieces.clear();
+        piece = new byte[PIECE_SIZE];
+        pieceLength = 0;
+        consumed = 0;
+        produced = 0;
+        rejected = false;
+    }
+
+    // false dès que l'échantillon montre que le bloc ne se compresse pas: inutile de continuer
+    public boolean update(byte[] data, int offset, int length) {
+        if (rejected) {
+            return false;
+        }
+        boolean sampling = consumed < SAMPLE_SIZE;
+        deflater.setInput(data, offset, length);
+        while (!deflater.needsInput()) {
+            drain(Deflater.NO_FLUSH);
+        }
+        consumed += length;
+        if (sampling && consumed >= SAMPLE_SIZE) {
+            // Les octets encore retenus par le compresseur ne comptent pas: on force leur sortie
+            drain(Deflater.SYNC_FLUSH);
+            rejected = produced > consumed * MAX_SAMPLE_RATIO;
+        }
+        return !rejected;
+    }
+
+    // Forme compressée du bloc, ou null si elle n'est pas plus petite que l'original
+    public List<byte[]> finish() {
+        if (rejected) {
+            return null;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain(Deflater.NO_FLUSH);
+        }
+        if (produced >= consumed) {
+            return null;
+        }
+        if (pieceLength > 0) {
+            pieces.add(Arrays.copyOf(piece, pieceLength));
+        }
+        List<byte[]> result = new ArrayList<>(pieces);
+        pieces.clear();
+        return result;
+    }
+
+    public long getCompressedLength() {
+        return produced;
+    }
+
+    public void end() {
+        deflater.end();
+    }
+
+    private void drain(int flush) {
+        while (true) {
+            int bytes = deflater.deflate(piece, pieceLength, piece.length - pieceLength, flush);
+            pieceLength += bytes;
+            produced += bytes;
+            if (pieceLength < piece.length) {
+                // Place restante: le compresseur n'a plus rien à produire pour l'instant
+                return;
+            }
+            pieces.add(piece);
+            piece = new byte[PIECE_SIZE];
+            pieceLength = 0;
+        }
+    }
+
+    // Décompresse un bloc dont la taille d'origine est connue; une autre taille est une erreur
+    public static byte[] inflate(byte[] compressed, int offset, int length, int originalLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, length);
+            byte[] original = new byte[originalLength];
+            int position = 0;
+            while (position < originalLength) {
+                int bytes = inflater.inflate(original, position, originalLength - position);
+                if (bytes == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Bloc compressé incomplet: " + position + " octets sur " + originalLength);
+                }
+                position += bytes;
+            }
+            // Le flux doit se terminer exactement à la taille annoncée
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                throw new IOException("Bloc compressé mal terminé ou plus grand que les " + originalLength + " octets annoncés");
+            }
+            return original;
+        } catch (DataFormatException e) {
+            throw new IOException("Bloc compressé invalide", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Blocs stockés sur les sous-serveurs, indexés par nom (empreinte du contenu), avec le nombre de
+// versions de fichiers qui les référencent. Les compteurs ne sont jamais écrits sur disque: ils sont
+// recalculés au démarrage à partir des manifestes du journal.
+public class ChunkIndex {
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    // Au démarrage: références d'un manifeste. confirmed est faux pour un envoi interrompu, dont les
+    // blocs ne sont peut-être pas sur le sous-serveur: un nouvel envoi du même contenu le renverra.
+    public synchronized void load(FileManifest manifest, boolean confirmed) {
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            Entry entry = entries.get(chunk.getPartName());
+            if (entry == null) {
+                entry = new Entry(chunk.getLocation(), chunk.getLength());
+                entry.stored = CompletableFuture.completedFuture(confirmed);
+                entry.codec = chunk.getCodec();
+                entry.storedLength = chunk.getStoredLength();
+                entry.checksum = chunk.getChecksum();
+                entries.put(chunk.getPartName(), entry);
+            } else if (confirmed) {
+                entry.stored = CompletableFuture.completedFuture(true);
+                entry.codec = chunk.getCodec();
+                entry.storedLength = chunk.getStoredLength();
+            }
+            if (entry.checksum == Checksums.UNKNOWN) {
+                entry.checksum = chunk.getChecksum();
+            }
+            entry.refs++;
+        }
+    }
+
+    // Ajoute une référence au bloc. S'il n'est ni stocké ni en cours d'envoi, l'appelant doit l'envoyer
+    // vers l'emplacement retourné puis appeler Reference.complete().
+    public synchronized Reference reference(String partName, long length, String proposedLocation) throws IOException {
+        Entry entry = entries.get(partName);
+        // Un bloc en cours de suppression ne peut pas être réutilisé: on attend qu'il ait disparu
+        while (entry != null && entry.deleting) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente de la suppression de " + partName + " interrompue");
+            }
+            entry = entries.get(partName);
+        }
+        if (entry == null) {
+            entry = new Entry(proposedLocation, length);
+            entries.put(partName, entry);
+        } else if (entry.length != length) {
+            throw new IOException("Taille incohérente pour le bloc " + partName + ": " + length + " au lieu de " + entry.length);
+        }
+        entry.refs++;
+        boolean upload = entry.stored == null || (entry.stored.isDone() && !entry.stored.getNow(false));
+        if (upload) {
+            entry.stored = new CompletableFuture<>();
+        }
+        return new Reference(entry.location, upload, entry.stored);
+    }
+
+    // Forme sous laquelle le bloc va être stocké et CRC de son contenu, fixés par le transfert qui
+    // l'envoie avant de l'envoyer
+    public synchronized void setStorage(String partName, byte codec, long storedLength, long checksum) {
+        Entry entry = entries.get(partName);
+        if (entry != null) {
+            entry.codec = codec;
+            entry.storedLength = storedLength;
+            entry.checksum = checksum;
+        }
+    }
+
+    // Le bloc du manifeste avec la forme sous laquelle il est réellement stocké et son CRC. À appeler une
+    // fois le bloc confirmé: un bloc partagé a pu être compressé par un autre transfert, et un bloc réutilisé
+    // sans être relu (envoi différentiel) n'a pas d'autre source pour sa somme.
+    public synchronized FileManifest.Chunk stored(FileManifest.Chunk chunk) {
+        Entry entry = entries.get(chunk.getPartName());
+        if (entry == null) {
+            return chunk;
+        }
+        if (!entry.location.equals(chunk.getLocation())) {
+            // Bloc déplacé par la réparation pendant l'envoi
+            chunk = chunk.withLocation(entry.location);
+        }
+        if (entry.checksum == Checksums.UNKNOWN) {
+            // Bloc d'un ancien manifeste dont le contenu vient d'être relu et vérifié par son empreinte
+            entry.checksum = chunk.getChecksum();
+        } else {
+            chunk = chunk.withChecksum(entry.checksum);
+        }
+        return entry.storedLength < 0 ? chunk : chunk.withStorage(entry.codec, entry.storedLength);
+    }
+
+    // Emplacement actuel du bloc: celui d'un manifeste est périmé si le bloc a été déplacé depuis
+    public synchronized String locate(FileManifest.Chunk chunk) {
+        Entry entry = entries.get(chunk.getPartName());
+        return entry == null ? chunk.getLocation() : entry.location;
+    }
+
+    // Emplacement actuel du bloc, null s'il n'est plus connu
+    public synchronized String locationOf(String partName) {
+        Entry entry = entries.get(partName);
+        return entry == null ? null : entry.location;
+    }
+
+    // Blocs stockés, confirmés et référencés: ceux que la réparation doit garder lisibles
+    public synchronized List<Placement> placements() {
+        List<Placement> placements = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.refs > 0 && !entry.deleting && entry.storedLength >= 0 && entry.stored != null
+                    && entry.stored.isDone() && entry.stored.getNow(false)) {
+                placements.add(new Placement(e.getKey(), entry.location, entry.length, entry.codec,
+                        entry.storedLength, entry.checksum));
+            }
+        }
+        return placements;
+    }
+
+    // Bloc reconstruit ou déplacé vers location (qui peut être l'emplacement actuel, après une
+    // reconstruction sur place). false s'il a été supprimé ou déplacé entre-temps: la copie est inutile.
+    public synchronized boolean relocate(String partName, String expected, String location) {
+        Entry entry = entries.get(partName);
+        if (entry == null || entry.deleting || !entry.location.equals(expected)) {
+            return false;
+        }
+        entry.location = location;
+        return true;
+    }
+
+    // Retire une référence; les blocs qui ne sont plus référencés sont supprimés par deleteUnreferenced()
+    public synchronized void unreference(String partName) {
+        Entry entry = entries.get(partName);
+        if (entry != null && entry.refs > 0) {
+            entry.refs--;
+        }
+    }
+
+    // Blocs du manifeste qui ne sont plus référencés, groupés par emplacement et marqués en cours de suppression
+    public synchronized Map<String, List<String>> claimUnreferenced(FileManifest manifest) {
+        Map<String, List<String>> partsByLocation = new LinkedHashMap<>();
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            Entry entry = entries.get(chunk.getPartName());
+            if (entry != null && entry.refs == 0 && !entry.deleting) {
+                entry.deleting = true;
+                partsByLocation.computeIfAbsent(entry.location, k -> new ArrayList<>()).add(chunk.getPartName());
+            }
+        }
+        return partsByLocation;
+    }
+
+    // Fin de suppression. En cas d'échec le bloc reste connu, sans référence, et pourra être réutilisé
+    public synchronized void deleted(String partName, boolean success) {
+        Entry entry = entries.get(partName);
+        if (entry != null && entry.deleting) {
+            if (success) {
+                entries.remove(partName);
+            } else {
+                entry.deleting = false;
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        String location;
+        final long length;
+        int refs;
+        boolean deleting;
+        CompletableFuture<Boolean> stored;
+        byte codec = ChunkCodec.NONE;
+        long storedLength = -1;
+        long checksum = Checksums.UNKNOWN;
+
+        Entry(String location, long length) {
+            this.location = location;
+            this.length = length;
+        }
+    }
+
+    public static final class Placement {
+        private final String partName;
+        private final String location;
+        private final long length;
+        private final byte codec;
+        private final long storedLength;
+        private final long checksum;
+
+        private Placement(String partName, String location, long length, byte codec, long storedLength, long checksum) {
+            this.partName = partName;
+            this.location = location;
+            this.length = length;
+            this.codec = codec;
+            this.storedLength = storedLength;
+            this.checksum = checksum;
+        }
+
+        public String getPartName() { return partName; }
+        public String getLocation() { return location; }
+        public long getLength() { return length; }
+        public byte getCodec() { return codec; }
+        public long getStoredLength() { return storedLength; }
+        public long getChecksum() { return checksum; }
+    }
+
+    public static final class Reference {
+        private final String location;
+        private final boolean upload;
+        private final CompletableFuture<Boolean> stored;
+
+        private Reference(String location, boolean upload, CompletableFuture<Boolean> stored) {
+            this.location = location;
+            this.upload = upload;
+            this.stored = stored;
+        }
+
+        public String getLocation() { return location; }
+
+        // true si l'appelant doit envoyer le contenu du bloc
+        public boolean mustUpload() { return upload; }
+
+        // Appelé par le transfert qui envoie le bloc, une fois le sous-serveur fixé sur son sort
+        public void complete(boolean success) {
+            stored.complete(success);
+        }
+
+        // Attend que le transfert qui envoie ce bloc l'ait confirmé
+        public void awaitStored(String partName) throws IOException {
+            try {
+                if (!stored.get()) {
+                    throw new IOException("Le bloc partagé " + partName + " n'a pas pu être stocké");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente du bloc " + partName + " interrompue");
+            } catch (ExecutionException e) {
+                throw new IOException("Le bloc partagé " + partName + " n'a pas pu être stocké", e.getCause());
+            }
+        }
+    }
+}
@@ -1,13 +1,26 @@
 import java.io.*;
-import java.net.Socket;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.CRC32C;
 
-public class Client {
+public class Client implements Closeable {
     private static Properties config;
     private static final String SERVER_HOST;
     private static final int SERVER_PORT;
     private static final String DOWNLOAD_PATH;
+    // Un transfert interrompu est repris automatiquement, avec un délai croissant entre les essais
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 1000;
+    // Téléchargement parallèle: nombre maximal de connexions et taille des plages demandées
+    private static final int DOWNLOAD_STREAMS;
+    private static final long DOWNLOAD_SEGMENT_SIZE;
+    // Compression des blocs envoyés (deflate ou none)
+    private static final boolean COMPRESSION;
 
     static {
         config = new Properties();
@@ -20,86 +33,579 @@ public class Client {
         SERVER_HOST = config.getProperty("main.server.host", "localhost");
         SERVER_PORT = Integer.parseInt(config.getProperty("main.server.port", "5000"));
         DOWNLOAD_PATH = config.getProperty("download.path", System.getProperty("user.home") + File.separator + "Downloads" + File.separator);
+        DOWNLOAD_STREAMS = Integer.parseInt(config.getProperty("client.download.streams", "4"));
+        DOWNLOAD_SEGMENT_SIZE = Long.parseLong(config.getProperty("client.download.segment.size", String.valueOf(8 * 1024 * 1024)));
+        COMPRESSION = config.getProperty("client.compression", "deflate").equalsIgnoreCase("deflate");
     }
 
+    private final String host;
+    private final int port;
+    // Une seule connexion au serveur pour toutes les commandes
+    private final ClientSession session;
+    // Taille moyenne des blocs du serveur; corrigée si le serveur en annonce une autre
+    private int chunkSize = Integer.parseInt(config.getProperty("storage.chunk.size", String.valueOf(8 * 1024 * 1024)));
+    private ChunkCodec codec;
+
+    public Client() {
+        this(SERVER_HOST, SERVER_PORT);
+    }
+
+    public Client(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.session = new ClientSession(host, port);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ClientSession getSession() {
+        return session;
+    }
+
+    @Override
+    public void close() {
+        session.close();
+        if (codec != null) {
+            codec.end();
+            codec = null;
+        }
+    }
+
+    // Seuls les blocs que le serveur ne possède pas déjà sont transmis. Après une coupure, le nouvel
+    // essai ne renvoie que les blocs que le serveur n'avait pas encore confirmés.
     public boolean sendFile(String filePath) throws IOException {
+        return sendFile(filePath, new File(filePath).getName());
+    }
+
+    // fileName: nom du fichier sur le serveur (chemin relatif pour un envoi de dossier)
+    public boolean sendFile(String filePath, String fileName) throws IOException {
         File file = new File(filePath); 
         if (!file.exists()) {
             System.out.println("Le fichier n'existe pas: " + filePath);
             return false;
         }
 
-        System.out.println("Connexion au serveur " + SERVER_HOST + ":" + SERVER_PORT + "...");
+        System.out.println("Connexion au serveur " + host + ":" + port + "...");
         
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dis = new DataInputStream(socket.getInputStream());
-             FileInputStream fis = new FileInputStream(filePath)) {
-
-            String fileName = file.getName();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
             long fileSize = file.length();
             System.out.println("Envoi du fichier: " + fileName + " (" + formatFileSize(fileSize) + ")");
 
-            dos.writeUTF("SEND_FILE");
-            dos.writeUTF(fileName);
-            dos.writeLong(fileSize);
+            List<ChunkInfo> chunks = null;
+            // CRC du fichier entier, calculé pendant le découpage
+            CRC32C checksum = new CRC32C();
+            int chunkedWith = 0;
+            boolean refused = false;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    if (chunks == null || chunkedWith != chunkSize) {
+                        chunkedWith = chunkSize;
+                        checksum.reset();
+                        chunks = chunkFile(raf, fileSize, checksum);
+                    }
+                    Boolean stored = sendChunks(raf, fileName, fileSize, checksum.getValue(), chunks);
+                    if (stored != null) {
+                        return stored;
+                    }
+                    // Le serveur a annoncé une autre taille de bloc: un seul redécoupage
+                    if (refused) {
+                        System.out.println("Le serveur refuse le découpage du fichier");
+                        return false;
+                    }
+                    refused = true;
+                } catch (IOException e) {
+                    session.reset();
+                    if (attempt >= MAX_ATTEMPTS) {
+                        System.err.println("\nErreur lors de l'envoi du fichier: " + e.getMessage());
+                        throw e;
+                    }
+                    System.err.println("\nConnexion interrompue (" + e.getMessage() + "), reprise de l'envoi...");
+                    pause(RETRY_DELAY_MS * attempt);
+                }
+            }
+        }
+    }
 
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            long totalSent = 0;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-                totalSent += bytesRead;
-                int progress = (int) ((totalSent * 100) / fileSize);
-                System.out.print("\rProgression: " + progress + "% (" + formatFileSize(totalSent) + "/" + formatFileSize(fileSize) + ")");
+    // null si le serveur refuse le découpage (chunkSize est alors mis à jour)
+    private Boolean sendChunks(RandomAccessFile raf, String fileName, long fileSize, long checksum,
+                               List<ChunkInfo> chunks) throws IOException {
+        DataOutputStream dos = session.startRequest("SEND_FILE_DELTA");
+        dos.writeUTF(fileName);
+        dos.writeLong(fileSize);
+        dos.writeInt((int) checksum);
+        dos.writeInt(chunkSize);
+        dos.writeInt(chunks.size());
+        for (ChunkInfo chunk : chunks) {
+            dos.write(chunk.hash);
+            dos.writeInt(chunk.length);
+        }
+        DataInputStream dis = session.awaitResponse();
+        if (!dis.readBoolean()) {
+            chunkSize = dis.readInt();
+            return null;
+        }
+
+        int missingCount = dis.readInt();
+        long toSend = 0;
+        int[] missing = new int[missingCount];
+        for (int i = 0; i < missingCount; i++) {
+            missing[i] = dis.readInt();
+            toSend += chunks.get(missing[i]).length;
+        }
+        System.out.println(missingCount + " blocs sur " + chunks.size() + " à transmettre (" + formatFileSize(toSend) + ")");
+
+        // Chaque bloc part compressé si son échantillon s'y prête; la progression compte les octets d'origine
+        long totalSent = 0;
+        long wireBytes = 0;
+        ProgressLine progressLine = new ProgressLine();
+        for (int index : missing) {
+            ChunkInfo chunk = chunks.get(index);
+            byte[] data = new byte[chunk.length];
+            raf.seek(chunk.offset);
+            try {
+                raf.readFully(data);
+            } catch (EOFException e) {
+                throw new EOFException("Le fichier a été raccourci pendant l'envoi");
             }
-            System.out.println("\nFichier envoyé avec succès");
-            return true;
+            List<byte[]> compressed = compress(data);
+            if (compressed != null) {
+                dos.writeByte(ChunkCodec.DEFLATE);
+                dos.writeInt((int) codec.getCompressedLength());
+                for (byte[] piece : compressed) {
+                    dos.write(piece);
+                }
+                wireBytes += codec.getCompressedLength();
+            } else {
+                dos.writeByte(ChunkCodec.NONE);
+                dos.writeInt(data.length);
+                dos.write(data);
+                wireBytes += data.length;
+            }
+            totalSent += data.length;
+            if (progressLine.due(totalSent >= toSend)) {
+                int progress = (int) ((totalSent * 100) / toSend);
+                System.out.print("\rProgression: " + progress + "% (" + formatFileSize(totalSent) + "/" + formatFileSize(toSend) + ")");
+            }
+        }
+        if (wireBytes < totalSent) {
+            System.out.print(" - " + formatFileSize(wireBytes) + " transmis après compression");
+        }
+        dos.flush();
+
+        // Le serveur confirme une fois tous les blocs enregistrés sur les sous-serveurs
+        boolean stored = dis.readBoolean();
+        System.out.println(stored ? "\nFichier envoyé avec succès" : "\nLe serveur n'a pas pu enregistrer le fichier");
+        return stored;
+    }
+
+    // Forme compressée du bloc, ou null s'il ne se compresse pas (ou si la compression est désactivée)
+    private List<byte[]> compress(byte[] data) {
+        if (!COMPRESSION) {
+            return null;
+        }
+        if (codec == null) {
+            codec = new ChunkCodec();
+        }
+        codec.begin();
+        return codec.update(data, 0, data.length) ? codec.finish() : null;
+    }
+
+    // Découpe le fichier comme le serveur et calcule l'empreinte de chaque bloc; checksum reçoit le contenu entier
+    private List<ChunkInfo> chunkFile(RandomAccessFile raf, long fileSize, CRC32C checksum) throws IOException {
+        ContentChunker chunker = new ContentChunker(chunkSize);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 indisponible", e);
+        }
+
+        List<ChunkInfo> chunks = new ArrayList<>();
+        byte[] buffer = new byte[64 * 1024];
+        long offset = 0;
+        long chunkStart = 0;
+        raf.seek(0);
+        while (offset < fileSize) {
+            int bytesRead = raf.read(buffer, 0, (int) Math.min(buffer.length, fileSize - offset));
+            if (bytesRead == -1) {
+                throw new EOFException("Le fichier a été raccourci pendant sa lecture");
+            }
+            checksum.update(buffer, 0, bytesRead);
+            int start = 0;
+            while (start < bytesRead) {
+                int boundary = chunker.findBoundary(buffer, start, bytesRead - start);
+                int end = boundary == -1 ? bytesRead : boundary;
+                digest.update(buffer, start, end - start);
+                if (boundary != -1) {
+                    long chunkEnd = offset + end;
+                    chunks.add(new ChunkInfo(chunkStart, (int) (chunkEnd - chunkStart), digest.digest()));
+                    chunkStart = chunkEnd;
+                }
+                start = end;
+            }
+            offset += bytesRead;
+        }
+        if (chunkStart < fileSize) {
+            chunks.add(new ChunkInfo(chunkStart, (int) (fileSize - chunkStart), digest.digest()));
+        }
+        return chunks;
+    }
+
+    // Envoie plusieurs petits fichiers dans une seule requête; le serveur les enregistre tous ou aucun.
+    // Chaque fichier est suivi de son CRC32C, vérifié par le serveur.
+    public boolean sendBatch(List<File> files, List<String> fileNames) throws IOException {
+        try {
+            DataOutputStream dos = session.startRequest("SEND_BATCH");
+            dos.writeInt(files.size());
+            byte[] buffer = new byte[64 * 1024];
+            CRC32C crc = new CRC32C();
+            for (int i = 0; i < files.size(); i++) {
+                try (FileInputStream fis = new FileInputStream(files.get(i))) {
+                    long fileSize = files.get(i).length();
+                    dos.writeUTF(fileNames.get(i));
+                    dos.writeLong(fileSize);
+                    crc.reset();
+                    long remaining = fileSize;
+                    while (remaining > 0) {
+                        int bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Le fichier " + files.get(i) + " a été raccourci pendant l'envoi");
+                        }
+                        crc.update(buffer, 0, bytesRead);
+                        dos.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                    dos.writeInt((int) crc.getValue());
+                }
+            }
+            return session.awaitResponse().readBoolean();
         } catch (IOException e) {
-            System.err.println("\nErreur lors de l'envoi du fichier: " + e.getMessage());
+            session.reset();
             throw e;
         }
     }
 
-    public void retrieveFile(String fileName) {
-        System.out.println("Demande de téléchargement du fichier: " + fileName);
-        
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+    // Télécharge plusieurs petits fichiers dans une seule réponse; retourne les noms absents du serveur.
+    // Un fichier dont le CRC32C ne correspond pas fait échouer le lot.
+    public List<String> retrieveBatch(List<String> fileNames) throws IOException {
+        List<String> missing = new ArrayList<>();
+        try {
+            DataOutputStream dos = session.startRequest("RETRIEVE_BATCH");
+            dos.writeInt(fileNames.size());
+            for (String fileName : fileNames) {
+                dos.writeUTF(fileName);
+            }
+            DataInputStream dis = session.awaitResponse();
+            byte[] buffer = new byte[64 * 1024];
+            CRC32C crc = new CRC32C();
+            for (String fileName : fileNames) {
+                if (!dis.readBoolean()) {
+                    missing.add(fileName);
+                    continue;
+                }
+                long remaining = dis.readLong();
+                long checksum = dis.readLong();
+                File downloadFile = downloadTarget(fileName);
+                File partFile = new File(downloadFile.getPath() + ".part");
+                crc.reset();
+                try (FileOutputStream fos = new FileOutputStream(partFile)) {
+                    while (remaining > 0) {
+                        int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Connexion interrompue pendant la réception de " + fileName);
+                        }
+                        crc.update(buffer, 0, bytesRead);
+                        fos.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                }
+                if ((dis.readInt() & 0xFFFFFFFFL) != crc.getValue()
+                        || (checksum != Checksums.UNKNOWN && checksum != crc.getValue())) {
+                    rejectCorrupted(fileName, partFile);
+                }
+                Files.move(partFile.toPath(), downloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return missing;
+        } catch (IOException e) {
+            session.reset();
+            throw e;
+        }
+    }
 
-            dos.writeUTF("RETRIEVE_FILE");
-            dos.writeUTF(fileName);
+    // Emplacement local d'un fichier du serveur; un nom de la forme dossier/fichier crée les dossiers,
+    // mais ne doit pas sortir du dossier de téléchargement
+    private static File downloadTarget(String fileName) throws IOException {
+        File root = new File(DOWNLOAD_PATH).getCanonicalFile();
+        File target = new File(root, fileName).getCanonicalFile();
+        if (!target.toPath().startsWith(root.toPath()) || target.equals(root)) {
+            throw new IOException("Nom de fichier refusé: " + fileName);
+        }
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Impossible de créer le dossier " + parent);
+        }
+        return target;
+    }
 
-            boolean fileExists = dis.readBoolean();
-            if (!fileExists) {
-                System.out.println("Le fichier " + fileName + " n'existe pas sur le serveur");
-                return;
+    // Le fichier est reçu dans un .part, renommé une fois complet. La version du fichier sur le serveur
+    // est notée dans un .part.version: une reprise (même après redémarrage du client) ne continue
+    // que si le fichier n'a pas changé entre-temps.
+    public boolean retrieveFile(String fileName) {
+        return retrieveFile(fileName, DOWNLOAD_STREAMS);
+    }
+
+    // maxStreams > 1: un fichier assez grand est téléchargé sur plusieurs connexions (sauf reprise d'un .part)
+    public boolean retrieveFile(String fileName, int maxStreams) {
+        System.out.println("Demande de téléchargement du fichier: " + fileName);
+        File downloadFile;
+        try {
+            downloadFile = downloadTarget(fileName);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        File partFile = new File(downloadFile.getPath() + ".part");
+        File versionFile = new File(downloadFile.getPath() + ".part.version");
+
+        if (maxStreams > 1 && !partFile.isFile()) {
+            try {
+                // Plage vide: seulement la taille et la version du fichier
+                DataOutputStream dos = session.startRequest("RETRIEVE_FILE_RANGE");
+                dos.writeUTF(fileName);
+                dos.writeLong(0);
+                dos.writeLong(0);
+                dos.writeLong(0);
+                DataInputStream dis = session.awaitResponse();
+                if (!dis.readBoolean()) {
+                    System.out.println("Le fichier " + fileName + " n'existe pas sur le serveur");
+                    return false;
+                }
+                long version = dis.readLong();
+                long fileSize = dis.readLong();
+                long checksum = dis.readLong();
+                dis.readLong();
+                dis.readInt();
+                if (fileSize >= 2 * DOWNLOAD_SEGMENT_SIZE) {
+                    return retrieveParallel(fileName, version, fileSize, checksum, maxStreams, downloadFile, partFile);
+                }
+            } catch (IOException e) {
+                session.reset();
             }
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long version = partFile.isFile() ? readVersion(versionFile) : 0;
+                long offset = version == 0 ? 0 : partFile.length();
+                DataOutputStream dos = session.startRequest("RETRIEVE_FILE_RANGE");
+                dos.writeUTF(fileName);
+                dos.writeLong(offset);
+                dos.writeLong(-1);
+                dos.writeLong(version);
+                DataInputStream dis = session.awaitResponse();
+
+                boolean fileExists = dis.readBoolean();
+                if (!fileExists) {
+                    System.out.println("Le fichier " + fileName + " n'existe pas sur le serveur");
+                    partFile.delete();
+                    versionFile.delete();
+                    return false;
+                }
+
+                long serverVersion = dis.readLong();
+                long fileSize = dis.readLong();
+                long checksum = dis.readLong();
+                long rangeLength = dis.readLong();
+                if (rangeLength < 0) {
+                    System.out.println("Le fichier a changé sur le serveur depuis le début du téléchargement, reprise depuis le début");
+                    partFile.delete();
+                    versionFile.delete();
+                    continue;
+                }
+                if (offset > 0) {
+                    System.out.println("Reprise du téléchargement de " + fileName + " à " + formatFileSize(offset));
+                } else {
+                    writeVersion(versionFile, serverVersion);
+                    System.out.println("Téléchargement de " + fileName + " (" + formatFileSize(fileSize) + ")");
+                }
+
+                // Le CRC du fichier se vérifie sur le contenu entier: après une reprise, celui de la partie déjà
+                // reçue est combiné avec celui de la suite
+                long prefixChecksum = offset > 0 && checksum != Checksums.UNKNOWN ? checksumOf(partFile) : 0;
+                CRC32C crc = new CRC32C();
+                try (FileOutputStream fos = new FileOutputStream(partFile, offset > 0)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    long totalReceived = offset;
+                    ProgressLine progressLine = new ProgressLine();
+
+                    while (totalReceived < offset + rangeLength) {
+                        bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, offset + rangeLength - totalReceived));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Connexion interrompue après " + formatFileSize(totalReceived));
+                        }
+
+                        crc.update(buffer, 0, bytesRead);
+                        fos.write(buffer, 0, bytesRead);
+                        totalReceived += bytesRead;
 
-            long fileSize = dis.readLong();
-            File downloadFile = new File(DOWNLOAD_PATH + fileName);
-            System.out.println("Téléchargement de " + fileName + " (" + formatFileSize(fileSize) + ")");
-
-            try (FileOutputStream fos = new FileOutputStream(downloadFile)) {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                long totalReceived = 0;
-
-                while (totalReceived < fileSize) {
-                    bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalReceived));
-                    if (bytesRead == -1) break;
-                    
-                    fos.write(buffer, 0, bytesRead);
-                    totalReceived += bytesRead;
-                    
-                    int progress = (int) ((totalReceived * 100) / fileSize);
-                    System.out.print("\rProgression: " + progress + "% (" + formatFileSize(totalReceived) + "/" + formatFileSize(fileSize) + ")");
+                        if (progressLine.due(totalReceived >= offset + rangeLength)) {
+                            int progress = (int) ((totalReceived * 100) / fileSize);
+                            System.out.print("\rProgression: " + progress + "% (" + formatFileSize(totalReceived) + "/" + formatFileSize(fileSize) + ")");
+                        }
+                    }
                 }
+                if ((dis.readInt() & 0xFFFFFFFFL) != crc.getValue() || (checksum != Checksums.UNKNOWN
+                        && Checksums.combine(prefixChecksum, crc.getValue(), rangeLength) != checksum)) {
+                    versionFile.delete();
+                    rejectCorrupted(fileName, partFile);
+                }
+                Files.move(partFile.toPath(), downloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                versionFile.delete();
                 System.out.println("\nFichier téléchargé avec succès dans: " + downloadFile.getAbsolutePath());
+                return true;
+            } catch (IOException e) {
+                session.reset();
+                if (attempt >= MAX_ATTEMPTS) {
+                    System.err.println("\nErreur lors du téléchargement du fichier: " + e.getMessage()
+                            + " (reprise possible depuis " + partFile.getName() + ")");
+                    return false;
+                }
+                System.err.println("\nConnexion interrompue (" + e.getMessage() + "), reprise du téléchargement...");
+                try {
+                    pause(RETRY_DELAY_MS * attempt);
+                } catch (InterruptedIOException interrupted) {
+                    return false;
+                }
             }
+        }
+    }
+
+    private boolean retrieveParallel(String fileName, long version, long fileSize, long checksum, int maxStreams,
+                                     File downloadFile, File partFile) {
+        System.out.println("Téléchargement de " + fileName + " (" + formatFileSize(fileSize) + ") sur " + maxStreams + " connexions au plus");
+        ParallelDownload download = new ParallelDownload(host, port, maxStreams, DOWNLOAD_SEGMENT_SIZE);
+        long start = System.nanoTime();
+        try {
+            ProgressLine progressLine = new ProgressLine();
+            int streams = download.download(fileName, version, fileSize, checksum, partFile, received -> {
+                if (progressLine.due(received >= fileSize)) {
+                    int progress = (int) ((received * 100) / fileSize);
+                    System.out.print("\rProgression: " + progress + "% (" + formatFileSize(received) + "/" + formatFileSize(fileSize) + ")");
+                }
+            });
+            Files.move(partFile.toPath(), downloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%nFichier téléchargé avec succès dans: %s (%d connexions, %.1f Mo/s)%n",
+                    downloadFile.getAbsolutePath(), streams, fileSize / 1048576.0 / seconds);
+            return true;
         } catch (IOException e) {
+            // Les plages reçues ne forment pas un début de fichier: pas de reprise possible depuis ce .part
+            partFile.delete();
             System.err.println("\nErreur lors du téléchargement du fichier: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Lit length octets à partir de offset (length < 0: jusqu'à la fin) sans télécharger le reste du fichier.
+    // Retourne le nombre d'octets écrits dans out. Une plage altérée pendant le transfert lève une
+    // IOException une fois écrite: le contenu de out ne doit alors pas être utilisé.
+    public long retrieveRange(String fileName, long offset, long length, OutputStream out) throws IOException {
+        try {
+            DataOutputStream dos = session.startRequest("RETRIEVE_FILE_RANGE");
+            dos.writeUTF(fileName);
+            dos.writeLong(offset);
+            dos.writeLong(length);
+            dos.writeLong(0);
+            DataInputStream dis = session.awaitResponse();
+            if (!dis.readBoolean()) {
+                throw new FileNotFoundException("Le fichier " + fileName + " n'existe pas sur le serveur");
+            }
+            dis.readLong();
+            dis.readLong();
+            dis.readLong();
+            long rangeLength = dis.readLong();
+
+            CRC32C crc = new CRC32C();
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = rangeLength;
+            while (remaining > 0) {
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connexion interrompue après " + formatFileSize(rangeLength - remaining));
+                }
+                crc.update(buffer, 0, bytesRead);
+                out.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            if ((dis.readInt() & 0xFFFFFFFFL) != crc.getValue()) {
+                throw new IOException("Plage " + offset + "+" + rangeLength + " de " + fileName + " altérée pendant le transfert");
+            }
+            return rangeLength;
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            session.reset();
+            throw e;
+        }
+    }
+
+    // Fichier reçu altéré: le .part est supprimé, un nouvel essai repart du début
+    private static void rejectCorrupted(String fileName, File partFile) throws IOException {
+        partFile.delete();
+        throw new IOException("Le contenu reçu de " + fileName + " ne correspond pas à son CRC32C");
+    }
+
+    private static long checksumOf(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                crc.update(buffer, 0, bytesRead);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static long readVersion(File versionFile) {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(versionFile))) {
+            return dis.readLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void writeVersion(File versionFile, long version) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(versionFile))) {
+            dos.writeLong(version);
+        }
+    }
+
+    private static void pause(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reprise interrompue");
+        }
+    }
+
+    private static class ChunkInfo {
+        final long offset;
+        final int length;
+        final byte[] hash;
+
+        ChunkInfo(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
         }
     }
 
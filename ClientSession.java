@@ -0,0 +1,122 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Connexion persistante vers le serveur principal, partagée par toutes les commandes du client.
+// Chaque requête porte un identifiant repris dans la réponse; plusieurs requêtes peuvent être
+// envoyées avant de lire les réponses, qui arrivent dans le même ordre.
+public class ClientSession implements Closeable {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // Le serveur ferme les sessions inactives (server.session.idle.timeout.ms, 60 s par défaut):
+    // au-delà de ce délai on rouvre la connexion plutôt que de risquer une connexion déjà fermée
+    private static final long IDLE_RECONNECT_MS = 30_000;
+    // Le serveur rend plus tôt le thread d'une session inactive quand des connexions attendent
+    // (server.session.busy.idle.timeout.ms, 2 s par défaut): après ce délai sans échange, on vérifie
+    // que la connexion est encore ouverte avant d'y écrire une requête
+    private static final long IDLE_CHECK_MS = 1_000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private DataInputStream dis;
+    private DataOutputStream dos;
+    private int nextRequestId = 1;
+    private long lastUsed;
+    private final Deque<Integer> pendingRequests = new ArrayDeque<>();
+
+    public ClientSession(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Écrit l'en-tête d'une requête; les paramètres de la commande s'écrivent ensuite sur le flux retourné
+    public synchronized DataOutputStream startRequest(String command) throws IOException {
+        ensureConnected();
+        lastUsed = System.currentTimeMillis();
+        int requestId = nextRequestId++;
+        dos.writeInt(requestId);
+        dos.writeUTF(command);
+        pendingRequests.addLast(requestId);
+        return dos;
+    }
+
+    // Envoie les requêtes en attente et lit l'en-tête de la plus ancienne réponse
+    public synchronized DataInputStream awaitResponse() throws IOException {
+        if (pendingRequests.isEmpty()) {
+            throw new IllegalStateException("Aucune requête en attente de réponse");
+        }
+        dos.flush();
+        int expected = pendingRequests.removeFirst();
+        int requestId = dis.readInt();
+        lastUsed = System.currentTimeMillis();
+        if (requestId != expected) {
+            reset();
+            throw new IOException("Réponse " + requestId + " reçue alors que la requête " + expected + " était attendue");
+        }
+        return dis;
+    }
+
+    // À appeler après une erreur: la connexion sera rouverte à la prochaine requête
+    public synchronized void reset() {
+        pendingRequests.clear();
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (socket != null && !socket.isClosed() && pendingRequests.isEmpty()) {
+            try {
+                dos.writeInt(nextRequestId++);
+                dos.writeUTF("CLOSE");
+                dos.flush();
+            } catch (IOException ignored) {
+            }
+        }
+        reset();
+    }
+
+    private void ensureConnected() throws IOException {
+        if (socket != null && pendingRequests.isEmpty()) {
+            long idle = System.currentTimeMillis() - lastUsed;
+            if (idle > IDLE_RECONNECT_MS) {
+                close();
+            } else if (idle > IDLE_CHECK_MS && closedByServer()) {
+                reset();
+            }
+        }
+        if (socket != null && !socket.isClosed()) {
+            return;
+        }
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+        dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+        dos.writeUTF("SESSION");
+    }
+
+    // Sans requête en attente, rien ne doit arriver du serveur: une fin de flux signale une session fermée,
+    // un octet inattendu une session désynchronisée. L'attente est limitée à une milliseconde.
+    private boolean closedByServer() {
+        try {
+            socket.setSoTimeout(1);
+            try {
+                dis.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+}
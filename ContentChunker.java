@@ -0,0 +1,71 @@
+import java.util.Random;
+
+// Découpage d'un flux en blocs de taille variable selon leur contenu (empreinte glissante « gear »).
+// Une limite de bloc ne dépend que des 64 derniers octets lus: une modification locale ne déplace
+// que les limites voisines, les autres blocs gardent le même contenu et donc le même nom.
+public class ContentChunker {
+    private static final long[] GEAR = new long[256];
+    // Seuls les 64 derniers octets influencent les bits de poids fort de l'empreinte
+    private static final int WINDOW = 64;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static {
+        // Graine fixe: le client et le serveur doivent trouver les mêmes limites
+        Random random = new Random(0x5EED5EEDL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+    private long hash;
+    private int length;
+
+    // averageSize: taille visée; les blocs font entre averageSize / 4 et averageSize * 2 octets
+    public ContentChunker(int averageSize) {
+        this.minSize = Math.max(1, averageSize / 4);
+        this.maxSize = Math.max(minSize, averageSize * 2);
+        int bits = Math.max(1, Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(1, averageSize - minSize))));
+        this.mask = -1L << (64 - bits);
+    }
+
+    public static int maxSizeFor(int averageSize) {
+        return new ContentChunker(averageSize).maxSize;
+    }
+
+    // Position (exclue) de la fin du bloc courant dans data[offset, offset + count), ou -1 si le bloc
+    // continue au-delà. Après une limite, le bloc suivant commence à la position retournée.
+    public int findBoundary(byte[] data, int offset, int count) {
+        int end = offset + count;
+        int i = offset;
+        // Les octets trop loin du seuil minimal n'influencent pas l'empreinte au moment du test
+        int skip = Math.min(end - i, minSize - WINDOW - length);
+        if (skip > 0) {
+            i += skip;
+            length += skip;
+        }
+        while (i < end) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            i++;
+            length++;
+            if ((length >= minSize && (hash & mask) == 0) || length >= maxSize) {
+                hash = 0;
+                length = 0;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Nom d'un bloc sur les sous-serveurs: son empreinte SHA-256 en hexadécimal
+    public static String partName(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
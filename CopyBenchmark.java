@@ -0,0 +1,340 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+// Micro-mesures des boucles de copie des serveurs, selon différentes tailles de tampon et styles d'E/S:
+//   reception.*  réception d'une partie par le sous-serveur (socket -> fichier): flux, canal (écritures
+//                positionnelles depuis un tampon direct) ou régions projetées (subserver.ingest.mode)
+//   envoi.*      envoi d'une partie par le sous-serveur (fichier -> socket): flux ou transferTo
+//   decoupage.*  boucle de réception du serveur principal (readChunks): lecture, découpage selon le
+//                contenu, SHA-256 et CRC32C
+// Chaque cas est d'abord exécuté --chauffe fois sans mesure (compilation JIT), puis --mesures fois;
+// le débit moyen et son écart type sont affichés. Le pair réseau est un thread local (loopback).
+// Usage: java CopyBenchmark [--tampons=4,16,64,256,1024] [--chauffe=3] [--mesures=5]
+//                           [--resultats=fichier] [--reference=fichier] [taille en Mo]
+public class CopyBenchmark {
+    private static final long MB = 1024L * 1024;
+    private static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+    // Résultats consommés pour que le compilateur ne puisse pas supprimer le travail mesuré
+    private static volatile long blackhole;
+
+    private final long size;
+    private final int warmups;
+    private final int iterations;
+    private final BenchmarkResults results = new BenchmarkResults();
+
+    private CopyBenchmark(long size, int warmups, int iterations) {
+        this.size = size;
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long size = 64 * MB;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                size = Long.parseLong(arg) * MB;
+            }
+        }
+        String buffers = BenchmarkResults.option(args, "--tampons=");
+        String warmups = BenchmarkResults.option(args, "--chauffe=");
+        String iterations = BenchmarkResults.option(args, "--mesures=");
+        CopyBenchmark benchmark = new CopyBenchmark(size, warmups == null ? 3 : Integer.parseInt(warmups),
+                iterations == null ? 5 : Integer.parseInt(iterations));
+        benchmark.run(buffers == null ? new int[] {4, 16, 64, 256, 1024} : parseSizes(buffers));
+        benchmark.results.finish(args);
+    }
+
+    private void run(int[] buffersKb) throws Exception {
+        System.out.printf("Copies de %d Mo, %d essais de chauffe, %d essais mesurés%n", size / MB, warmups, iterations);
+        System.out.printf("%-28s %12s %10s%n", "Cas", "Mo/s", "écart");
+
+        Path sample = Files.createTempFile("copy-bench", ".bin");
+        Path target = Files.createTempFile("copy-bench", ".part");
+        try (Source source = new Source(); ServerSocketChannel sink = ServerSocketChannel.open()) {
+            writeSample(sample);
+            sink.bind(new InetSocketAddress("localhost", 0));
+            Thread drain = startDrain(sink);
+
+            for (int kb : buffersKb) {
+                int bufferSize = kb * 1024;
+                measure("reception.flux." + kb + "k", () -> {
+                    try (SocketChannel channel = source.open(size)) {
+                        receiveStream(new DataInputStream(channel.socket().getInputStream()), target.toFile(), bufferSize);
+                    }
+                });
+            }
+            for (int kb : buffersKb) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(kb * 1024);
+                measure("reception.canal." + kb + "k", () -> {
+                    try (SocketChannel channel = source.open(size);
+                         RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+                        raf.setLength(size);
+                        receivePositional(channel, raf.getChannel(), buffer);
+                    }
+                });
+            }
+            measure("reception.mmap", () -> {
+                try (SocketChannel channel = source.open(size);
+                     RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+                    raf.setLength(size);
+                    receiveMapped(channel, raf.getChannel());
+                }
+            });
+
+            for (int kb : buffersKb) {
+                int bufferSize = kb * 1024;
+                measure("envoi.flux." + kb + "k", () -> {
+                    try (SocketChannel channel = SocketChannel.open(sink.getLocalAddress());
+                         FileChannel file = FileChannel.open(sample, StandardOpenOption.READ)) {
+                        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), 64 * 1024));
+                        copyPart(file, dos, bufferSize);
+                        dos.flush();
+                    }
+                });
+            }
+            measure("envoi.transferTo", () -> {
+                try (SocketChannel channel = SocketChannel.open(sink.getLocalAddress());
+                     FileChannel file = FileChannel.open(sample, StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < size) {
+                        position += file.transferTo(position, size - position, channel);
+                    }
+                }
+            });
+
+            for (int kb : buffersKb) {
+                int bufferSize = kb * 1024;
+                measure("decoupage." + kb + "k", () -> {
+                    try (SocketChannel channel = source.open(size)) {
+                        readChunks(new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), 64 * 1024)),
+                                bufferSize);
+                    }
+                });
+            }
+            drain.interrupt();
+        } finally {
+            Files.deleteIfExists(sample);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private void measure(String name, IoTask task) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            task.run();
+        }
+        double[] rates = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            task.run();
+            rates[i] = (size / (double) MB) / ((System.nanoTime() - start) / 1e9);
+        }
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate / rates.length;
+        }
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / Math.max(1, rates.length - 1);
+        }
+        double deviation = Math.sqrt(variance);
+        System.out.printf("%-28s %12.1f %10.1f%n", name, mean, deviation);
+        results.put(name, mean, deviation, true);
+    }
+
+    // Copies des boucles de SubServer.ClientHandler et de MainServer.readChunks, paramétrées par le tampon
+
+    private void receiveStream(DataInputStream dis, File partFile, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long remainingBytes = size;
+        try (FileOutputStream fos = new FileOutputStream(partFile)) {
+            while (remainingBytes > 0) {
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+                if (bytesRead == -1) {
+                    throw new EOFException("Flux interrompu: " + remainingBytes + " octets manquants");
+                }
+                fos.write(buffer, 0, bytesRead);
+                remainingBytes -= bytesRead;
+            }
+        }
+    }
+
+    private void receivePositional(SocketChannel socketChannel, FileChannel partChannel, ByteBuffer buffer) throws IOException {
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            fill(socketChannel, buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += partChannel.write(buffer, position);
+            }
+        }
+    }
+
+    private void receiveMapped(SocketChannel socketChannel, FileChannel partChannel) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long window = Math.min(MAP_WINDOW_SIZE, size - position);
+            MappedByteBuffer region = partChannel.map(FileChannel.MapMode.READ_WRITE, position, window);
+            fill(socketChannel, region);
+            position += window;
+        }
+    }
+
+    private static void fill(SocketChannel socketChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socketChannel.read(buffer) == -1) {
+                throw new EOFException("Flux interrompu");
+            }
+        }
+    }
+
+    private void copyPart(FileChannel partChannel, DataOutputStream dos, int bufferSize) throws IOException {
+        InputStream in = Channels.newInputStream(partChannel);
+        byte[] buffer = new byte[bufferSize];
+        long remainingBytes = size;
+        while (remainingBytes > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+            if (bytesRead == -1) {
+                throw new EOFException("Partie tronquée pendant la lecture");
+            }
+            dos.write(buffer, 0, bytesRead);
+            remainingBytes -= bytesRead;
+        }
+    }
+
+    // Comme le serveur, un nouveau tampon par lecture: ses blocs restent référencés jusqu'à l'envoi
+    private void readChunks(DataInputStream dis, int bufferSize) throws Exception {
+        ContentChunker chunker = new ContentChunker(8 * 1024 * 1024);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        CRC32C crc = new CRC32C();
+        long chunks = 0;
+        long received = 0;
+        while (received < size) {
+            byte[] buffer = new byte[(int) Math.min(bufferSize, size - received)];
+            int bytesRead = dis.read(buffer, 0, buffer.length);
+            if (bytesRead == -1) {
+                throw new EOFException("Connexion interrompue après " + received + " octets");
+            }
+            received += bytesRead;
+            int start = 0;
+            while (start < bytesRead) {
+                int boundary = chunker.findBoundary(buffer, start, bytesRead - start);
+                int end = boundary == -1 ? bytesRead : boundary;
+                digest.update(buffer, start, end - start);
+                crc.update(buffer, start, end - start);
+                if (boundary != -1) {
+                    chunks += digest.digest()[0] + crc.getValue();
+                    crc.reset();
+                }
+                start = end;
+            }
+        }
+        blackhole += chunks + digest.digest()[0];
+    }
+
+    private void writeSample(Path file) throws IOException {
+        byte[] block = new byte[(int) MB];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static Thread startDrain(ServerSocketChannel sink) {
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (!Thread.currentThread().isInterrupted()) {
+                try (SocketChannel connection = sink.accept()) {
+                    while (connection.read(buffer) != -1) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "copy-bench-drain");
+        drain.setDaemon(true);
+        drain.start();
+        return drain;
+    }
+
+    private static int[] parseSizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    private interface IoTask {
+        void run() throws Exception;
+    }
+
+    // Pair local qui envoie le nombre d'octets demandé par chaque connexion (contenu pseudo-aléatoire)
+    private static final class Source implements Closeable {
+        private final ServerSocketChannel server = ServerSocketChannel.open();
+        private final Thread thread;
+
+        Source() throws IOException {
+            server.bind(new InetSocketAddress("localhost", 0));
+            ByteBuffer data = ByteBuffer.allocateDirect(1024 * 1024);
+            byte[] random = new byte[data.capacity()];
+            new Random(7).nextBytes(random);
+            data.put(random).flip();
+            thread = new Thread(() -> {
+                ByteBuffer request = ByteBuffer.allocate(8);
+                while (true) {
+                    try (SocketChannel connection = server.accept()) {
+                        request.clear();
+                        fill(connection, request);
+                        long remaining = request.flip().getLong();
+                        while (remaining > 0) {
+                            ByteBuffer slice = data.duplicate();
+                            slice.limit((int) Math.min(slice.capacity(), remaining));
+                            while (slice.hasRemaining()) {
+                                remaining -= connection.write(slice);
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (!server.isOpen()) {
+                            return;
+                        }
+                    }
+                }
+            }, "copy-bench-source");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        SocketChannel open(long length) throws IOException {
+            SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+            ByteBuffer request = ByteBuffer.allocate(8).putLong(length);
+            request.flip();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            return channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+// Index en mémoire des fichiers stockés (nom -> manifeste), trié par nom.
+// Construit une fois au démarrage puis tenu à jour à chaque envoi et suppression.
+//
+// Le contenu d'un manifeste publié ne change plus: un envoi publie une nouvelle version et un lecteur
+// garde celle qu'il a obtenue. Seul l'emplacement de ses blocs peut changer, en place et pendant les
+// lectures, quand la réparation reconstruit ou déplace des parties (MetadataJournal.relocate): une
+// lecture en cours suit ainsi les blocs déplacés, dont l'ancienne partie est ensuite supprimée.
+// Les lectures en cours sont comptées par version, sans verrou commun à tous les fichiers; une version
+// remplacée ou supprimée pendant une lecture n'est libérée qu'à la fin de la dernière.
+public class FileCatalog {
+    private final ConcurrentSkipListMap<String, FileManifest> files = new ConcurrentSkipListMap<>();
+    // Version -> lectures en cours; n'est modifié que dans compute, qui sérialise les accès à une version
+    private final Map<Long, Readers> readers = new ConcurrentHashMap<>();
+
+    public FileManifest get(String fileName) {
+        return files.get(fileName);
+    }
+
+    // Retourne le manifeste remplacé, ou null
+    public FileManifest put(FileManifest manifest) {
+        return files.put(manifest.getFileName(), manifest);
+    }
+
+    public FileManifest remove(String fileName) {
+        return files.remove(fileName);
+    }
+
+    // Manifeste publié de fileName, réservé jusqu'à endRead: ses blocs restent lisibles même s'il est
+    // remplacé ou supprimé entre-temps
+    public FileManifest beginRead(String fileName) {
+        while (true) {
+            FileManifest manifest = files.get(fileName);
+            if (manifest == null) {
+                return null;
+            }
+            readers.compute(manifest.getVersion(), (version, current) -> {
+                Readers entry = current == null ? new Readers() : current;
+                entry.count++;
+                return entry;
+            });
+            // Retiré avant d'être réservé: sa libération a pu commencer sans voir cette lecture
+            if (files.get(fileName) == manifest) {
+                return manifest;
+            }
+            endRead(manifest);
+        }
+    }
+
+    public void endRead(FileManifest manifest) {
+        Runnable[] release = new Runnable[1];
+        readers.computeIfPresent(manifest.getVersion(), (version, current) -> {
+            if (--current.count > 0) {
+                return current;
+            }
+            release[0] = current.release;
+            return null;
+        });
+        if (release[0] != null) {
+            release[0].run();
+        }
+    }
+
+    // Si la version est en cours de lecture, release sera exécuté à la fin de la dernière lecture et
+    // true est retourné. Sinon rien n'est fait: l'appelant libère la version lui-même.
+    public boolean deferRelease(FileManifest manifest, Runnable release) {
+        boolean[] deferred = new boolean[1];
+        readers.computeIfPresent(manifest.getVersion(), (version, current) -> {
+            current.release = release;
+            deferred[0] = true;
+            return current;
+        });
+        return deferred[0];
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    // Fichiers dont le nom commence par prefix, strictement après startAfter (curseur de la page précédente)
+    public List<FileManifest> list(String prefix, String startAfter, int limit) {
+        NavigableMap<String, FileManifest> view = files;
+        if (startAfter != null && !startAfter.isEmpty() && startAfter.compareTo(prefix) >= 0) {
+            view = view.tailMap(startAfter, false);
+        } else if (!prefix.isEmpty()) {
+            view = view.tailMap(prefix, true);
+        }
+
+        List<FileManifest> page = new ArrayList<>();
+        for (Map.Entry<String, FileManifest> entry : view.entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || page.size() >= limit) {
+                break;
+            }
+            page.add(entry.getValue());
+        }
+        return page;
+    }
+
+    // Noms correspondant à un motif où * remplace toute suite de caractères et ? un seul caractère.
+    // Seuls les noms commençant par la partie fixe du motif sont parcourus.
+    public List<String> namesMatching(String glob) {
+        int wildcard = glob.length();
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                wildcard = Math.min(wildcard, i);
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        String prefix = glob.substring(0, wildcard);
+        Pattern pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+
+        List<String> names = new ArrayList<>();
+        for (String fileName : files.tailMap(prefix, true).keySet()) {
+            if (!fileName.startsWith(prefix)) {
+                break;
+            }
+            if (pattern.matcher(fileName).matches()) {
+                names.add(fileName);
+            }
+        }
+        return names;
+    }
+
+    public List<String> names() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    private static final class Readers {
+        int count;
+        Runnable release;
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Description d'un fichier stocké: découpage en blocs et emplacement de chaque bloc.
+// Un bloc peut être partagé par plusieurs fichiers: il est nommé par l'empreinte de son contenu.
+public class FileManifest {
+    private static final int FORMAT_VERSION = 3;
+
+    private final String fileName;
+    private final long fileSize;
+    private final int chunkSize;
+    private final long version;
+    private final long createdAt;
+    private final List<Chunk> chunks;
+    // CRC32C du contenu entier, déduit de ceux des blocs (Checksums.UNKNOWN s'il manque l'un d'eux)
+    private long checksum = Checksums.UNKNOWN;
+
+    public FileManifest(String fileName, long fileSize, int chunkSize, long version, long createdAt) {
+        this(fileName, fileSize, chunkSize, version, createdAt, new ArrayList<>());
+    }
+
+    private FileManifest(String fileName, long fileSize, int chunkSize, long version, long createdAt, List<Chunk> chunks) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.version = version;
+        this.createdAt = createdAt;
+        this.chunks = chunks;
+    }
+
+    public String getFileName() { return fileName; }
+    public long getFileSize() { return fileSize; }
+    public int getChunkSize() { return chunkSize; }
+    public long getVersion() { return version; }
+    public long getCreatedAt() { return createdAt; }
+    public List<Chunk> getChunks() { return Collections.unmodifiableList(chunks); }
+    public long getChecksum() { return checksum; }
+
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+
+    // CRC du fichier formé par les blocs, Checksums.UNKNOWN si l'un d'eux n'a pas de somme
+    public long computeChecksum() {
+        long crc = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.checksum == Checksums.UNKNOWN) {
+                return Checksums.UNKNOWN;
+            }
+            crc = Checksums.combine(crc, chunk.checksum, chunk.length);
+        }
+        return crc;
+    }
+
+    // Place occupée sur les sous-serveurs, sans tenir compte des blocs partagés avec d'autres fichiers
+    public long getStoredSize() {
+        long storedSize = 0;
+        for (Chunk chunk : chunks) {
+            storedSize += chunk.storedLength;
+        }
+        return storedSize;
+    }
+
+    public Chunk addChunk(String location, String partName, long offset, long length) {
+        return addChunk(location, partName, offset, length, Checksums.UNKNOWN);
+    }
+
+    public Chunk addChunk(String location, String partName, long offset, long length, long checksum) {
+        Chunk chunk = new Chunk(location, partName, offset, length, ChunkCodec.NONE, length, checksum);
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    // Remplace un bloc par le même bloc sous sa forme stockée définitive, ou à son nouvel emplacement.
+    // Possible sur un manifeste publié (voir FileCatalog): un Chunk est immuable, un lecteur concurrent
+    // voit l'ancien ou le nouveau, jamais un mélange des deux.
+    public void setChunk(int index, Chunk chunk) {
+        chunks.set(index, chunk);
+    }
+
+    public FileManifest copy() {
+        FileManifest copy = new FileManifest(fileName, fileSize, chunkSize, version, createdAt, new ArrayList<>(chunks));
+        copy.checksum = checksum;
+        return copy;
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(FORMAT_VERSION);
+        dos.writeUTF(fileName);
+        dos.writeLong(fileSize);
+        dos.writeInt(chunkSize);
+        dos.writeLong(version);
+        dos.writeLong(createdAt);
+        dos.writeLong(checksum);
+        dos.writeInt(chunks.size());
+        for (Chunk chunk : chunks) {
+            dos.writeUTF(chunk.location);
+            dos.writeUTF(chunk.partName);
+            dos.writeLong(chunk.offset);
+            dos.writeLong(chunk.length);
+            dos.writeByte(chunk.codec);
+            dos.writeLong(chunk.storedLength);
+            dos.writeLong(chunk.checksum);
+        }
+    }
+
+    public static FileManifest read(DataInputStream dis) throws IOException {
+        int format = dis.readInt();
+        if (format != FORMAT_VERSION) {
+            throw new IOException("Format de manifeste non supporté: " + format);
+        }
+        String fileName = dis.readUTF();
+        long fileSize = dis.readLong();
+        int chunkSize = dis.readInt();
+        long version = dis.readLong();
+        long createdAt = dis.readLong();
+        long checksum = dis.readLong();
+        int chunkCount = dis.readInt();
+        List<Chunk> chunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            chunks.add(new Chunk(dis.readUTF(), dis.readUTF(), dis.readLong(), dis.readLong(), dis.readByte(),
+                    dis.readLong(), dis.readLong()));
+        }
+        FileManifest manifest = new FileManifest(fileName, fileSize, chunkSize, version, createdAt, chunks);
+        manifest.checksum = checksum;
+        return manifest;
+    }
+
+    public static class Chunk {
+        private final String location;
+        private final String partName;
+        private final long offset;
+        private final long length;
+        // Compression (ChunkCodec) et taille du bloc tel qu'il est stocké sur le sous-serveur
+        private final byte codec;
+        private final long storedLength;
+        // CRC32C du contenu d'origine, calculé pendant la réception et vérifié à chaque lecture
+        private final long checksum;
+
+        public Chunk(String location, String partName, long offset, long length) {
+            this(location, partName, offset, length, ChunkCodec.NONE, length, Checksums.UNKNOWN);
+        }
+
+        public Chunk(String location, String partName, long offset, long length, byte codec, long storedLength, long checksum) {
+            this.location = location;
+            this.partName = partName;
+            this.offset = offset;
+            this.length = length;
+            this.codec = codec;
+            this.storedLength = storedLength;
+            this.checksum = checksum;
+        }
+
+        public Chunk withStorage(byte codec, long storedLength) {
+            return new Chunk(location, partName, offset, length, codec, storedLength, checksum);
+        }
+
+        public Chunk withLocation(String location) {
+            return new Chunk(location, partName, offset, length, codec, storedLength, checksum);
+        }
+
+        public Chunk withChecksum(long checksum) {
+            return new Chunk(location, partName, offset, length, codec, storedLength, checksum);
+        }
+
+        public String getLocation() { return location; }
+        public String getPartName() { return partName; }
+        public long getOffset() { return offset; }
+        public long getLength() { return length; }
+        public byte getCodec() { return codec; }
+        public long getStoredLength() { return storedLength; }
+        public long getChecksum() { return checksum; }
+    }
+}
@@ -1,16 +1,27 @@
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.HashSet;
+import java.text.SimpleDateFormat;
 
 public class FileTransferCLI {
+    private static final int PAGE_SIZE = 50;
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
     private Client client;
     private FileTransferHistory fileHistory;
+    private BatchTransfer batchTransfer;
     private Scanner scanner;
 
     public FileTransferCLI() {
         this.client = new Client();
         this.fileHistory = new FileTransferHistory(client);
+        this.batchTransfer = new BatchTransfer(client.getHost(), client.getPort());
         this.scanner = new Scanner(System.in);
     }
 
@@ -37,8 +48,15 @@ public class FileTransferCLI {
                 case "5":
                     showHistory();
                     break;
+                case "6":
+                    sendFiles();
+                    break;
+                case "7":
+                    retrieveFiles();
+                    break;
                 case "0":
                     System.out.println("Au revoir!");
+                    client.close();
                     scanner.close();
                     return;
                 default:
@@ -54,6 +72,8 @@ public class FileTransferCLI {
         System.out.println("3. Lister les fichiers disponibles");
         System.out.println("4. Supprimer un fichier");
         System.out.println("5. Voir l'historique des transferts");
+        System.out.println("6. Envoyer un dossier ou plusieurs fichiers (motif)");
+        System.out.println("7. Récupérer plusieurs fichiers (préfixe ou motif)");
         System.out.println("0. Quitter");
         System.out.print("\nChoisissez une option: ");
     }
@@ -87,29 +107,122 @@ public class FileTransferCLI {
         client.retrieveFile(fileName);
     }
 
+    private void sendFiles() {
+        System.out.print("\nEntrez un dossier ou un motif (ex: /chemin/build/**/*.class): ");
+        String pattern = scanner.nextLine().trim();
+
+        List<BatchTransfer.LocalFile> files;
+        try {
+            files = BatchTransfer.expand(pattern);
+        } catch (IOException e) {
+            System.out.println("Erreur: " + e.getMessage());
+            return;
+        }
+        if (files.isEmpty()) {
+            System.out.println("Aucun fichier ne correspond.");
+            return;
+        }
+        System.out.println(files.size() + " fichiers à envoyer...");
+
+        BatchTransfer.Result result = batchTransfer.sendFiles(files);
+        System.out.println(result);
+        if (result.getFailed() == 0) {
+            for (BatchTransfer.LocalFile file : files) {
+                fileHistory.addFileTransfer(file.getName(), file.getFile().getPath());
+            }
+        }
+    }
+
+    private void retrieveFiles() {
+        System.out.print("\nEntrez un préfixe ou un motif (ex: build/**/*.class): ");
+        String pattern = scanner.nextLine().trim();
+
+        // Le serveur filtre sur la partie fixe du motif, le reste est comparé ici
+        int wildcard = indexOfWildcard(pattern);
+        String prefix = wildcard < 0 ? pattern : pattern.substring(0, wildcard);
+        PathMatcher matcher = wildcard < 0 ? null : FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        List<FileTransferHistory.RemoteFile> files = new ArrayList<>();
+        String startAfter = "";
+        FileTransferHistory.FilePage page;
+        do {
+            page = fileHistory.listFiles(prefix, startAfter, 1000);
+            for (FileTransferHistory.RemoteFile file : page.getFiles()) {
+                if (matcher == null || matcher.matches(Paths.get(file.getFileName()))) {
+                    files.add(file);
+                }
+            }
+            startAfter = page.getLastName();
+        } while (page.hasMore());
+
+        if (files.isEmpty()) {
+            System.out.println("Aucun fichier ne correspond.");
+            return;
+        }
+        System.out.println(files.size() + " fichiers à récupérer...");
+        System.out.println(batchTransfer.retrieveFiles(files));
+    }
+
+    private static int indexOfWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private void listFiles() {
+        System.out.print("\nPréfixe des fichiers à lister (Entrée pour tous): ");
+        String prefix = scanner.nextLine().trim();
         System.out.println("\nListe des fichiers disponibles:");
-        HashSet<String> files = fileHistory.getAvailableFiles();
-        
-        if (files.isEmpty()) {
+
+        FileTransferHistory.FilePage page = fileHistory.listFiles(prefix, "", PAGE_SIZE);
+        if (page.getFiles().isEmpty()) {
             System.out.println("Aucun fichier disponible.");
             return;
         }
 
-        for (String file : files) {
-            System.out.println("- " + file);
+        while (true) {
+            for (FileTransferHistory.RemoteFile file : page.getFiles()) {
+                System.out.printf("- %s (%s, stocké: %s, ratio %.1fx, %s)%n", file.getFileName(), formatFileSize(file.getFileSize()),
+                        formatFileSize(file.getStoredSize()), file.getCompressionRatio(), DATE_FORMAT.format(file.getUploadDate()));
+            }
+            if (!page.hasMore()) {
+                return;
+            }
+            System.out.print("Entrée pour la suite, q pour arrêter: ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                return;
+            }
+            page = fileHistory.listFiles(prefix, page.getLastName(), PAGE_SIZE);
         }
     }
 
     private void deleteFile() {
-        System.out.print("\nEntrez le nom du fichier à supprimer: ");
-        String fileName = scanner.nextLine().trim();
-        
-        boolean success = fileHistory.deleteFileFromServer(fileName);
-        if (success) {
-            System.out.println("Fichier supprimé avec succès.");
+        System.out.print("\nEntrez le nom du fichier à supprimer (plusieurs noms séparés par des virgules, "
+                + "ou un motif comme rapports-*.csv): ");
+        String input = scanner.nextLine().trim();
+        Map<String, Boolean> results;
+        if (input.indexOf('*') >= 0 || input.indexOf('?') >= 0) {
+            results = fileHistory.deleteMatchingFromServer(input);
+            if (results.isEmpty()) {
+                System.out.println("Aucun fichier ne correspond à " + input);
+            }
         } else {
-            System.out.println("Échec de la suppression du fichier.");
+            List<String> fileNames = new ArrayList<>();
+            for (String fileName : input.split(",")) {
+                if (!fileName.trim().isEmpty()) {
+                    fileNames.add(fileName.trim());
+                }
+            }
+            results = fileHistory.deleteFilesFromServer(fileNames);
+        }
+        for (Map.Entry<String, Boolean> result : results.entrySet()) {
+            if (result.getValue()) {
+                System.out.println("Fichier supprimé avec succès: " + result.getKey());
+            } else {
+                System.out.println("Échec de la suppression du fichier: " + result.getKey());
+            }
         }
     }
 
@@ -120,6 +233,13 @@ public class FileTransferCLI {
         fileHistory.showTransferHistory();
     }
 
+    private static String formatFileSize(long size) {
+        if (size < 1024) return size + " B";
+        if (size < 1024 * 1024) return String.format("%.2f KB", size / 1024.0);
+        if (size < 1024 * 1024 * 1024) return String.format("%.2f MB", size / (1024.0 * 1024));
+        return String.format("%.2f GB", size / (1024.0 * 1024 * 1024));
+    }
+
     public static void main(String[] args) {
         FileTransferCLI cli = new FileTransferCLI();
         cli.start();
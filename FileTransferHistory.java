@@ -1,26 +1,13 @@
 import java.io.*;
-import java.net.Socket;
 import java.util.*;
 import java.text.SimpleDateFormat;
 
 public class FileTransferHistory {
     private List<FileTransfer> transfers;
     private Client client;
-    private static Properties config;
-    private static final String SERVER_HOST;
-    private static final int SERVER_PORT;
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-
-    static {
-        config = new Properties();
-        try {
-            config.load(new FileInputStream("config.properties"));
-        } catch (IOException e) {
-            System.err.println("Erreur lors du chargement de la configuration: " + e.getMessage());
-        }
-        SERVER_HOST = config.getProperty("main.server.host", "localhost");
-        SERVER_PORT = Integer.parseInt(config.getProperty("main.server.port", "5000"));
-    }
+    // Noms par requête DELETE_FILES, limite du serveur
+    private static final int MAX_DELETE_BATCH = 1000;
 
     public FileTransferHistory(Client client) {
         this.transfers = new ArrayList<>();
@@ -34,35 +21,86 @@ public class FileTransferHistory {
 
     public HashSet<String> getAvailableFiles() {
         HashSet<String> availableFiles = new HashSet<>();
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+        FilePage page = null;
+        do {
+            String cursor = page == null ? "" : page.getLastName();
+            page = listFiles("", cursor, 1000);
+            for (RemoteFile file : page.getFiles()) {
+                availableFiles.add(file.getFileName());
+            }
+        } while (page.hasMore());
+        return availableFiles;
+    }
 
-            dos.writeUTF("LIST_FILES");
+    // Une page de fichiers dont le nom commence par prefix, après le curseur startAfter ("" pour la première)
+    public FilePage listFiles(String prefix, String startAfter, int limit) {
+        List<RemoteFile> files = new ArrayList<>();
+        boolean hasMore = false;
+        ClientSession session = client.getSession();
+        try {
+            DataOutputStream dos = session.startRequest("LIST_FILES_PAGE");
+            dos.writeUTF(prefix);
+            dos.writeUTF(startAfter);
+            dos.writeInt(limit);
+            DataInputStream dis = session.awaitResponse();
             int fileCount = dis.readInt();
             
             for (int i = 0; i < fileCount; i++) {
-                availableFiles.add(dis.readUTF());
+                files.add(new RemoteFile(dis.readUTF(), dis.readLong(), dis.readLong(), new Date(dis.readLong())));
             }
+            hasMore = dis.readBoolean();
         } catch (IOException e) {
+            session.reset();
             System.err.println("Erreur lors de la récupération de la liste des fichiers: " + e.getMessage());
         }
-        return availableFiles;
+        return new FilePage(files, hasMore);
     }
 
     public boolean deleteFileFromServer(String fileName) {
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+        return deleteFilesFromServer(Collections.singletonList(fileName)).get(fileName);
+    }
 
-            dos.writeUTF("DELETE_FILE");
-            dos.writeUTF(fileName);
+    // Une requête DELETE_FILES par lot de noms; le serveur répond pour chaque fichier
+    public Map<String, Boolean> deleteFilesFromServer(List<String> fileNames) {
+        return deleteFromServer("", fileNames);
+    }
 
-            return dis.readBoolean();
+    // Fichiers dont le nom correspond au motif: * pour toute suite de caractères, ? pour un caractère
+    // ("rapports/2023-*" pour un préfixe)
+    public Map<String, Boolean> deleteMatchingFromServer(String pattern) {
+        return deleteFromServer(pattern, Collections.emptyList());
+    }
+
+    private Map<String, Boolean> deleteFromServer(String pattern, List<String> fileNames) {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        ClientSession session = client.getSession();
+        try {
+            int start = 0;
+            do {
+                List<String> batch = fileNames.subList(start, Math.min(start + MAX_DELETE_BATCH, fileNames.size()));
+                DataOutputStream dos = session.startRequest("DELETE_FILES");
+                dos.writeUTF(start == 0 ? pattern : "");
+                dos.writeInt(batch.size());
+                for (String fileName : batch) {
+                    dos.writeUTF(fileName);
+                }
+                start += batch.size();
+                // Réponse lue avant le lot suivant: une longue liste de résultats ne doit pas remplir les
+                // tampons pendant que le client écrit encore ses requêtes
+                DataInputStream dis = session.awaitResponse();
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    results.put(dis.readUTF(), dis.readBoolean());
+                }
+            } while (start < fileNames.size());
         } catch (IOException e) {
+            session.reset();
             System.err.println("Erreur lors de la suppression du fichier: " + e.getMessage());
-            return false;
         }
+        for (String fileName : fileNames) {
+            results.putIfAbsent(fileName, false);
+        }
+        return results;
     }
 
     public void showTransferHistory() {
@@ -96,4 +134,40 @@ public class FileTransferHistory {
         public String getFilePath() { return filePath; }
         public Date getTransferDate() { return transferDate; }
     }
-}
\ No newline at end of file
+
+    public static class RemoteFile {
+        private String fileName;
+        private long fileSize;
+        // Place occupée sur les sous-serveurs, après compression
+        private long storedSize;
+        private Date uploadDate;
+
+        public RemoteFile(String fileName, long fileSize, long storedSize, Date uploadDate) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.storedSize = storedSize;
+            this.uploadDate = uploadDate;
+        }
+
+        public String getFileName() { return fileName; }
+        public long getFileSize() { return fileSize; }
+        public long getStoredSize() { return storedSize; }
+        public double getCompressionRatio() { return storedSize == 0 ? 1 : (double) fileSize / storedSize; }
+        public Date getUploadDate() { return uploadDate; }
+    }
+
+    public static class FilePage {
+        private List<RemoteFile> files;
+        private boolean hasMore;
+
+        public FilePage(List<RemoteFile> files, boolean hasMore) {
+            this.files = files;
+            this.hasMore = hasMore;
+        }
+
+        public List<RemoteFile> getFiles() { return files; }
+        public boolean hasMore() { return hasMore; }
+        // Curseur de la page suivante
+        public String getLastName() { return files.isEmpty() ? "" : files.get(files.size() - 1).getFileName(); }
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Génère de nombreux clients simultanés contre le serveur principal (LIST_FILES, RETRIEVE_FILE, ou un
+// mélange d'envois et de récupérations).
+// Usage: java LoadGenerator <list|retrieve|mix> <clients> <requêtes par client> [fichier] [--embedded] [--session]
+//                           [--tailles=4K:60,1M:30,32M:10] [--lecture=70] [--graine=1]
+//                           [--resultats=fichier] [--reference=fichier]
+// --embedded démarre le serveur principal et les sous-serveurs dans ce processus pour mesurer
+// leurs threads et leur mémoire.
+// --session garde une connexion persistante par client au lieu d'une connexion par requête.
+// mix tire pour chaque requête une taille de fichier selon les poids de --tailles, puis une
+// récupération (--lecture pour cent des requêtes) ou un envoi de contenu nouveau de cette taille.
+// Les tirages dépendent seulement de --graine: deux séries avec la même graine envoient la même charge.
+// --resultats et --reference enregistrent ou comparent débit et latences (voir BenchmarkResults).
+public class LoadGenerator {
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static String host;
+    private static int port;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: java LoadGenerator <list|retrieve|mix> <clients> <requêtes par client> [fichier] [--embedded] [--session]");
+            System.exit(1);
+        }
+        String mode = args[0];
+        int clients = Integer.parseInt(args[1]);
+        int requestsPerClient = Integer.parseInt(args[2]);
+        String fileName = args.length > 3 && !args[3].startsWith("--") ? args[3] : null;
+        boolean embedded = Arrays.asList(args).contains("--embedded");
+        // Les envois du mélange passent par des sessions, seules à confirmer l'enregistrement
+        boolean persistent = Arrays.asList(args).contains("--session") || mode.equals("mix");
+        String sizes = BenchmarkResults.option(args, "--tailles=");
+        String readPercent = BenchmarkResults.option(args, "--lecture=");
+        String seed = BenchmarkResults.option(args, "--graine=");
+        FileMix mix = new FileMix(sizes == null ? "4K:60,1M:30,32M:10" : sizes,
+                readPercent == null ? 70 : Integer.parseInt(readPercent), seed == null ? 1 : Long.parseLong(seed));
+        if (mode.equals("retrieve") && fileName == null) {
+            System.err.println("Le mode retrieve nécessite un nom de fichier déjà stocké");
+            System.exit(1);
+        }
+
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream("config.properties")) {
+            config.load(fis);
+        }
+        host = config.getProperty("main.server.host", "localhost");
+        port = Integer.parseInt(config.getProperty("main.server.port", "5000"));
+        if (embedded) {
+            startEmbeddedServers(config);
+        }
+        if (mode.equals("mix")) {
+            mix.uploadReferenceFiles();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        long[] latencies = new long[clients * requestsPerClient];
+        int[] operations = new int[latencies.length];
+        AtomicLong latencyIndex = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int c = 0; c < clients; c++) {
+            int clientIndex = c;
+            Thread client = new Thread(() -> {
+                ClientSession session = persistent ? new ClientSession(host, port) : null;
+                Random random = mix.randomFor(clientIndex);
+                ready.countDown();
+                try {
+                    start.await();
+                    for (int r = 0; r < requestsPerClient; r++) {
+                        int operation = READ;
+                        long begin = System.nanoTime();
+                        try {
+                            if (mode.equals("list")) {
+                                bytes.addAndGet(listFiles(session));
+                            } else if (mode.equals("mix")) {
+                                int sizeClass = mix.nextSize(random);
+                                if (mix.nextIsRead(random)) {
+                                    bytes.addAndGet(retrieveFile(session, mix.referenceName(sizeClass)));
+                                } else {
+                                    operation = WRITE;
+                                    bytes.addAndGet(sendFile(session, "charge-" + clientIndex + "-" + mix.label(sizeClass) + ".bin",
+                                            mix.size(sizeClass), random.nextLong()));
+                                }
+                            } else {
+                                bytes.addAndGet(retrieveFile(session, fileName));
+                            }
+                            completed.incrementAndGet();
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                            if (session != null) {
+                                session.reset();
+                            }
+                        }
+                        int index = (int) latencyIndex.getAndIncrement();
+                        latencies[index] = System.nanoTime() - begin;
+                        operations[index] = operation;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (session != null) {
+                        session.close();
+                    }
+                    done.countDown();
+                }
+            }, "load-client-" + c);
+            client.setDaemon(true);
+            client.start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        Runtime runtime = Runtime.getRuntime();
+        int count = (int) latencyIndex.get();
+        long[] measured = Arrays.copyOf(latencies, count);
+        Arrays.sort(measured);
+        BenchmarkResults results = new BenchmarkResults();
+        double requestRate = (completed.get() + failed.get()) / seconds;
+        double throughput = bytes.get() / 1048576.0 / seconds;
+        System.out.printf("Mode %s: %d clients x %d requêtes en %.2f s%n", mode, clients, requestsPerClient, seconds);
+        System.out.printf("Connexions/s: %.0f (réussies %d, échouées %d), débit %.1f Mo/s%n",
+                requestRate, completed.get(), failed.get(), throughput);
+        printLatencies("Latence", mode + ".latence", measured, results);
+        if (mode.equals("mix")) {
+            System.out.println("Mélange: " + mix);
+            printLatencies("  récupérations", mode + ".recuperation", select(latencies, operations, count, READ), results);
+            printLatencies("  envois", mode + ".envoi", select(latencies, operations, count, WRITE), results);
+        }
+        System.out.printf("Threads (pic, processus): %d, mémoire utilisée: %.1f Mo%n", threads.getPeakThreadCount(),
+                (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+        if (!mode.equals("list")) {
+            printCacheStats();
+        }
+        results.put(mode + ".requetes.par.seconde", requestRate, 0, true);
+        results.put(mode + ".debit.mo.s", throughput, 0, true);
+        results.put(mode + ".echecs", failed.get(), 0, false);
+        results.finish(args);
+        System.exit(0);
+    }
+
+    private static void printLatencies(String label, String name, long[] sorted, BenchmarkResults results) {
+        System.out.printf("%s: %d requêtes, p50 %.1f ms, p99 %.1f ms, max %.1f ms%n", label, sorted.length,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        if (sorted.length > 0) {
+            results.put(name + ".p50.ms", percentile(sorted, 0.50), 0, false);
+            results.put(name + ".p99.ms", percentile(sorted, 0.99), 0, false);
+        }
+    }
+
+    private static long[] select(long[] latencies, int[] operations, int count, int operation) {
+        long[] selected = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (operations[i] == operation) {
+                selected[n++] = latencies[i];
+            }
+        }
+        selected = Arrays.copyOf(selected, n);
+        Arrays.sort(selected);
+        return selected;
+    }
+
+    private static long listFiles(ClientSession session) throws IOException {
+        if (session != null) {
+            session.startRequest("LIST_FILES");
+            return readFileList(session.awaitResponse());
+        }
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            dos.writeUTF("LIST_FILES");
+            return readFileList(dis);
+        }
+    }
+
+    private static long readFileList(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        long length = 4;
+        for (int i = 0; i < count; i++) {
+            length += dis.readUTF().length() + 2;
+        }
+        return length;
+    }
+
+    private static long retrieveFile(ClientSession session, String fileName) throws IOException {
+        if (session != null) {
+            session.startRequest("RETRIEVE_FILE").writeUTF(fileName);
+            return readFile(session.awaitResponse(), fileName);
+        }
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            dos.writeUTF("RETRIEVE_FILE");
+            dos.writeUTF(fileName);
+            return readFile(dis, fileName);
+        }
+    }
+
+    private static long readFile(DataInputStream dis, String fileName) throws IOException {
+        if (!dis.readBoolean()) {
+            throw new FileNotFoundException(fileName);
+        }
+        long size = dis.readLong();
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = size;
+        while (remaining > 0) {
+            int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+                throw new EOFException("Fichier tronqué");
+            }
+            remaining -= bytesRead;
+        }
+        return size;
+    }
+
+    // Envoie size octets pseudo-aléatoires (seed): le contenu est nouveau, aucun bloc n'est déjà stocké
+    private static long sendFile(ClientSession session, String fileName, long size, long seed) throws IOException {
+        DataOutputStream dos = session.startRequest("SEND_FILE");
+        dos.writeUTF(fileName);
+        dos.writeLong(size);
+        byte[] buffer = new byte[64 * 1024];
+        long state = seed | 1;
+        long remaining = size;
+        while (remaining > 0) {
+            int length = (int) Math.min(buffer.length, remaining);
+            for (int i = 0; i < length; i += 8) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                for (int b = 0; b < 8 && i + b < length; b++) {
+                    buffer[i + b] = (byte) (state >>> (b * 8));
+                }
+            }
+            dos.write(buffer, 0, length);
+            remaining -= length;
+        }
+        if (!session.awaitResponse().readBoolean()) {
+            throw new IOException("Envoi de " + fileName + " refusé");
+        }
+        return size;
+    }
+
+    private static void printCacheStats() {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            dos.writeUTF("CACHE_STATS");
+            long hits = dis.readLong();
+            long misses = dis.readLong();
+            long evictions = dis.readLong();
+            int entries = dis.readInt();
+            long used = dis.readLong();
+            long capacity = dis.readLong();
+            System.out.printf("Cache serveur: %d succès, %d échecs (%.1f%%), %d évictions, %d blocs, %.1f/%.1f Mo%n",
+                    hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses), evictions, entries,
+                    used / 1048576.0, capacity / 1048576.0);
+        } catch (IOException e) {
+            System.out.println("Statistiques du cache indisponibles: " + e.getMessage());
+        }
+    }
+
+    private static void startEmbeddedServers(Properties config) throws InterruptedException {
+        for (String subServer : config.getProperty("subservers.hosts", "localhost:5001,localhost:5002,localhost:5003").split(",")) {
+            int subServerPort = Integer.parseInt(subServer.trim().split(":")[1]);
+            Thread thread = new Thread(() -> new SubServer(subServerPort).start(), "embedded-subserver-" + subServerPort);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(500);
+        Thread mainServer = new Thread(() -> MainServer.main(new String[0]), "embedded-main-server");
+        mainServer.setDaemon(true);
+        mainServer.start();
+        Thread.sleep(500);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    // Répartition des requêtes du mode mix: classes de taille pondérées et part de récupérations
+    private static final class FileMix {
+        private final List<String> labels = new ArrayList<>();
+        private final List<Long> sizes = new ArrayList<>();
+        private final List<Integer> cumulativeWeights = new ArrayList<>();
+        private final int readPercent;
+        private final long seed;
+        private int totalWeight;
+
+        FileMix(String spec, int readPercent, long seed) {
+            for (String entry : spec.split(",")) {
+                String[] parts = entry.trim().split(":");
+                String label = parts[0].trim().toUpperCase();
+                int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+                labels.add(label);
+                sizes.add(parseSize(label));
+                totalWeight += weight;
+                cumulativeWeights.add(totalWeight);
+            }
+            this.readPercent = readPercent;
+            this.seed = seed;
+        }
+
+        Random randomFor(int client) {
+            return new Random(seed * 1_000_003L + client);
+        }
+
+        int nextSize(Random random) {
+            int draw = random.nextInt(totalWeight);
+            int sizeClass = 0;
+            while (draw >= cumulativeWeights.get(sizeClass)) {
+                sizeClass++;
+            }
+            return sizeClass;
+        }
+
+        boolean nextIsRead(Random random) {
+            return random.nextInt(100) < readPercent;
+        }
+
+        String label(int sizeClass) {
+            return labels.get(sizeClass);
+        }
+
+        long size(int sizeClass) {
+            return sizes.get(sizeClass);
+        }
+
+        String referenceName(int sizeClass) {
+            return "charge-" + labels.get(sizeClass) + ".bin";
+        }
+
+        // Un fichier par classe de taille, relu par les récupérations
+        void uploadReferenceFiles() throws IOException {
+            try (ClientSession session = new ClientSession(host, port)) {
+                for (int i = 0; i < labels.size(); i++) {
+                    sendFile(session, referenceName(i), sizes.get(i), seed + i);
+                }
+            }
+        }
+
+        private static long parseSize(String label) {
+            char unit = label.charAt(label.length() - 1);
+            long multiplier = unit == 'K' ? 1024 : unit == 'M' ? 1024 * 1024 : unit == 'G' ? 1024L * 1024 * 1024 : 1;
+            return Long.parseLong(multiplier == 1 ? label : label.substring(0, label.length() - 1)) * multiplier;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < labels.size(); i++) {
+                int weight = cumulativeWeights.get(i) - (i == 0 ? 0 : cumulativeWeights.get(i - 1));
+                text.append(i == 0 ? "" : ", ").append(labels.get(i)).append(" (").append(weight * 100 / totalWeight).append(" %)");
+            }
+            return text.append(", ").append(readPercent).append(" % de récupérations").toString();
+        }
+    }
+}
@@ -1,21 +1,101 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Properties;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class MainServer {
     private static Properties config;
     private static final int MAIN_SERVER_PORT;
+    // Sous-serveurs configurés au démarrage; la réparation relit ensuite la liste et suit ceux qui répondent
     private static final String[] SUBSERVER_HOSTS;
-    private static final int[] SUBSERVER_PORTS;
     private static final String STORAGE_PATH;
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final FileCatalog CATALOG = new FileCatalog();
+    // Blocs stockés et nombre de versions qui les référencent, recalculé au démarrage
+    private static final ChunkIndex INDEX = new ChunkIndex();
+    // Toute modification du catalogue passe par le journal
+    private static final MetadataJournal JOURNAL;
+    // Délai entre deux tentatives de nettoyage des blocs orphelins
+    private static final long CLEANUP_RETRY_MS = 30_000;
+    // Envois interrompus dont les blocs déjà stockés sont gardés pour une reprise
+    private static final Map<String, FileManifest> RESUMABLE = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService RESUME_EXPIRY = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "resume-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long RESUME_GRACE_MS;
+    // Taille maximale d'une page de LIST_FILES_PAGE
+    private static final int MAX_PAGE_SIZE = 1000;
+    // Nombre maximal de fichiers dans une requête SEND_BATCH ou RETRIEVE_BATCH
+    private static final int MAX_BATCH_FILES = 1000;
+    // Taille moyenne visée des blocs, découpés selon leur contenu et répartis à tour de rôle sur les sous-serveurs
+    private static final int CHUNK_SIZE;
+    // Blocs compressés (Deflate) sur les sous-serveurs quand leur échantillon s'y prête
+    private static final boolean STORAGE_COMPRESSION;
+    // Blocs répartis sur tous les sous-serveurs avec une partie de parité (XOR): la perte d'un
+    // sous-serveur ne rend aucun fichier illisible. Sinon chaque bloc est stocké entier sur un seul.
+    private static final boolean STORAGE_PARITY;
+    // Chaque bloc lu est vérifié par son CRC32C; en plus par son empreinte SHA-256 si activé (plus coûteux)
+    private static final boolean STRONG_VERIFY;
+    // Nombre de blocs lus en avance lors d'une récupération
+    private static final int PREFETCH_WINDOW;
+    // Blocs récemment servis, gardés hors du tas pour les fichiers très demandés
+    private static final ChunkCache CACHE;
+    // Connexions client traitées simultanément, et connexions en attente au-delà desquelles on refuse
+    private static final int MAX_CONNECTIONS;
+    private static final int CONNECTION_QUEUE;
+    // Durée maximale d'inactivité d'une session avant de libérer son thread, et durée réduite appliquée
+    // quand des connexions attendent un thread: une session inactive n'occupe alors plus le sien
+    private static final int SESSION_IDLE_TIMEOUT;
+    private static final int SESSION_BUSY_IDLE_TIMEOUT;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    // Nombre de tampons en attente par sous-serveur avant de ralentir la lecture du client
+    private static final int STRIPE_QUEUE_CAPACITY = 64;
+    // Tampons de lecture anticipée par partie lors d'une récupération
+    private static final int PREFETCH_BUFFER_COUNT = 8;
+    private static final ExecutorService STRIPE_EXECUTOR = Executors.newCachedThreadPool();
+    // Commandes client en cours: la réparation ralentit ses copies tant qu'il y en a
+    private static final AtomicInteger ACTIVE_COMMANDS = new AtomicInteger();
+    private static final StripeRepair REPAIR;
+    // Une ligne par requête client: échantillonnée au niveau INFO
+    private static final ServerLog.Sampler REQUEST_LOG = new ServerLog.Sampler();
+    // Durée et échecs de chaque commande client, exposés par ServerMetrics
+    private static final Map<String, ServerMetrics.Timer> COMMAND_TIMERS = new HashMap<>();
+    private static final ServerMetrics.Timer UNKNOWN_COMMAND = ServerMetrics.timer("command.UNKNOWN");
 
     static {
         config = new Properties();
@@ -27,18 +107,39 @@ public class MainServer {
 
         MAIN_SERVER_PORT = Integer.parseInt(config.getProperty("main.server.port", "5000"));
         SUBSERVER_HOSTS = config.getProperty("subservers.hosts", "localhost:5001,localhost:5002,localhost:5003").split(",");
-        SUBSERVER_PORTS = new int[SUBSERVER_HOSTS.length];
-        for (int i = 0; i < SUBSERVER_HOSTS.length; i++) {
-            SUBSERVER_PORTS[i] = Integer.parseInt(SUBSERVER_HOSTS[i].split(":")[1]);
-        }
         STORAGE_PATH = config.getProperty("server.storage.path", 
             System.getProperty("user.home") + File.separator + "ServerFile" + File.separator);
+        CHUNK_SIZE = Integer.parseInt(config.getProperty("storage.chunk.size", String.valueOf(8 * 1024 * 1024)));
+        STORAGE_COMPRESSION = config.getProperty("storage.compression", "deflate").equalsIgnoreCase("deflate");
+        STORAGE_PARITY = config.getProperty("storage.parity", "xor").equalsIgnoreCase("xor");
+        STRONG_VERIFY = Boolean.parseBoolean(config.getProperty("storage.verify.strong", "false"));
+        PREFETCH_WINDOW = Integer.parseInt(config.getProperty("retrieve.prefetch.chunks",
+            String.valueOf(2 * SUBSERVER_HOSTS.length)));
+        CACHE = new ChunkCache(Long.parseLong(config.getProperty("cache.max.bytes", String.valueOf(256L * 1024 * 1024))),
+            ContentChunker.maxSizeFor(CHUNK_SIZE));
+        MAX_CONNECTIONS = Integer.parseInt(config.getProperty("server.max.connections", "256"));
+        CONNECTION_QUEUE = Integer.parseInt(config.getProperty("server.connection.queue", "1024"));
+        SESSION_IDLE_TIMEOUT = Integer.parseInt(config.getProperty("server.session.idle.timeout.ms", "60000"));
+        SESSION_BUSY_IDLE_TIMEOUT = Math.min(SESSION_IDLE_TIMEOUT,
+            Integer.parseInt(config.getProperty("server.session.busy.idle.timeout.ms", "2000")));
+        RESUME_GRACE_MS = Long.parseLong(config.getProperty("server.resume.grace.ms", "600000"));
+        JOURNAL = new MetadataJournal(new File(STORAGE_PATH), CATALOG,
+            Integer.parseInt(config.getProperty("journal.compact.records", "10000")),
+            Boolean.parseBoolean(config.getProperty("journal.sync", "true")));
+        REPAIR = new StripeRepair(new File("config.properties"), config, SUBSERVER_HOSTS, STORAGE_PARITY, INDEX, CATALOG,
+            JOURNAL, () -> ACTIVE_COMMANDS.get() > 0);
+        for (String command : new String[] {"SEND_FILE", "SEND_FILE_DELTA", "SEND_BATCH", "RETRIEVE_FILE",
+                "RETRIEVE_FILE_RANGE", "RETRIEVE_BATCH", "LIST_FILES", "LIST_FILES_PAGE", "DELETE_FILE", "DELETE_FILES", "CACHE_STATS"}) {
+            COMMAND_TIMERS.put(command, ServerMetrics.timer("command." + command));
+        }
     }
 
     public static void main(String[] args) {
         printServerBanner();
         try {
             initializeStorage();
+            REPAIR.start();
+            ServerMetrics.start("MainServer", null, MAIN_SERVER_PORT);
             startServer();
         } catch (IOException e) {
             logError("Erreur fatale du serveur", e);
@@ -52,68 +153,119 @@ public class MainServer {
         System.out.println("Port principal: " + MAIN_SERVER_PORT);
         System.out.println("Stockage: " + STORAGE_PATH);
         System.out.println("Sous-serveurs configurés: " + SUBSERVER_HOSTS.length);
+        System.out.println("Taille des blocs: " + formatFileSize(CHUNK_SIZE));
+        System.out.println("Parité: " + (STORAGE_PARITY && SUBSERVER_HOSTS.length > 1
+            ? "XOR (" + (SUBSERVER_HOSTS.length - 1) + " parties de données + 1 de parité par bloc)" : "désactivée"));
+        System.out.println("Cache des blocs: " + (CACHE.isEnabled() ? formatFileSize(CACHE.getCapacityBytes()) : "désactivé"));
         System.out.println("----------------------------------------");
     }
 
     private static void initializeStorage() throws IOException {
-        // Créer les répertoires pour chaque sous-serveur
-        for (int port : SUBSERVER_PORTS) {
-            Path subServerPath = Paths.get(STORAGE_PATH + "SubServer" + port);
-            Files.createDirectories(subServerPath);
-            logInfo("Répertoire sous-serveur initialisé: " + subServerPath);
-        }
-
-        // Créer le répertoire principal
+        // Les blocs sont stockés par les processus SubServer, seules les métadonnées sont locales
         Path mainStoragePath = Paths.get(STORAGE_PATH);
         Files.createDirectories(mainStoragePath);
         logInfo("Répertoire principal initialisé: " + mainStoragePath);
+
+        long start = System.currentTimeMillis();
+        List<FileManifest> orphaned = JOURNAL.replay();
+        for (FileManifest manifest : CATALOG.list("", "", Integer.MAX_VALUE)) {
+            INDEX.load(manifest, true);
+        }
+        for (FileManifest manifest : orphaned) {
+            INDEX.load(manifest, false);
+        }
+        logInfo("Catalogue chargé: " + CATALOG.size() + " fichiers, " + INDEX.size() + " blocs en "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        if (!orphaned.isEmpty()) {
+            logInfo(orphaned.size() + " envois interrompus ou versions remplacées à nettoyer");
+            startOrphanCleanup(orphaned);
+        }
+    }
+
+    // Les sous-serveurs peuvent démarrer après le serveur principal: on réessaie jusqu'à y parvenir
+    private static void startOrphanCleanup(List<FileManifest> orphaned) {
+        Thread cleanup = new Thread(() -> {
+            List<FileManifest> remaining = new ArrayList<>(orphaned);
+            // Les références ne sont retirées qu'une fois; les tentatives suivantes ne font que supprimer
+            remaining.removeIf(MainServer::releaseChunks);
+            while (!remaining.isEmpty()) {
+                try {
+                    Thread.sleep(CLEANUP_RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                remaining.removeIf(MainServer::deleteUnreferenced);
+            }
+            logInfo("Nettoyage des blocs orphelins terminé");
+        }, "orphan-cleanup");
+        cleanup.setDaemon(true);
+        cleanup.start();
     }
 
     private static void startServer() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(MAIN_SERVER_PORT)) {
-            logInfo("Serveur démarré et en attente de connexions sur le port " + MAIN_SERVER_PORT);
+        ConnectionExecutor handlers = new ConnectionExecutor("client", MAX_CONNECTIONS, CONNECTION_QUEUE);
+        registerGauges(handlers);
+        try (ServerSocket serverSocket = new ServerSocket(MAIN_SERVER_PORT, CONNECTION_QUEUE)) {
+            logInfo("Serveur démarré et en attente de connexions sur le port " + MAIN_SERVER_PORT
+                    + " (" + MAX_CONNECTIONS + " connexions simultanées)");
             
             while (true) {
                 Socket clientSocket = serverSocket.accept();
+                clientSocket.setTcpNoDelay(true);
                 logInfo("Nouvelle connexion: " + clientSocket.getInetAddress().getHostAddress());
-                new Thread(new ClientHandler(clientSocket)).start();
+                if (!handlers.submit(new ClientHandler(clientSocket, handlers))) {
+                    logError("Serveur saturé, connexion refusée: " + clientSocket.getInetAddress().getHostAddress(), null);
+                    closeQuietly(clientSocket);
+                }
             }
         }
     }
 
+    private static void registerGauges(ConnectionExecutor handlers) {
+        ServerMetrics.gauge("connections.active", handlers::getActiveCount);
+        ServerMetrics.gauge("connections.queued", handlers::getQueueDepth);
+        ServerMetrics.gauge("commands.active", ACTIVE_COMMANDS::get);
+        ServerMetrics.gauge("catalog.files", CATALOG::size);
+        ServerMetrics.gauge("index.chunks", INDEX::size);
+        ServerMetrics.gauge("cache.hits", CACHE::getHits);
+        ServerMetrics.gauge("cache.misses", CACHE::getMisses);
+        ServerMetrics.gauge("cache.hit.percent", () -> {
+            long hits = CACHE.getHits();
+            long lookups = hits + CACHE.getMisses();
+            return lookups == 0 ? 0 : hits * 100 / lookups;
+        });
+        ServerMetrics.gauge("cache.evictions", CACHE::getEvictions);
+        ServerMetrics.gauge("cache.used.bytes", CACHE::getUsedBytes);
+        ServerMetrics.gauge("subservers.unavailable", () -> REPAIR.getUnavailable().size());
+    }
+
     static class ClientHandler implements Runnable {
         private Socket clientSocket;
         private String clientAddress;
+        private final ConnectionExecutor handlers;
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, ConnectionExecutor handlers) {
             this.clientSocket = socket;
             this.clientAddress = socket.getInetAddress().getHostAddress();
+            this.handlers = handlers;
         }
 
         @Override
         public void run() {
-            try (DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                 DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), TRANSFER_BUFFER_SIZE));
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), TRANSFER_BUFFER_SIZE))) {
 
                 String command = dis.readUTF();
-                logInfo("Client " + clientAddress + " - Commande reçue: " + command);
+                if (REQUEST_LOG.sample()) {
+                    logInfo("Client " + clientAddress + " - Commande reçue: " + command);
+                }
 
-                switch (command) {
-                    case "SEND_FILE":
-                        receiveFile(dis);
-                        break;
-                    case "RETRIEVE_FILE":
-                        String fileName = dis.readUTF();
-                        sendFileToClient(fileName, dos);
-                        break;
-                    case "LIST_FILES":
-                        listFiles(dos);
-                        break;
-                    case "DELETE_FILE":
-                        deleteFile(dis, dos);
-                        break;
-                    default:
-                        logError("Commande inconnue reçue: " + command, null);
+                if (command.equals("SESSION")) {
+                    runSession(dis, dos);
+                } else {
+                    // Ancien mode: une seule commande par connexion
+                    handleCommand(command, dis, dos, false);
                 }
             } catch (IOException e) {
                 logError("Erreur avec le client " + clientAddress, e);
@@ -127,165 +279,1524 @@ public class MainServer {
             }
         }
 
-        private void listFiles(DataOutputStream dos) throws IOException {
-            logInfo("Listage des fichiers demandé par " + clientAddress);
-            HashSet<String> uniqueFiles = new HashSet<>();
-            
-            for (int port : SUBSERVER_PORTS) {
-                File subServerDir = new File(STORAGE_PATH + "SubServer" + port);
-                if (subServerDir.exists() && subServerDir.isDirectory()) {
-                    File[] files = subServerDir.listFiles();
-                    if (files != null) {
-                        for (File file : files) {
-                            if (file.getName().contains("_part1")) {
-                                String originalName = file.getName().substring(0, file.getName().indexOf("_part1"));
-                                uniqueFiles.add(originalName);
-                            }
+        // Session: chaque requête est précédée de son identifiant, repris en tête de la réponse.
+        // Les requêtes sont traitées dans l'ordre; le client peut en envoyer plusieurs sans attendre.
+        private void runSession(DataInputStream dis, DataOutputStream dos) throws IOException {
+            clientSocket.setSoTimeout(SESSION_IDLE_TIMEOUT);
+            while (true) {
+                if (!awaitRequest(dis)) {
+                    return;
+                }
+                int requestId = dis.readInt();
+                String command = dis.readUTF();
+                if (command.equals("CLOSE")) {
+                    return;
+                }
+                if (REQUEST_LOG.sample()) {
+                    logInfo("Client " + clientAddress + " - Requête " + requestId + ": " + command);
+                }
+
+                dos.writeInt(requestId);
+                if (!handleCommand(command, dis, dos, true)) {
+                    return;
+                }
+                // Les réponses aux requêtes déjà arrivées partent ensemble
+                if (dis.available() == 0) {
+                    dos.flush();
+                }
+            }
+        }
+
+        // Attend le début de la prochaine requête sans le consommer; false si la session doit être fermée.
+        // Une session inactive garde son thread jusqu'à SESSION_IDLE_TIMEOUT, mais le rend après
+        // SESSION_BUSY_IDLE_TIMEOUT si des connexions attendent: des sessions inactives ne peuvent pas
+        // occuper tous les threads pendant que de nouveaux clients sont refusés.
+        private boolean awaitRequest(DataInputStream dis) throws IOException {
+            if (dis.available() > 0) {
+                return true;
+            }
+            long idleSince = System.currentTimeMillis();
+            clientSocket.setSoTimeout(SESSION_BUSY_IDLE_TIMEOUT);
+            try {
+                while (true) {
+                    dis.mark(1);
+                    try {
+                        if (dis.read() == -1) {
+                            return false;
+                        }
+                        dis.reset();
+                        return true;
+                    } catch (SocketTimeoutException e) {
+                        if (handlers.getQueueDepth() > 0 || System.currentTimeMillis() - idleSince >= SESSION_IDLE_TIMEOUT) {
+                            return false;
                         }
                     }
                 }
+            } finally {
+                clientSocket.setSoTimeout(SESSION_IDLE_TIMEOUT);
+            }
+        }
+
+        // false si la commande est inconnue: la suite du flux ne peut alors plus être interprétée
+        private boolean handleCommand(String command, DataInputStream dis, DataOutputStream dos, boolean session) throws IOException {
+            ACTIVE_COMMANDS.incrementAndGet();
+            long start = System.nanoTime();
+            boolean completed = false;
+            try {
+                boolean known = dispatch(command, dis, dos, session);
+                completed = true;
+                return known;
+            } finally {
+                ACTIVE_COMMANDS.decrementAndGet();
+                COMMAND_TIMERS.getOrDefault(command, UNKNOWN_COMMAND).record(start, completed);
             }
+        }
+
+        private boolean dispatch(String command, DataInputStream dis, DataOutputStream dos, boolean session) throws IOException {
+            switch (command) {
+                case "SEND_FILE":
+                    receiveFile(dis);
+                    if (session) {
+                        dos.writeBoolean(true);
+                    }
+                    return true;
+                case "SEND_FILE_DELTA":
+                    receiveFileDelta(dis, dos);
+                    return true;
+                case "SEND_BATCH":
+                    receiveBatch(dis, dos);
+                    return true;
+                case "RETRIEVE_FILE":
+                    String fileName = dis.readUTF();
+                    sendFileToClient(fileName, dos);
+                    return true;
+                case "RETRIEVE_FILE_RANGE":
+                    sendFileRange(dis, dos);
+                    return true;
+                case "RETRIEVE_BATCH":
+                    sendBatch(dis, dos);
+                    return true;
+                case "LIST_FILES":
+                    listFiles(dos);
+                    return true;
+                case "LIST_FILES_PAGE":
+                    listFilesPage(dis, dos);
+                    return true;
+                case "DELETE_FILE":
+                    deleteFile(dis, dos);
+                    return true;
+                case "DELETE_FILES":
+                    deleteFiles(dis, dos);
+                    return true;
+                case "CACHE_STATS":
+                    sendCacheStats(dos);
+                    return true;
+                default:
+                    logError("Commande inconnue reçue: " + command, null);
+                    return false;
+            }
+        }
+
+        private void sendCacheStats(DataOutputStream dos) throws IOException {
+            long hits = CACHE.getHits();
+            long misses = CACHE.getMisses();
+            logInfo("Cache: " + hits + " succès, " + misses + " échecs, " + CACHE.getEvictions() + " évictions, "
+                    + formatFileSize(CACHE.getUsedBytes()) + " utilisés, demandé par " + clientAddress);
+            dos.writeLong(hits);
+            dos.writeLong(misses);
+            dos.writeLong(CACHE.getEvictions());
+            dos.writeInt(CACHE.getEntryCount());
+            dos.writeLong(CACHE.getUsedBytes());
+            dos.writeLong(CACHE.getCapacityBytes());
+        }
+
+        private void listFiles(DataOutputStream dos) throws IOException {
+            logInfo("Listage des fichiers demandé par " + clientAddress);
+            List<String> uniqueFiles = CATALOG.names();
 
             dos.writeInt(uniqueFiles.size());
             logInfo("Envoi de la liste des fichiers (" + uniqueFiles.size() + " fichiers) à " + clientAddress);
             
+            boolean detailed = ServerLog.isEnabled(ServerLog.DEBUG);
             for (String fileName : uniqueFiles) {
                 dos.writeUTF(fileName);
-                logInfo("- " + fileName);
+                if (detailed) {
+                    ServerLog.debug("- " + fileName);
+                }
             }
         }
 
+        // Page de fichiers filtrés par préfixe: nom, taille, taille stockée et date d'envoi, puis un indicateur de suite.
+        // La page suivante se demande avec le dernier nom reçu comme curseur.
+        private void listFilesPage(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String prefix = dis.readUTF();
+            String startAfter = dis.readUTF();
+            int limit = Math.max(1, Math.min(dis.readInt(), MAX_PAGE_SIZE));
+
+            // Un élément de plus que demandé pour savoir s'il reste une page
+            List<FileManifest> page = CATALOG.list(prefix, startAfter, limit + 1);
+            boolean hasMore = page.size() > limit;
+            if (hasMore) {
+                page = page.subList(0, limit);
+            }
+
+            dos.writeInt(page.size());
+            for (FileManifest manifest : page) {
+                dos.writeUTF(manifest.getFileName());
+                dos.writeLong(manifest.getFileSize());
+                dos.writeLong(manifest.getStoredSize());
+                dos.writeLong(manifest.getCreatedAt());
+            }
+            dos.writeBoolean(hasMore);
+            logInfo("Page de " + page.size() + " fichiers (préfixe \"" + prefix + "\") envoyée à " + clientAddress);
+        }
+
         private void deleteFile(DataInputStream dis, DataOutputStream dos) throws IOException {
             String fileName = dis.readUTF();
             logInfo("Demande de suppression: " + fileName + " par " + clientAddress);
             boolean success = true;
 
-            for (int port : SUBSERVER_PORTS) {
-                String subServerPath = STORAGE_PATH + "SubServer" + port + File.separator;
-                for (int i = 1; i <= 3; i++) {
-                    File partFile = new File(subServerPath + fileName + "_part" + i);
-                    if (partFile.exists()) {
-                        if (partFile.delete()) {
-                            logInfo("Partie " + i + " supprimée sur le sous-serveur " + port);
-                        } else {
-                            success = false;
-                            logError("Échec de la suppression de la partie " + i + " sur " + port, null);
-                        }
-                    }
-                }
+            // Le fichier disparaît d'abord du catalogue: il n'est plus visible pendant la suppression des blocs
+            FileManifest manifest = JOURNAL.delete(fileName);
+            if (manifest != null) {
+                success = releaseChunks(manifest);
             }
 
             dos.writeBoolean(success);
             logInfo("Suppression " + (success ? "réussie" : "échouée") + " pour " + fileName);
         }
 
+        // Suppression groupée: un motif ("" pour aucun, * et ? comme jokers, "prefixe*" pour un préfixe) et une
+        // liste de noms. Les fichiers visés sont retirés du catalogue en une écriture du journal, puis leurs
+        // blocs supprimés par un lot par sous-serveur. Un résultat par fichier; comme pour DELETE_FILE, un
+        // nom absent compte comme supprimé.
+        private void deleteFiles(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String pattern = dis.readUTF();
+            int count = dis.readInt();
+            if (count < 0 || count > MAX_BATCH_FILES) {
+                throw new IOException("Lot invalide: " + count + " fichiers");
+            }
+            Set<String> targets = new LinkedHashSet<>();
+            for (int i = 0; i < count; i++) {
+                targets.add(dis.readUTF());
+            }
+            if (!pattern.isEmpty()) {
+                targets.addAll(CATALOG.namesMatching(pattern));
+            }
+            logInfo("Demande de suppression de " + targets.size() + " fichiers"
+                    + (pattern.isEmpty() ? "" : " (motif \"" + pattern + "\")") + " par " + clientAddress);
+
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            for (String fileName : targets) {
+                results.put(fileName, true);
+            }
+            List<FileManifest> removed = JOURNAL.deleteAll(targets);
+            boolean[] released = releaseChunks(removed);
+            int failures = 0;
+            for (int i = 0; i < removed.size(); i++) {
+                if (!released[i]) {
+                    results.put(removed.get(i).getFileName(), false);
+                    failures++;
+                }
+            }
+
+            dos.writeInt(results.size());
+            for (Map.Entry<String, Boolean> result : results.entrySet()) {
+                dos.writeUTF(result.getKey());
+                dos.writeBoolean(result.getValue());
+            }
+            logInfo(removed.size() + " fichiers supprimés sur " + targets.size() + " demandés"
+                    + (failures == 0 ? "" : ", " + failures + " dont les blocs n'ont pas tous été supprimés"));
+        }
+
         private void receiveFile(DataInputStream dis) throws IOException {
             String fileName = dis.readUTF();
             long fileSize = dis.readLong();
             logInfo("Réception de " + fileName + " (" + formatFileSize(fileSize) + ") depuis " + clientAddress);
 
-            byte[] buffer = new byte[1024];
-            int partSize = (int) Math.ceil(fileSize / 3.0);
+            FileManifest manifest = new FileManifest(fileName, fileSize, CHUNK_SIZE, JOURNAL.nextVersion(), System.currentTimeMillis());
+            JOURNAL.beginUpload(manifest);
+            ChunkWriter writer = new ChunkWriter(fileName);
+            boolean stored = false;
+
+            try {
+                readChunks(dis, manifest, writer);
+                writer.finish();
+                FileManifest previous = JOURNAL.commit(manifest);
+                stored = true;
+                if (previous != null) {
+                    releaseChunks(previous);
+                }
+                releaseResumable(fileName);
+            } finally {
+                if (!stored) {
+                    writer.abort();
+                    keepForResume(manifest, writer.getConfirmedChunks());
+                }
+            }
+
+            logInfo("Fichier " + fileName + " complètement reçu (" + manifest.getChunks().size() + " blocs, "
+                    + writer.getReusedChunks() + " déjà stockés, " + formatFileSize(writer.getReusedBytes()) + " non renvoyés, "
+                    + formatFileSize(manifest.getStoredSize()) + " stockés)");
+        }
+
+        // Découpe le contenu du fichier lu sur le flux et confie ses blocs à writer
+        private void readChunks(DataInputStream dis, FileManifest manifest, ChunkWriter writer) throws IOException {
+            // Les limites de blocs dépendent du contenu: chaque bloc est gardé en mémoire jusqu'à sa fin
+            // pour être nommé par son empreinte avant d'être envoyé (ou seulement référencé)
+            long fileSize = manifest.getFileSize();
+            ContentChunker chunker = new ContentChunker(CHUNK_SIZE);
+            MessageDigest digest = newDigest();
+            // Empreinte et CRC sont calculés dans la même passe que la copie
+            CRC32C crc = new CRC32C();
+            List<Block> pending = new ArrayList<>();
+            long chunkOffset = 0;
+            long chunkLength = 0;
+            long received = 0;
+            while (received < fileSize) {
+                byte[] buffer = new byte[(int) Math.min(TRANSFER_BUFFER_SIZE, fileSize - received)];
+                int bytesRead = dis.read(buffer, 0, buffer.length);
+                if (bytesRead == -1) {
+                    throw new EOFException("Connexion interrompue après " + formatFileSize(received)
+                            + " sur " + formatFileSize(fileSize) + " de " + manifest.getFileName());
+                }
+                received += bytesRead;
+
+                int start = 0;
+                while (start < bytesRead) {
+                    int boundary = chunker.findBoundary(buffer, start, bytesRead - start);
+                    int end = boundary == -1 ? bytesRead : boundary;
+                    digest.update(buffer, start, end - start);
+                    crc.update(buffer, start, end - start);
+                    pending.add(new Block(buffer, start, end - start));
+                    chunkLength += end - start;
+                    if (boundary != -1) {
+                        writer.addChunk(manifest, ContentChunker.partName(digest.digest()), chunkOffset, chunkLength,
+                                crc.getValue(), pending);
+                        crc.reset();
+                        pending = new ArrayList<>();
+                        chunkOffset += chunkLength;
+                        chunkLength = 0;
+                    }
+                    start = end;
+                }
+            }
+            if (chunkLength > 0) {
+                writer.addChunk(manifest, ContentChunker.partName(digest.digest()), chunkOffset, chunkLength,
+                        crc.getValue(), pending);
+            }
+        }
+
+        // Lot de petits fichiers dans une seule requête: leurs blocs partagent les mêmes envois vers les
+        // sous-serveurs et les manifestes sont publiés ensemble, avec une seule écriture forcée du journal.
+        // Le lot est enregistré en entier ou pas du tout.
+        private void receiveBatch(DataInputStream dis, DataOutputStream dos) throws IOException {
+            int count = dis.readInt();
+            if (count < 0 || count > MAX_BATCH_FILES) {
+                throw new IOException("Lot invalide: " + count + " fichiers");
+            }
+            logInfo("Réception d'un lot de " + count + " fichiers depuis " + clientAddress);
+
+            List<FileManifest> manifests = new ArrayList<>(count);
+            ChunkWriter writer = new ChunkWriter("lot de " + count + " fichiers");
+            boolean stored = false;
+            long totalSize = 0;
+
+            try {
+                for (int i = 0; i < count; i++) {
+                    String fileName = dis.readUTF();
+                    long fileSize = dis.readLong();
+                    if (fileSize < 0) {
+                        throw new IOException("Taille invalide pour " + fileName + ": " + fileSize);
+                    }
+                    FileManifest manifest = new FileManifest(fileName, fileSize, CHUNK_SIZE, JOURNAL.nextVersion(), System.currentTimeMillis());
+                    JOURNAL.beginUpload(manifest);
+                    manifests.add(manifest);
+                    readChunks(dis, manifest, writer);
+                    // Le client envoie le CRC du fichier après son contenu: une différence annule tout le lot
+                    long checksum = dis.readInt() & 0xFFFFFFFFL;
+                    if (manifest.computeChecksum() != checksum) {
+                        throw new IOException("Contenu de " + fileName + " altéré pendant le transfert (CRC32C différent)");
+                    }
+                    totalSize += fileSize;
+                }
+
+                writer.finish();
+                List<FileManifest> previous = JOURNAL.commitAll(manifests);
+                stored = true;
+                releaseChunks(previous);
+                for (FileManifest manifest : manifests) {
+                    releaseResumable(manifest.getFileName());
+                }
+            } finally {
+                if (!stored) {
+                    writer.abort();
+                    releaseChunks(manifests);
+                }
+            }
+
+            dos.writeBoolean(true);
+            logInfo("Lot de " + count + " fichiers (" + formatFileSize(totalSize) + ") reçu, "
+                    + writer.getReusedChunks() + " blocs déjà stockés");
+        }
+
+        // Lot de fichiers dans une seule réponse: pour chacun, présence, taille, CRC attendu, contenu et CRC
+        // du contenu envoyé. La lecture anticipée porte sur les blocs de tout le lot, sans pause entre deux
+        // petits fichiers.
+        private void sendBatch(DataInputStream dis, DataOutputStream dos) throws IOException {
+            int count = dis.readInt();
+            if (count < 0 || count > MAX_BATCH_FILES) {
+                throw new IOException("Lot invalide: " + count + " fichiers");
+            }
+            List<FileManifest> manifests = new ArrayList<>(count);
+            List<FileManifest.Chunk> chunks = new ArrayList<>();
+            Deque<PartPrefetch> window = new ArrayDeque<>();
+            int next = 0;
+            int found = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    FileManifest manifest = CATALOG.beginRead(dis.readUTF());
+                    manifests.add(manifest);
+                    if (manifest != null) {
+                        chunks.addAll(manifest.getChunks());
+                    }
+                }
+                logInfo("Demande d'un lot de " + count + " fichiers par " + clientAddress);
+
+                for (FileManifest manifest : manifests) {
+                    dos.writeBoolean(manifest != null);
+                    if (manifest == null) {
+                        continue;
+                    }
+                    found++;
+                    dos.writeLong(manifest.getFileSize());
+                    dos.writeLong(manifest.getChecksum());
+                    CRC32C crc = new CRC32C();
+                    DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(dos, crc));
+                    for (FileManifest.Chunk chunk : manifest.getChunks()) {
+                        while (next < chunks.size() && window.size() < PREFETCH_WINDOW) {
+                            window.addLast(startPrefetch(chunks.get(next++)));
+                        }
+                        PartPrefetch prefetch = window.removeFirst();
+                        try {
+                            if (prefetch.awaitLength() != chunk.getLength()) {
+                                throw new IOException("Bloc " + chunk.getPartName() + " manquant ou de taille inattendue sur "
+                                        + chunk.getLocation());
+                            }
+                            prefetch.drainTo(checked);
+                        } finally {
+                            prefetch.cancel();
+                        }
+                    }
+                    dos.writeInt((int) verifySent(manifest, 0, manifest.getFileSize(), crc));
+                }
+            } finally {
+                for (PartPrefetch prefetch : window) {
+                    prefetch.cancel();
+                }
+                for (FileManifest manifest : manifests) {
+                    if (manifest != null) {
+                        CATALOG.endRead(manifest);
+                    }
+                }
+            }
+            logInfo("Lot de " + found + " fichiers sur " + count + " envoyé à " + clientAddress);
+        }
+
+        // Envoi négocié: le client annonce les empreintes de ses blocs (découpés comme ici), le serveur
+        // répond avec les indices des blocs qu'il n'a pas, et seuls ceux-ci sont transmis
+        private void receiveFileDelta(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            // CRC du fichier calculé par le client pendant son découpage
+            long announcedChecksum = dis.readInt() & 0xFFFFFFFFL;
+            int chunkSize = dis.readInt();
+            int count = dis.readInt();
+            if (count < 0) {
+                throw new IOException("Liste de blocs invalide pour " + fileName + ": " + count + " blocs");
+            }
+            if (chunkSize != CHUNK_SIZE) {
+                // Découpage d'une autre configuration: sa liste (empreinte et longueur par bloc) est ignorée
+                // et le client redécoupe son fichier avec notre taille de bloc
+                byte[] entry = new byte[32 + 4];
+                for (int i = 0; i < count; i++) {
+                    dis.readFully(entry);
+                }
+                refuseChunking(fileName, chunkSize, dos);
+                return;
+            }
+            int maxChunkLength = ContentChunker.maxSizeFor(CHUNK_SIZE);
+            if (count > fileSize / Math.max(1, CHUNK_SIZE / 4) + 1) {
+                throw new IOException("Liste de blocs invalide pour " + fileName + ": " + count + " blocs");
+            }
+            String[] partNames = new String[count];
+            int[] lengths = new int[count];
+            byte[] hash = new byte[32];
+            long total = 0;
+            boolean valid = true;
+            for (int i = 0; i < count; i++) {
+                dis.readFully(hash);
+                partNames[i] = ContentChunker.partName(hash);
+                lengths[i] = dis.readInt();
+                valid &= lengths[i] > 0 && lengths[i] <= maxChunkLength;
+                total += lengths[i];
+            }
+            if (!valid || total != fileSize) {
+                refuseChunking(fileName, chunkSize, dos);
+                return;
+            }
+            dos.writeBoolean(true);
+            logInfo("Réception différentielle de " + fileName + " (" + formatFileSize(fileSize) + ", " + count
+                    + " blocs) depuis " + clientAddress);
 
-            for (int i = 0; i < 3; i++) {
-                String partFileName = fileName + "_part" + (i + 1);
-                String subServerStoragePath = STORAGE_PATH + "SubServer" + SUBSERVER_PORTS[i] + File.separator;
-                Files.createDirectories(Paths.get(subServerStoragePath));
+            FileManifest manifest = new FileManifest(fileName, fileSize, CHUNK_SIZE, JOURNAL.nextVersion(), System.currentTimeMillis());
+            JOURNAL.beginUpload(manifest);
+            ChunkWriter writer = new ChunkWriter(fileName);
+            boolean stored = false;
 
-                try (FileOutputStream fos = new FileOutputStream(subServerStoragePath + partFileName)) {
-                    int bytesRead;
-                    int totalBytesRead = 0;
-                    int remainingBytes = (i == 2) ? (int) (fileSize - (partSize * 2)) : partSize;
+            try {
+                List<Integer> missing = new ArrayList<>();
+                ChunkIndex.Reference[] references = new ChunkIndex.Reference[count];
+                long offset = 0;
+                for (int i = 0; i < count; i++) {
+                    references[i] = writer.assign(manifest, partNames[i], offset, lengths[i], Checksums.UNKNOWN);
+                    if (references[i].mustUpload()) {
+                        missing.add(i);
+                    }
+                    offset += lengths[i];
+                }
+                dos.writeInt(missing.size());
+                for (int index : missing) {
+                    dos.writeInt(index);
+                }
+                dos.flush();
 
-                    while (totalBytesRead < remainingBytes &&
-                            (bytesRead = dis.read(buffer, 0, Math.min(buffer.length, remainingBytes - totalBytesRead))) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
+                // Chaque bloc arrive compressé ou non, au choix du client; son CRC est calculé pendant la
+                // vérification de l'empreinte. Les blocs réutilisés reçoivent celui de l'index.
+                MessageDigest digest = newDigest();
+                CRC32C crc = new CRC32C();
+                for (int index : missing) {
+                    byte codec = dis.readByte();
+                    int wireLength = dis.readInt();
+                    if (codec == ChunkCodec.DEFLATE && wireLength > 0 && wireLength <= lengths[index]) {
+                        byte[] compressed = new byte[wireLength];
+                        dis.readFully(compressed);
+                        byte[] original = ChunkCodec.inflate(compressed, 0, wireLength, lengths[index]);
+                        if (!ContentChunker.partName(digest.digest(original)).equals(partNames[index])) {
+                            throw new IOException("Le contenu du bloc " + index + " de " + fileName + " ne correspond pas à son empreinte");
+                        }
+                        crc.reset();
+                        crc.update(original);
+                        if (STORAGE_COMPRESSION) {
+                            // Déjà compressé par le client: stocké tel quel
+                            writer.uploadStored(references[index], partNames[index], crc.getValue(), ChunkCodec.DEFLATE,
+                                    List.of(new Block(compressed, wireLength)), wireLength);
+                        } else {
+                            writer.upload(references[index], partNames[index], lengths[index], crc.getValue(),
+                                    List.of(new Block(original, original.length)));
+                        }
+                        continue;
+                    }
+                    if (codec != ChunkCodec.NONE || wireLength != lengths[index]) {
+                        throw new IOException("Bloc " + index + " de " + fileName + " mal annoncé: codec " + codec + ", " + wireLength + " octets");
                     }
+                    List<Block> blocks = new ArrayList<>();
+                    int remaining = lengths[index];
+                    crc.reset();
+                    while (remaining > 0) {
+                        byte[] buffer = new byte[Math.min(TRANSFER_BUFFER_SIZE, remaining)];
+                        dis.readFully(buffer);
+                        digest.update(buffer);
+                        crc.update(buffer);
+                        blocks.add(new Block(buffer, buffer.length));
+                        remaining -= buffer.length;
+                    }
+                    // Le contenu doit correspondre à l'empreinte annoncée: c'est elle qui nomme le bloc
+                    if (!ContentChunker.partName(digest.digest()).equals(partNames[index])) {
+                        throw new IOException("Le contenu du bloc " + index + " de " + fileName + " ne correspond pas à son empreinte");
+                    }
+                    writer.upload(references[index], partNames[index], lengths[index], crc.getValue(), blocks);
+                }
 
-                    logInfo("Partie " + (i + 1) + " (" + formatFileSize(totalBytesRead) + ") sauvegardée dans SubServer" + SUBSERVER_PORTS[i]);
+                writer.finish();
+                // Le CRC déduit des blocs doit être celui du fichier du client: les blocs réutilisés sont bien
+                // les siens. Faute de somme pour un ancien bloc, on garde celle du client.
+                if (manifest.getChecksum() == Checksums.UNKNOWN) {
+                    manifest.setChecksum(announcedChecksum);
+                } else if (manifest.getChecksum() != announcedChecksum) {
+                    throw new IOException("Le CRC32C des blocs de " + fileName + " ne correspond pas à celui du client");
+                }
+                FileManifest previous = JOURNAL.commit(manifest);
+                stored = true;
+                if (previous != null) {
+                    releaseChunks(previous);
+                }
+                releaseResumable(fileName);
+            } finally {
+                if (!stored) {
+                    writer.abort();
+                    keepForResume(manifest, writer.getConfirmedChunks());
                 }
             }
 
-            logInfo("Fichier " + fileName + " complètement reçu et distribué");
+            dos.writeBoolean(true);
+            logInfo("Fichier " + fileName + " complètement reçu (" + count + " blocs, " + writer.getReusedChunks()
+                    + " déjà stockés, " + formatFileSize(writer.getReusedBytes()) + " non transmis, "
+                    + formatFileSize(manifest.getStoredSize()) + " stockés)");
+        }
+
+        // Le client redécoupe son fichier avec notre taille de bloc et recommence
+        private void refuseChunking(String fileName, int chunkSize, DataOutputStream dos) throws IOException {
+            logInfo("Découpage de " + fileName + " refusé (taille de bloc " + chunkSize + "), attendu: " + CHUNK_SIZE);
+            dos.writeBoolean(false);
+            dos.writeInt(CHUNK_SIZE);
         }
 
         private void sendFileToClient(String fileName, DataOutputStream dos) throws IOException {
             logInfo("Demande de récupération: " + fileName + " par " + clientAddress);
-            File tempFile = new File(STORAGE_PATH + fileName);
 
-            boolean allPartsExist = verifyAllParts(fileName);
-            dos.writeBoolean(allPartsExist);
+            FileManifest manifest = CATALOG.beginRead(fileName);
+            boolean fileExists = manifest != null;
+            dos.writeBoolean(fileExists);
 
-            if (!allPartsExist) {
-                logError("Parties manquantes pour " + fileName, null);
+            if (!fileExists) {
+                logError("Fichier introuvable: " + fileName, null);
                 return;
             }
 
-            reassembleAndSendFile(fileName, tempFile, dos);
+            try {
+                dos.writeLong(manifest.getFileSize());
+                sendRange(manifest, 0, manifest.getFileSize(), dos);
+            } finally {
+                CATALOG.endRead(manifest);
+            }
+            logInfo("Fichier " + fileName + " envoyé avec succès à " + clientAddress);
         }
 
-        private boolean verifyAllParts(String fileName) {
-            for (int i = 0; i < SUBSERVER_PORTS.length; i++) {
-                String partFileName = fileName + "_part" + (i + 1);
-                String subServerPath = STORAGE_PATH + "SubServer" + SUBSERVER_PORTS[i] + File.separator;
-                File partFile = new File(subServerPath + partFileName);
-                if (!partFile.exists()) {
-                    logError("Partie manquante: " + partFileName, null);
-                    return false;
+        // Partie d'un fichier: reprise d'un téléchargement ou lecture d'une plage d'un gros fichier.
+        // expectedVersion (0 pour aucune) protège une reprise contre un fichier remplacé entre-temps.
+        private void sendFileRange(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            long expectedVersion = dis.readLong();
+            logInfo("Demande de la plage " + offset + "+" + length + " de " + fileName + " par " + clientAddress);
+
+            FileManifest manifest = CATALOG.beginRead(fileName);
+            dos.writeBoolean(manifest != null);
+            if (manifest == null) {
+                logError("Fichier introuvable: " + fileName, null);
+                return;
+            }
+
+            try {
+                long fileSize = manifest.getFileSize();
+                dos.writeLong(manifest.getVersion());
+                dos.writeLong(fileSize);
+                dos.writeLong(manifest.getChecksum());
+                if (expectedVersion != 0 && expectedVersion != manifest.getVersion()) {
+                    dos.writeLong(-1);
+                    return;
                 }
+                long start = Math.min(Math.max(0, offset), fileSize);
+                long rangeLength = length < 0 ? fileSize - start : Math.min(length, fileSize - start);
+                dos.writeLong(rangeLength);
+                // Le CRC de la plage suit son contenu: le client vérifie ce qu'il a reçu
+                dos.writeInt((int) sendRange(manifest, start, rangeLength, dos));
+            } finally {
+                CATALOG.endRead(manifest);
             }
-            return true;
         }
 
-        private void reassembleAndSendFile(String fileName, File tempFile, DataOutputStream dos) throws IOException {
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                for (int i = 0; i < SUBSERVER_PORTS.length; i++) {
-                    String partFileName = fileName + "_part" + (i + 1);
-                    String subServerPath = STORAGE_PATH + "SubServer" + SUBSERVER_PORTS[i] + File.separator;
-                    File partFile = new File(subServerPath + partFileName);
+        // Retourne le CRC32C des octets envoyés, calculé au fil de l'envoi
+        private long sendRange(FileManifest manifest, long offset, long length, DataOutputStream dos) throws IOException {
+            CRC32C crc = new CRC32C();
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(dos, crc));
+            List<FileManifest.Chunk> chunks = manifest.getChunks();
+            long end = offset + length;
+            int first = firstChunkAt(chunks, offset);
 
-                    copyPartToFinalFile(partFile, fos);
-                    logInfo("Partie " + (i + 1) + " assemblée depuis SubServer" + SUBSERVER_PORTS[i]);
+            // Lecture anticipée d'une fenêtre de blocs, envoyés au client dans l'ordre
+            Deque<PartPrefetch> window = new ArrayDeque<>();
+            int next = first;
+            try {
+                for (int i = first; i < chunks.size() && chunks.get(i).getOffset() < end; i++) {
+                    FileManifest.Chunk chunk = chunks.get(i);
+                    while (next < chunks.size() && chunks.get(next).getOffset() < end && window.size() < PREFETCH_WINDOW) {
+                        window.addLast(startPrefetch(chunks.get(next++)));
+                    }
+
+                    PartPrefetch prefetch = window.removeFirst();
+                    try {
+                        long partLength = prefetch.awaitLength();
+                        if (partLength != chunk.getLength()) {
+                            throw new IOException("Bloc " + chunk.getPartName() + " manquant ou de taille inattendue sur "
+                                    + chunk.getLocation());
+                        }
+                        long skip = Math.max(0, offset - chunk.getOffset());
+                        long count = Math.min(chunk.getOffset() + chunk.getLength(), end) - chunk.getOffset() - skip;
+                        prefetch.drainTo(checked, skip, count);
+                    } finally {
+                        prefetch.cancel();
+                    }
                 }
+            } finally {
+                for (PartPrefetch prefetch : window) {
+                    prefetch.cancel();
+                }
+            }
+            return verifySent(manifest, offset, length, crc);
+        }
+
+        // Un fichier envoyé en entier doit avoir le CRC de son manifeste. Sinon l'erreur coupe la connexion
+        // avant la somme de fin: le client ne garde pas le fichier.
+        private long verifySent(FileManifest manifest, long offset, long length, CRC32C crc) throws IOException {
+            if (offset == 0 && length == manifest.getFileSize() && manifest.getChecksum() != Checksums.UNKNOWN
+                    && crc.getValue() != manifest.getChecksum()) {
+                logError("CRC32C de " + manifest.getFileName() + " différent de celui du manifeste", null);
+                throw new IOException("Contenu de " + manifest.getFileName() + " altéré");
             }
+            return crc.getValue();
+        }
 
-            sendReassembledFile(tempFile, dos);
-            tempFile.delete();
-            logInfo("Fichier " + fileName + " envoyé avec succès à " + clientAddress);
+        private PartPrefetch startPrefetch(FileManifest.Chunk chunk) {
+            // Un bloc en cache reste épinglé tant qu'il est dans la fenêtre
+            PartPrefetch prefetch = new PartPrefetch(chunk, CACHE.acquire(chunk.getPartName()));
+            prefetch.start(STRIPE_EXECUTOR);
+            return prefetch;
+        }
+
+        // Indice du bloc contenant l'octet offset (les blocs sont triés par position)
+        private int firstChunkAt(List<FileManifest.Chunk> chunks, long offset) {
+            int low = 0;
+            int high = chunks.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                FileManifest.Chunk chunk = chunks.get(middle);
+                if (chunk.getOffset() + chunk.getLength() <= offset) {
+                    low = middle + 1;
+                } else if (chunk.getOffset() > offset) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Blocs d'un envoi en cours: les blocs nouveaux sont répartis sur les sous-serveurs (ou partent à
+    // tour de rôle vers l'un d'eux sans parité), un pousseur par sous-serveur; ceux déjà stockés sont
+    // seulement référencés
+    static class ChunkWriter {
+        // Fichier ou lot concerné, pour les messages d'erreur
+        private final String description;
+        // Manifestes dont les blocs passent par cet envoi, dans l'ordre
+        private final List<FileManifest> manifests = new ArrayList<>();
+        private ChunkCodec codec;
+        private final Map<String, StripePush> pushes = new LinkedHashMap<>();
+        private final Map<String, Future<Boolean>> acks = new LinkedHashMap<>();
+        private final Map<String, ChunkIndex.Reference> uploaded = new LinkedHashMap<>();
+        private final Map<String, ChunkIndex.Reference> shared = new LinkedHashMap<>();
+        // Parties envoyées de chaque bloc (nom sur le sous-serveur -> sous-serveur)
+        private final Map<String, Map<String, String>> fragments = new LinkedHashMap<>();
+        private int nextServer;
+        private int reusedChunks;
+        private long reusedBytes;
+        private int confirmedChunks;
+
+        ChunkWriter(String description) {
+            this.description = description;
+        }
+
+        void addChunk(FileManifest manifest, String partName, long offset, long length, long checksum,
+                      List<Block> blocks) throws IOException {
+            ChunkIndex.Reference reference = assign(manifest, partName, offset, length, checksum);
+            if (reference.mustUpload()) {
+                upload(reference, partName, length, checksum, blocks);
+            }
+        }
+
+        // Ajoute le bloc au manifeste; son contenu n'est à envoyer que si reference.mustUpload().
+        // checksum peut être inconnu (bloc annoncé par son empreinte seule): l'index le complète à la fin.
+        ChunkIndex.Reference assign(FileManifest manifest, String partName, long offset, long length, long checksum) throws IOException {
+            // Les blocs d'un manifeste arrivent à la suite: seul le dernier manifeste peut être le même
+            if (manifests.isEmpty() || manifests.get(manifests.size() - 1) != manifest) {
+                manifests.add(manifest);
+            }
+            String proposed = proposeLocation();
+            ChunkIndex.Reference reference = INDEX.reference(partName, length, proposed);
+            // Le bloc est journalisé avant d'être envoyé pour être nettoyé en cas d'échec, même après un arrêt du
+            // processus. L'enregistrement n'est pas forcé sur disque: après une coupure de courant, les blocs
+            // d'un envoi en cours peuvent rester sur les sous-serveurs sans être suivis.
+            JOURNAL.chunkAssigned(manifest.getVersion(), manifest.addChunk(reference.getLocation(), partName, offset, length, checksum));
+            if (!reference.mustUpload()) {
+                shared.put(partName, reference);
+                reusedChunks++;
+                reusedBytes += length;
+            } else {
+                uploaded.put(partName, reference);
+                if (reference.getLocation().equals(proposed)) {
+                    nextServer++;
+                }
+            }
+            return reference;
+        }
+
+        // La parité tourne d'un sous-serveur à l'autre d'un bloc au suivant, comme les blocs entiers sans parité.
+        // Un sous-serveur injoignable au dernier passage de la réparation ne reçoit pas de nouveaux blocs.
+        private String proposeLocation() {
+            String[] available = REPAIR.getServers();
+            int first = nextServer % available.length;
+            if (!STORAGE_PARITY || available.length < 2) {
+                return available[first];
+            }
+            String[] servers = new String[available.length];
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = available[(first + i) % servers.length];
+            }
+            return ParityStripe.location(servers);
+        }
+
+        // Compresse le bloc si son échantillon s'y prête, puis l'envoie
+        void upload(ChunkIndex.Reference reference, String partName, long length, long checksum, List<Block> blocks) throws IOException {
+            if (STORAGE_COMPRESSION) {
+                if (codec == null) {
+                    codec = new ChunkCodec();
+                }
+                codec.begin();
+                boolean compressible = true;
+                for (Block block : blocks) {
+                    if (!(compressible = codec.update(block.data, block.offset, block.length))) {
+                        break;
+                    }
+                }
+                List<byte[]> compressed = compressible ? codec.finish() : null;
+                if (compressed != null) {
+                    List<Block> storedBlocks = new ArrayList<>(compressed.size());
+                    for (byte[] piece : compressed) {
+                        storedBlocks.add(new Block(piece, piece.length));
+                    }
+                    uploadStored(reference, partName, checksum, ChunkCodec.DEFLATE, storedBlocks, codec.getCompressedLength());
+                    return;
+                }
+            }
+            uploadStored(reference, partName, checksum, ChunkCodec.NONE, blocks, length);
+        }
+
+        // Envoie le bloc sous sa forme stockée (compressée ou non); checksum est le CRC du contenu d'origine
+        void uploadStored(ChunkIndex.Reference reference, String partName, long checksum, byte storedCodec,
+                          List<Block> storedBlocks, long storedLength) throws IOException {
+            INDEX.setStorage(partName, storedCodec, storedLength, checksum);
+            String[] servers = ParityStripe.servers(reference.getLocation());
+            Map<String, String> sent = new LinkedHashMap<>();
+            fragments.put(partName, sent);
+            if (servers.length == 1) {
+                StripePush push = pushFor(servers[0]);
+                sent.put(partName, servers[0]);
+                push.beginChunk(partName, storedLength);
+                for (Block block : storedBlocks) {
+                    push.offer(block.data, block.offset, block.length);
+                }
+                push.endChunk();
+                return;
+            }
+            // Les parties vides (bloc plus petit que la rangée) ne sont pas stockées
+            int dataParts = servers.length - 1;
+            StripePush[] targets = new StripePush[servers.length];
+            for (int i = 0; i < servers.length; i++) {
+                long fragmentLength = ParityStripe.fragmentLength(storedLength, dataParts, i);
+                if (fragmentLength > 0) {
+                    String fragmentName = ParityStripe.fragmentName(partName, i, servers.length);
+                    targets[i] = pushFor(servers[i]);
+                    sent.put(fragmentName, servers[i]);
+                    targets[i].beginChunk(fragmentName, fragmentLength);
+                }
+            }
+            ParityStripe.Encoder encoder = new ParityStripe.Encoder(dataParts,
+                (fragment, data, offset, length) -> targets[fragment].offer(data, offset, length));
+            for (Block block : storedBlocks) {
+                encoder.write(block.data, block.offset, block.length);
+            }
+            encoder.finish();
+            for (StripePush target : targets) {
+                if (target != null) {
+                    target.endChunk();
+                }
+            }
+        }
+
+        private StripePush pushFor(String subServer) {
+            StripePush push = pushes.get(subServer);
+            if (push == null) {
+                push = new StripePush(subServer);
+                pushes.put(subServer, push);
+                acks.put(subServer, STRIPE_EXECUTOR.submit(push));
+            }
+            return push;
+        }
+
+        // Attend les accusés des sous-serveurs, puis les blocs partagés envoyés par d'autres transferts
+        void finish() throws IOException {
+            try {
+                for (StripePush push : pushes.values()) {
+                    push.finish();
+                }
+                for (Map.Entry<String, Future<Boolean>> ack : acks.entrySet()) {
+                    if (!ack.getValue().get()) {
+                        throw new IOException("Le sous-serveur " + ack.getKey() + " a refusé un bloc de " + description);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Réception interrompue pour " + description);
+            } catch (ExecutionException e) {
+                throw new IOException("Échec de l'envoi d'un bloc de " + description, e.getCause());
+            }
+            // Nos propres blocs sont confirmés avant d'attendre ceux des autres: pas d'attente circulaire
+            for (ChunkIndex.Reference reference : uploaded.values()) {
+                reference.complete(true);
+            }
+            for (Map.Entry<String, ChunkIndex.Reference> entry : shared.entrySet()) {
+                entry.getValue().awaitStored(entry.getKey());
+            }
+            // Tous les blocs sont stockés: les manifestes reçoivent leur forme définitive et le CRC du fichier
+            for (FileManifest manifest : manifests) {
+                List<FileManifest.Chunk> chunks = manifest.getChunks();
+                for (int i = 0; i < chunks.size(); i++) {
+                    manifest.setChunk(i, INDEX.stored(chunks.get(i)));
+                }
+                manifest.setChecksum(manifest.computeChecksum());
+            }
+            endCodec();
+        }
+
+        void abort() {
+            endCodec();
+            for (StripePush push : pushes.values()) {
+                push.abort();
+            }
+            for (Future<Boolean> task : acks.values()) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException ignored) {
+                }
+            }
+            // Les blocs dont toutes les parties ont été confirmées avant l'interruption restent utilisables
+            confirmedChunks = 0;
+            for (Map.Entry<String, ChunkIndex.Reference> entry : uploaded.entrySet()) {
+                Map<String, String> sent = fragments.get(entry.getKey());
+                boolean confirmed = sent != null;
+                if (sent != null) {
+                    for (Map.Entry<String, String> fragment : sent.entrySet()) {
+                        confirmed &= pushes.get(fragment.getValue()).isConfirmed(fragment.getKey());
+                    }
+                }
+                entry.getValue().complete(confirmed);
+                if (confirmed) {
+                    confirmedChunks++;
+                }
+            }
+        }
+
+        int getConfirmedChunks() { return confirmedChunks; }
+
+        private void endCodec() {
+            if (codec != null) {
+                codec.end();
+                codec = null;
+            }
+        }
+
+        int getReusedChunks() { return reusedChunks; }
+        long getReusedBytes() { return reusedBytes; }
+    }
+
+    static class StripePush implements Callable<Boolean> {
+        private static final Step END_OF_CHUNK = new Step(null, null, 0, 0);
+        private static final Step END_OF_UPLOAD = new Step(null, null, 0, 0);
+        private static final Step ABORTED = new Step(null, null, 0, 0);
+
+        private final String subServer;
+        private final BlockingQueue<Step> steps = new ArrayBlockingQueue<>(STRIPE_QUEUE_CAPACITY);
+        // Blocs acceptés par le sous-serveur, même si l'envoi est ensuite abandonné
+        private final Set<String> confirmed = ConcurrentHashMap.newKeySet();
+        private volatile boolean failed;
+        private boolean done;
+
+        StripePush(String subServer) {
+            this.subServer = subServer;
+        }
+
+        void beginChunk(String partName, long length) throws IOException {
+            enqueue(new Step(partName, null, 0, length));
+        }
+
+        void offer(byte[] buffer, int offset, int length) throws IOException {
+            enqueue(new Step(null, buffer, offset, length));
+        }
+
+        void endChunk() throws IOException {
+            enqueue(END_OF_CHUNK);
+        }
+
+        void finish() throws IOException {
+            enqueue(END_OF_UPLOAD);
+            done = true;
+        }
+
+        // Appelé par le thread lecteur; sans effet si l'envoi a été terminé normalement
+        void abort() {
+            if (!done) {
+                done = true;
+                steps.clear();
+                steps.offer(ABORTED);
+            }
+        }
+
+        boolean isConfirmed(String partName) {
+            return confirmed.contains(partName);
+        }
+
+        private void enqueue(Step step) throws IOException {
+            try {
+                while (!steps.offer(step, 100, TimeUnit.MILLISECONDS)) {
+                    if (failed) {
+                        throw new IOException("Le sous-serveur " + subServer + " n'accepte plus de blocs");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi vers " + subServer + " interrompu");
+            }
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            SubServerClient connection = SubServerClient.borrow(subServer);
+            boolean accepted = true;
+            String current = null;
+            try {
+                while (true) {
+                    Step step = steps.take();
+                    if (step == END_OF_UPLOAD) {
+                        connection.release();
+                        return accepted;
+                    } else if (step == ABORTED) {
+                        // La fermeture de la connexion fait abandonner le bloc en cours au sous-serveur
+                        throw new IOException("Envoi vers " + subServer + " abandonné");
+                    } else if (step == END_OF_CHUNK) {
+                        if (connection.endStore()) {
+                            confirmed.add(current);
+                        } else {
+                            accepted = false;
+                        }
+                    } else if (step.partName != null) {
+                        current = step.partName;
+                        connection.beginStore(step.partName, step.length);
+                    } else {
+                        connection.write(step.data, step.offset, (int) step.length);
+                    }
+                }
+            } catch (Exception e) {
+                failed = true;
+                closeQuietly(connection);
+                throw e;
+            }
+        }
+
+        private static final class Step {
+            final String partName;
+            final byte[] data;
+            final int offset;
+            final long length;
+
+            Step(String partName, byte[] data, int offset, long length) {
+                this.partName = partName;
+                this.data = data;
+                this.offset = offset;
+                this.length = length;
+            }
+        }
+    }
+
+    // Lit un bloc depuis son ou ses sous-serveurs dans un nombre fixe de tampons recyclés, en avance sur
+    // l'envoi au client. Une partie perdue d'un bloc réparti est reconstruite depuis la parité. Le contenu
+    // est vérifié pendant la lecture: un bloc altéré sur le sous-serveur fait échouer l'envoi au lieu
+    // d'être transmis (ou mis en cache) comme valide.
+    static class PartPrefetch implements Callable<Void> {
+        private static final Block END_OF_PART = new Block(new byte[0], 0);
+        private static final Block FAILED = new Block(new byte[0], 0);
+
+        private final String subServer;
+        private final String partName;
+        private final byte codec;
+        private final long storedLength;
+        private final long originalLength;
+        private final long checksum;
+        private final CRC32C crc = new CRC32C();
+        private final MessageDigest digest = STRONG_VERIFY ? newDigest() : null;
+        // Bloc servi depuis le cache, sans lecture sur le sous-serveur
+        private final ChunkCache.Entry cached;
+        private final CompletableFuture<Long> length = new CompletableFuture<>();
+        // Un emplacement de plus que de tampons: le marqueur de fin trouve toujours sa place
+        private final BlockingQueue<Block> filled = new ArrayBlockingQueue<>(PREFETCH_BUFFER_COUNT + 1);
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(PREFETCH_BUFFER_COUNT);
+        private int allocatedBuffers;
+        private Future<Void> task;
+        private volatile ParityStripe.Reader reader;
+        private volatile Exception failure;
+        private ChunkCache.Entry filling;
+        private boolean released;
+
+        PartPrefetch(FileManifest.Chunk chunk, ChunkCache.Entry cached) {
+            // Le bloc a pu être déplacé par la réparation depuis l'écriture du manifeste
+            this.subServer = INDEX.locate(chunk);
+            this.partName = chunk.getPartName();
+            this.codec = chunk.getCodec();
+            this.storedLength = chunk.getStoredLength();
+            this.originalLength = chunk.getLength();
+            this.checksum = chunk.getChecksum();
+            this.cached = cached;
+        }
+
+        void start(ExecutorService executor) {
+            if (cached != null) {
+                length.complete((long) cached.getLength());
+            } else {
+                task = executor.submit(this);
+            }
+        }
+
+        // Taille du bloc décompressé, -1 si le bloc stocké est absent ou n'a pas la taille attendue
+        long awaitLength() throws IOException {
+            try {
+                return length.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente de " + partName + " interrompue");
+            } catch (ExecutionException e) {
+                logError("Bloc inaccessible: " + partName + " sur " + subServer, e.getCause() instanceof Exception ? (Exception) e.getCause() : null);
+                return -1;
+            }
+        }
+
+        void drainTo(DataOutputStream dos) throws IOException {
+            drainTo(dos, 0, Long.MAX_VALUE);
+        }
+
+        // N'envoie que count octets à partir de skip; le bloc est tout de même lu entier pour le cache
+        void drainTo(DataOutputStream dos, long skip, long count) throws IOException {
+            if (cached != null) {
+                ByteBuffer contents = cached.contents();
+                contents.position((int) Math.min(skip, contents.limit()));
+                contents.limit((int) Math.min(contents.limit(), contents.position() + Math.min(count, Integer.MAX_VALUE)));
+                byte[] buffer = new byte[Math.min(TRANSFER_BUFFER_SIZE, Math.max(1, contents.remaining()))];
+                while (contents.hasRemaining()) {
+                    int bytes = Math.min(buffer.length, contents.remaining());
+                    contents.get(buffer, 0, bytes);
+                    dos.write(buffer, 0, bytes);
+                }
+                return;
+            }
+
+            // Le bloc est copié dans le cache au fil de l'envoi, puis publié s'il est complet
+            filling = CACHE.reserve(partName, length.getNow(-1L));
+            long position = 0;
+            long end = skip + Math.min(count, Long.MAX_VALUE - skip);
+            try {
+                while (true) {
+                    Block block = filled.take();
+                    if (block == END_OF_PART) {
+                        if (filling != null) {
+                            CACHE.publish(filling);
+                            filling = null;
+                        }
+                        return;
+                    }
+                    if (block == FAILED) {
+                        throw new IOException("Lecture de " + partName + " sur " + subServer + " interrompue", failure);
+                    }
+                    long from = Math.max(position, skip);
+                    long to = Math.min(position + block.length, end);
+                    if (from < to) {
+                        dos.write(block.data, (int) (from - position), (int) (to - from));
+                    }
+                    position += block.length;
+                    if (filling != null) {
+                        filling.append(block.data, 0, block.length);
+                    }
+                    free.offer(block.data);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi de " + partName + " interrompu");
+            }
         }
 
-        private void copyPartToFinalFile(File partFile, FileOutputStream fos) throws IOException {
-            try (FileInputStream fis = new FileInputStream(partFile)) {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
+        // Sans effet une fois la lecture terminée: la connexion est alors déjà rendue au pool
+        void cancel() {
+            if (!released) {
+                released = true;
+                if (cached != null) {
+                    CACHE.release(cached);
+                }
+                if (filling != null) {
+                    CACHE.discard(filling);
+                    filling = null;
+                }
+            }
+            if (task != null) {
+                task.cancel(true);
+            }
+            ParityStripe.Reader current = reader;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            ParityStripe.Reader current = new ParityStripe.Reader(subServer, partName, storedLength, REPAIR.getUnavailable());
+            reader = current;
+            try {
+                long partSize = current.open();
+                if (codec == ChunkCodec.DEFLATE) {
+                    if (partSize != storedLength) {
+                        length.complete(-1L);
+                        throw new IOException("Bloc compressé " + partName + " absent ou de taille inattendue sur " + subServer);
+                    }
+                    length.complete(originalLength);
+                    inflate(current, partSize);
+                } else {
+                    length.complete(partSize);
+                    long remainingBytes = Math.max(partSize, 0);
+                    while (remainingBytes > 0) {
+                        byte[] buffer = nextFreeBuffer();
+                        int bytesRead = current.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Bloc " + partName + " tronqué sur " + subServer);
+                        }
+                        put(new Block(buffer, bytesRead));
+                        remainingBytes -= bytesRead;
+                    }
+                }
+                reader = null;
+                current.release();
+                if (current.getRebuilt() >= 0) {
+                    logInfo("Bloc " + partName + " reconstruit depuis la parité (partie indisponible sur "
+                            + current.getServer(current.getRebuilt()) + ")");
+                }
+                verify();
+                filled.put(END_OF_PART);
+                return null;
+            } catch (Exception e) {
+                failure = e;
+                length.completeExceptionally(e);
+                filled.offer(FAILED);
+                current.close();
+                throw e;
+            }
+        }
+
+        // Décompresse le bloc au fil de sa lecture: les tampons remplis contiennent le contenu d'origine
+        private void inflate(ParityStripe.Reader current, long partSize) throws IOException, InterruptedException, DataFormatException {
+            Inflater inflater = new Inflater();
+            try {
+                byte[] input = new byte[TRANSFER_BUFFER_SIZE];
+                long remainingBytes = partSize;
+                long produced = 0;
+                byte[] buffer = nextFreeBuffer();
+                int bufferLength = 0;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (remainingBytes == 0) {
+                            throw new EOFException("Bloc compressé " + partName + " tronqué sur " + subServer);
+                        }
+                        int bytesRead = current.read(input, 0, (int) Math.min(input.length, remainingBytes));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Bloc compressé " + partName + " tronqué sur " + subServer);
+                        }
+                        inflater.setInput(input, 0, bytesRead);
+                        remainingBytes -= bytesRead;
+                    }
+                    int bytes = inflater.inflate(buffer, bufferLength, buffer.length - bufferLength);
+                    bufferLength += bytes;
+                    produced += bytes;
+                    if (produced > originalLength || inflater.needsDictionary()) {
+                        throw new IOException("Bloc compressé " + partName + " invalide sur " + subServer);
+                    }
+                    if (bufferLength == buffer.length) {
+                        put(new Block(buffer, bufferLength));
+                        buffer = nextFreeBuffer();
+                        bufferLength = 0;
+                    }
+                }
+                if (bufferLength > 0) {
+                    put(new Block(buffer, bufferLength));
+                } else {
+                    free.offer(buffer);
                 }
+                if (remainingBytes != 0 || produced != originalLength) {
+                    throw new IOException("Bloc compressé " + partName + " de taille inattendue sur " + subServer);
+                }
+            } finally {
+                inflater.end();
             }
         }
 
-        private void sendReassembledFile(File file, DataOutputStream dos) throws IOException {
-            dos.writeLong(file.length());
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
+        private void put(Block block) throws InterruptedException {
+            crc.update(block.data, 0, block.length);
+            if (digest != null) {
+                digest.update(block.data, 0, block.length);
+            }
+            filled.put(block);
+        }
+
+        // Compare le contenu lu aux sommes du manifeste (le nom du bloc est son empreinte SHA-256)
+        private void verify() throws IOException {
+            String problem = null;
+            if (checksum != Checksums.UNKNOWN && crc.getValue() != checksum) {
+                problem = "CRC32C " + Long.toHexString(crc.getValue()) + " au lieu de " + Long.toHexString(checksum);
+            } else if (digest != null && !ContentChunker.partName(digest.digest()).equals(partName)) {
+                problem = "empreinte SHA-256 différente";
+            }
+            if (problem != null) {
+                logError("Bloc corrompu: " + partName + " sur " + subServer + " (" + problem + ")", null);
+                throw new IOException("Bloc " + partName + " corrompu sur " + subServer);
+            }
+        }
+
+        private byte[] nextFreeBuffer() throws InterruptedException {
+            byte[] buffer = free.poll();
+            if (buffer == null) {
+                if (allocatedBuffers < PREFETCH_BUFFER_COUNT) {
+                    allocatedBuffers++;
+                    return new byte[TRANSFER_BUFFER_SIZE];
                 }
+                buffer = free.take();
             }
+            return buffer;
+        }
+    }
+
+    static final class Block {
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        Block(byte[] data, int length) {
+            this(data, 0, length);
+        }
+
+        Block(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
         }
     }
 
     // Méthodes utilitaires pour le logging
     private static void logInfo(String message) {
-        System.out.println("[" + dateFormat.format(new Date()) + "] INFO: " + message);
+        ServerLog.info(message);
     }
 
     private static void logError(String message, Exception e) {
-        System.err.println("[" + dateFormat.format(new Date()) + "] ERROR: " + message);
-        if (e != null) {
-            e.printStackTrace();
+        ServerLog.error(message, e);
+    }
+
+    // Envoi interrompu: ses blocs déjà stockés restent référencés un moment, pour qu'une reprise du même
+    // fichier ne les retransmette pas. Sans bloc confirmé, il n'y a rien à garder.
+    private static void keepForResume(FileManifest manifest, int confirmedChunks) {
+        if (confirmedChunks == 0 || RESUME_GRACE_MS <= 0) {
+            releaseChunks(manifest);
+            return;
+        }
+        FileManifest replaced = RESUMABLE.put(manifest.getFileName(), manifest);
+        if (replaced != null) {
+            releaseChunks(replaced);
+        }
+        logInfo("Envoi de " + manifest.getFileName() + " interrompu: " + confirmedChunks + " blocs gardés pour une reprise");
+        RESUME_EXPIRY.schedule(() -> {
+            if (RESUMABLE.remove(manifest.getFileName(), manifest)) {
+                releaseChunks(manifest);
+            }
+        }, RESUME_GRACE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Appelé après un envoi réussi: les blocs utiles sont désormais référencés par le nouveau manifeste
+    private static void releaseResumable(String fileName) {
+        FileManifest resumable = RESUMABLE.remove(fileName);
+        if (resumable != null) {
+            releaseChunks(resumable);
+        }
+    }
+
+    // Retire les références d'une version qui n'est plus utilisée et supprime les blocs qu'elle était seule à utiliser
+    private static boolean releaseChunks(FileManifest manifest) {
+        return releaseChunks(Collections.singletonList(manifest))[0];
+    }
+
+    // Même chose pour plusieurs versions, avec un seul lot de suppressions par sous-serveur.
+    // Retourne un résultat par version.
+    private static boolean[] releaseChunks(List<FileManifest> manifests) {
+        List<FileManifest> unread = new ArrayList<>(manifests.size());
+        for (FileManifest manifest : manifests) {
+            // Version encore lue par un client: elle est libérée par la dernière lecture en cours
+            if (CATALOG.deferRelease(manifest, () -> releaseChunks(manifest))) {
+                logInfo("Version " + manifest.getVersion() + " de " + manifest.getFileName()
+                        + " en cours de lecture: ses blocs seront libérés à la fin de la lecture");
+                continue;
+            }
+            for (FileManifest.Chunk chunk : manifest.getChunks()) {
+                INDEX.unreference(chunk.getPartName());
+            }
+            unread.add(manifest);
+        }
+        boolean[] deleted = deleteUnreferenced(unread);
+        boolean[] released = new boolean[manifests.size()];
+        for (int i = 0, j = 0; i < manifests.size(); i++) {
+            // Une version différée compte comme libérée
+            released[i] = j >= unread.size() || unread.get(j) != manifests.get(i) || deleted[j++];
+        }
+        return released;
+    }
+
+    // Peut être rappelée après un échec: seuls les blocs encore présents et sans référence sont supprimés
+    private static boolean deleteUnreferenced(FileManifest manifest) {
+        return deleteUnreferenced(Collections.singletonList(manifest))[0];
+    }
+
+    // Un résultat par version: vrai si tous les blocs qu'elle réservait ont été supprimés
+    private static boolean[] deleteUnreferenced(List<FileManifest> manifests) {
+        List<Map<String, List<String>>> claims = new ArrayList<>(manifests.size());
+        Map<String, List<String>> partsByLocation = new LinkedHashMap<>();
+        for (FileManifest manifest : manifests) {
+            Map<String, List<String>> claimed = INDEX.claimUnreferenced(manifest);
+            claims.add(claimed);
+            for (Map.Entry<String, List<String>> entry : claimed.entrySet()) {
+                partsByLocation.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+            }
+        }
+        Set<String> failed = deleteParts(partsByLocation);
+
+        boolean[] deleted = new boolean[manifests.size()];
+        for (int i = 0; i < manifests.size(); i++) {
+            FileManifest manifest = manifests.get(i);
+            boolean complete = true;
+            for (List<String> partNames : claims.get(i).values()) {
+                for (String partName : partNames) {
+                    complete &= !failed.contains(partName);
+                }
+            }
+            if (!complete) {
+                continue;
+            }
+            try {
+                JOURNAL.release(manifest.getVersion());
+                deleted[i] = true;
+            } catch (IOException e) {
+                logError("Écriture du journal impossible après suppression des blocs de " + manifest.getFileName(), e);
+            }
+        }
+        return deleted;
+    }
+
+    // Supprime des blocs: un lot DELETE_PARTS par sous-serveur pour toutes les parties qu'il porte, les
+    // sous-serveurs en parallèle. Un bloc réparti n'est supprimé que si toutes ses parties l'ont été.
+    // Retourne les blocs non supprimés.
+    private static Set<String> deleteParts(Map<String, List<String>> partsByLocation) {
+        // Sous-serveur -> {nom du bloc, nom de la partie}
+        Map<String, List<String[]>> fragmentsByServer = new LinkedHashMap<>();
+        List<String> partNames = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : partsByLocation.entrySet()) {
+            String[] servers = ParityStripe.servers(entry.getKey());
+            for (String partName : entry.getValue()) {
+                partNames.add(partName);
+                for (int i = 0; i < servers.length; i++) {
+                    // Une partie vide n'a jamais été stockée: sa suppression réussit sans rien faire
+                    fragmentsByServer.computeIfAbsent(servers[i], k -> new ArrayList<>())
+                            .add(new String[] {partName, ParityStripe.fragmentName(partName, i, servers.length)});
+                }
+            }
+        }
+        Map<String, Future<List<String>>> deletions = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String[]>> entry : fragmentsByServer.entrySet()) {
+            deletions.put(entry.getKey(), STRIPE_EXECUTOR.submit(() -> deleteFragments(entry.getKey(), entry.getValue())));
+        }
+        Set<String> failed = new HashSet<>();
+        for (Map.Entry<String, Future<List<String>>> deletion : deletions.entrySet()) {
+            try {
+                failed.addAll(deletion.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (String[] fragment : fragmentsByServer.get(deletion.getKey())) {
+                    failed.add(fragment[0]);
+                }
+            } catch (ExecutionException e) {
+                for (String[] fragment : fragmentsByServer.get(deletion.getKey())) {
+                    failed.add(fragment[0]);
+                }
+                logError("Échec de la suppression sur le sous-serveur " + deletion.getKey(), e);
+            }
+        }
+        for (String partName : partNames) {
+            boolean partDeleted = !failed.contains(partName);
+            if (partDeleted) {
+                CACHE.invalidate(partName);
+            }
+            INDEX.deleted(partName, partDeleted);
+        }
+        return failed;
+    }
+
+    // Parties d'un même sous-serveur {nom du bloc, nom de la partie}; retourne les blocs dont une partie n'a pas été supprimée
+    private static List<String> deleteFragments(String server, List<String[]> fragments) {
+        List<String> failed = new ArrayList<>();
+        List<String> fragmentNames = new ArrayList<>(fragments.size());
+        for (String[] fragment : fragments) {
+            fragmentNames.add(fragment[1]);
+        }
+        SubServerClient connection = null;
+        try {
+            connection = SubServerClient.borrow(server);
+            boolean[] results = connection.deleteParts(fragmentNames);
+            connection.release();
+            for (int i = 0; i < results.length; i++) {
+                if (!results[i]) {
+                    failed.add(fragments.get(i)[0]);
+                    logError("Échec de la suppression de la partie " + fragments.get(i)[1] + " sur " + server, null);
+                }
+            }
+            logInfo((results.length - failed.size()) + " parties supprimées sur le sous-serveur " + server);
+        } catch (IOException e) {
+            if (connection != null) {
+                closeQuietly(connection);
+            }
+            // Les blocs restent connus et pourront être supprimés plus tard
+            for (String[] fragment : fragments) {
+                failed.add(fragment[0]);
+            }
+            logError("Sous-serveur " + server + " injoignable pour la suppression", e);
+        }
+        return failed;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
         }
     }
 
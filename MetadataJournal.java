@@ -0,0 +1,436 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// Journal des métadonnées du serveur principal: chaque envoi, validation et suppression y est ajouté
+// avant d'être visible dans le catalogue. Un instantané compacté remplace périodiquement le journal.
+//
+// Le journal suit aussi les manifestes dont les blocs sont encore sur les sous-serveurs sans être
+// référencés par le catalogue: envois en cours ou interrompus, versions remplacées, fichiers supprimés.
+// Ils restent suivis jusqu'à RELEASE, ce qui permet de nettoyer après un arrêt brutal.
+public class MetadataJournal implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x46534e50;
+    private static final byte BEGIN = 1;
+    private static final byte CHUNK = 2;
+    private static final byte COMMIT = 3;
+    private static final byte DELETE = 4;
+    private static final byte RELEASE = 5;
+    private static final byte RELOCATE = 6;
+
+    private final File journalFile;
+    private final File snapshotFile;
+    private final FileCatalog catalog;
+    private final int compactEvery;
+    private final boolean sync;
+    private final Map<Long, FileManifest> unreferenced = new LinkedHashMap<>();
+    private FileChannel channel;
+    // Dernière version attribuée; reprise au rejeu pour ne jamais redescendre si l'horloge a reculé
+    private final AtomicLong lastVersion = new AtomicLong();
+    // Validations, suppressions et libérations depuis le dernier instantané: les enregistrements d'un envoi
+    // en cours (BEGIN, CHUNK) ne déclenchent pas à eux seuls une compaction
+    private int recordsSinceCompaction;
+    // Un seul instantané en cours d'écriture à la fois
+    private boolean compacting;
+    private final ExecutorService compaction = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MetadataJournal(File directory, FileCatalog catalog, int compactEvery, boolean sync) {
+        this.journalFile = new File(directory, "catalog.journal");
+        this.snapshotFile = new File(directory, "catalog.snapshot");
+        this.catalog = catalog;
+        this.compactEvery = compactEvery;
+        this.sync = sync;
+    }
+
+    // Recharge l'instantané puis rejoue le journal dans le catalogue.
+    // Retourne les manifestes dont les blocs restent à supprimer (envois interrompus compris).
+    public synchronized List<FileManifest> replay() throws IOException {
+        if (snapshotFile.isFile()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 1 << 16))) {
+                if (dis.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Instantané du catalogue illisible: " + snapshotFile);
+                }
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    catalog.put(FileManifest.read(dis));
+                }
+                int pending = dis.readInt();
+                for (int i = 0; i < pending; i++) {
+                    FileManifest manifest = FileManifest.read(dis);
+                    unreferenced.put(manifest.getVersion(), manifest);
+                }
+            }
+        }
+
+        long validLength = 0;
+        if (journalFile.isFile()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 1 << 16))) {
+                byte[] payload;
+                while ((payload = readRecord(dis)) != null) {
+                    apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                    validLength += 8 + payload.length;
+                }
+            }
+        }
+
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // Un enregistrement incomplet en fin de fichier (arrêt pendant l'écriture) est écarté
+        channel.truncate(validLength);
+        channel.position(validLength);
+
+        long highest = 0;
+        for (FileManifest manifest : catalog.list("", "", Integer.MAX_VALUE)) {
+            highest = Math.max(highest, manifest.getVersion());
+        }
+        for (long version : unreferenced.keySet()) {
+            highest = Math.max(highest, version);
+        }
+        lastVersion.accumulateAndGet(highest, Math::max);
+        return new ArrayList<>(unreferenced.values());
+    }
+
+    // Numéro de version unique et croissant pour chaque envoi: l'heure courante, ou la version suivante
+    // si l'horloge est en retard sur les versions déjà attribuées (celles du journal rejoué comprises)
+    public long nextVersion() {
+        long now = System.currentTimeMillis();
+        return lastVersion.updateAndGet(last -> Math.max(now, last + 1));
+    }
+
+    public synchronized void beginUpload(FileManifest manifest) throws IOException {
+        unreferenced.put(manifest.getVersion(), manifest.copy());
+        append(BEGIN, dos -> manifest.write(dos), false);
+    }
+
+    public synchronized void chunkAssigned(long version, FileManifest.Chunk chunk) throws IOException {
+        FileManifest pending = unreferenced.get(version);
+        if (pending != null) {
+            pending.addChunk(chunk.getLocation(), chunk.getPartName(), chunk.getOffset(), chunk.getLength());
+        }
+        append(CHUNK, dos -> {
+            dos.writeLong(version);
+            dos.writeUTF(chunk.getLocation());
+            dos.writeUTF(chunk.getPartName());
+            dos.writeLong(chunk.getOffset());
+            dos.writeLong(chunk.getLength());
+        }, false);
+    }
+
+    // Publie le manifeste; retourne la version remplacée, dont les blocs restent à supprimer
+    public synchronized FileManifest commit(FileManifest manifest) throws IOException {
+        append(COMMIT, dos -> manifest.write(dos), sync);
+        unreferenced.remove(manifest.getVersion());
+        FileManifest previous = catalog.put(manifest);
+        if (previous != null) {
+            unreferenced.put(previous.getVersion(), previous);
+        }
+        compactIfNeeded();
+        return previous;
+    }
+
+    // Publie un lot de manifestes; seule la dernière écriture est forcée sur disque.
+    // Retourne les versions remplacées, dont les blocs restent à supprimer.
+    public synchronized List<FileManifest> commitAll(List<FileManifest> manifests) throws IOException {
+        List<FileManifest> replaced = new ArrayList<>();
+        for (int i = 0; i < manifests.size(); i++) {
+            FileManifest manifest = manifests.get(i);
+            append(COMMIT, dos -> manifest.write(dos), sync && i == manifests.size() - 1);
+        }
+        for (FileManifest manifest : manifests) {
+            unreferenced.remove(manifest.getVersion());
+            FileManifest previous = catalog.put(manifest);
+            if (previous != null) {
+                unreferenced.put(previous.getVersion(), previous);
+                replaced.add(previous);
+            }
+        }
+        compactIfNeeded();
+        return replaced;
+    }
+
+    // Retire le fichier du catalogue; retourne son manifeste, dont les blocs restent à supprimer
+    public synchronized FileManifest delete(String fileName) throws IOException {
+        if (catalog.get(fileName) == null) {
+            return null;
+        }
+        append(DELETE, dos -> dos.writeUTF(fileName), sync);
+        FileManifest removed = catalog.remove(fileName);
+        unreferenced.put(removed.getVersion(), removed);
+        compactIfNeeded();
+        return removed;
+    }
+
+    // Retire un lot de fichiers du catalogue; seule la dernière écriture est forcée sur disque.
+    // Retourne les manifestes retirés (les noms absents du catalogue sont ignorés).
+    public synchronized List<FileManifest> deleteAll(Collection<String> fileNames) throws IOException {
+        List<String> present = new ArrayList<>();
+        for (String fileName : new LinkedHashSet<>(fileNames)) {
+            if (catalog.get(fileName) != null) {
+                present.add(fileName);
+            }
+        }
+        for (int i = 0; i < present.size(); i++) {
+            String fileName = present.get(i);
+            append(DELETE, dos -> dos.writeUTF(fileName), sync && i == present.size() - 1);
+        }
+        List<FileManifest> removed = new ArrayList<>();
+        for (String fileName : present) {
+            FileManifest manifest = catalog.remove(fileName);
+            unreferenced.put(manifest.getVersion(), manifest);
+            removed.add(manifest);
+        }
+        compactIfNeeded();
+        return removed;
+    }
+
+    // Les blocs de cette version ont été supprimés des sous-serveurs
+    public synchronized void release(long version) throws IOException {
+        if (unreferenced.remove(version) != null) {
+            append(RELEASE, dos -> dos.writeLong(version), false);
+            compactIfNeeded();
+        }
+    }
+
+    // Nouveaux emplacements (nom du bloc -> emplacement) de blocs reconstruits ou déplacés, appliqués en
+    // place à tous les manifestes qui les utilisent, publiés compris: les lectures en cours les suivent
+    public synchronized void relocate(Map<String, String> locations) throws IOException {
+        append(RELOCATE, dos -> {
+            dos.writeInt(locations.size());
+            for (Map.Entry<String, String> entry : locations.entrySet()) {
+                dos.writeUTF(entry.getKey());
+                dos.writeUTF(entry.getValue());
+            }
+        }, sync);
+        applyLocations(locations);
+        compactIfNeeded();
+    }
+
+    // Écrit un instantané du catalogue et repart d'un journal réduit aux enregistrements ajoutés pendant son
+    // écriture. Seules la capture de l'état et la substitution des fichiers se font sous le verrou du journal:
+    // les validations, suppressions et libérations continuent pendant l'écriture de l'instantané.
+    public void compact() throws IOException {
+        List<FileManifest> files;
+        List<FileManifest> pending = new ArrayList<>();
+        long capturedLength;
+        synchronized (this) {
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+            // Le catalogue n'est modifié que sous ce verrou; un manifeste publié ne change plus que par
+            // RELOCATE, rejoué depuis la fin du journal. Les envois en cours reçoivent encore des blocs: copiés.
+            files = catalog.list("", "", Integer.MAX_VALUE);
+            for (FileManifest manifest : unreferenced.values()) {
+                pending.add(manifest.copy());
+            }
+            capturedLength = channel.position();
+            recordsSinceCompaction = 0;
+        }
+
+        boolean done = false;
+        File snapshotTemp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(snapshotTemp);
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                dos.writeInt(SNAPSHOT_MAGIC);
+                dos.writeInt(files.size());
+                for (FileManifest manifest : files) {
+                    manifest.write(dos);
+                }
+                dos.writeInt(pending.size());
+                for (FileManifest manifest : pending) {
+                    manifest.write(dos);
+                }
+                dos.flush();
+                fos.getFD().sync();
+            }
+            swapIn(snapshotTemp, capturedLength);
+            done = true;
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            if (!done) {
+                snapshotTemp.delete();
+            }
+        }
+    }
+
+    // Remplace l'instantané et le journal; le nouveau journal reprend les enregistrements écrits depuis la capture
+    private synchronized void swapIn(File snapshotTemp, long capturedLength) throws IOException {
+        File journalTemp = new File(journalFile.getPath() + ".tmp");
+        try (FileChannel tail = FileChannel.open(journalTemp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = capturedLength;
+            long end = channel.position();
+            try (FileChannel source = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                while (position < end) {
+                    position += source.transferTo(position, end - position, tail);
+                }
+            }
+            tail.force(true);
+        }
+        Files.move(snapshotTemp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Un arrêt entre les deux renommages rejoue tout l'ancien journal sur le nouvel instantané:
+        // ses enregistrements y sont déjà appliqués et le rejeu donne le même état
+        Files.move(journalTemp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        compaction.shutdown();
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    // Appelée sous le verrou: l'instantané est écrit par un thread dédié, qui ne le reprend que pour la capture
+    // et la substitution
+    private void compactIfNeeded() {
+        if (recordsSinceCompaction >= compactEvery && !compacting) {
+            recordsSinceCompaction = 0;
+            compaction.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    ServerLog.error("Compaction du journal impossible", e);
+                }
+            });
+        }
+    }
+
+    private void apply(DataInputStream dis) throws IOException {
+        byte type = dis.readByte();
+        switch (type) {
+            case BEGIN: {
+                FileManifest manifest = FileManifest.read(dis);
+                unreferenced.put(manifest.getVersion(), manifest);
+                break;
+            }
+            case CHUNK: {
+                FileManifest pending = unreferenced.get(dis.readLong());
+                String location = dis.readUTF();
+                String partName = dis.readUTF();
+                long offset = dis.readLong();
+                long length = dis.readLong();
+                if (pending != null) {
+                    pending.addChunk(location, partName, offset, length);
+                }
+                break;
+            }
+            case COMMIT: {
+                FileManifest manifest = FileManifest.read(dis);
+                unreferenced.remove(manifest.getVersion());
+                FileManifest previous = catalog.put(manifest);
+                if (previous != null && previous.getVersion() != manifest.getVersion()) {
+                    unreferenced.put(previous.getVersion(), previous);
+                }
+                break;
+            }
+            case DELETE: {
+                FileManifest removed = catalog.remove(dis.readUTF());
+                if (removed != null) {
+                    unreferenced.put(removed.getVersion(), removed);
+                }
+                break;
+            }
+            case RELEASE:
+                unreferenced.remove(dis.readLong());
+                break;
+            case RELOCATE: {
+                int count = dis.readInt();
+                Map<String, String> locations = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    locations.put(dis.readUTF(), dis.readUTF());
+                }
+                applyLocations(locations);
+                break;
+            }
+            default:
+                throw new IOException("Enregistrement de journal inconnu: " + type);
+        }
+    }
+
+    private void applyLocations(Map<String, String> locations) {
+        for (FileManifest manifest : catalog.list("", "", Integer.MAX_VALUE)) {
+            relocateChunks(manifest, locations);
+        }
+        for (FileManifest manifest : unreferenced.values()) {
+            relocateChunks(manifest, locations);
+        }
+    }
+
+    private static void relocateChunks(FileManifest manifest, Map<String, String> locations) {
+        List<FileManifest.Chunk> chunks = manifest.getChunks();
+        for (int i = 0; i < chunks.size(); i++) {
+            String location = locations.get(chunks.get(i).getPartName());
+            if (location != null && !location.equals(chunks.get(i).getLocation())) {
+                manifest.setChunk(i, chunks.get(i).withLocation(location));
+            }
+        }
+    }
+
+    // Format: longueur, CRC32, puis contenu. null en fin de journal ou sur un enregistrement incomplet.
+    private static byte[] readRecord(DataInputStream dis) throws IOException {
+        try {
+            int length = dis.readInt();
+            int checksum = dis.readInt();
+            if (length <= 0 || length > (64 << 20)) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            dis.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue() == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void append(byte type, RecordWriter writer, boolean force) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        DataOutputStream dos = new DataOutputStream(payload);
+        dos.writeByte(type);
+        writer.write(dos);
+        dos.flush();
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        if (force) {
+            channel.force(false);
+        }
+        if (type == COMMIT || type == DELETE || type == RELEASE) {
+            recordsSinceCompaction++;
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// Téléchargement d'un fichier sur plusieurs connexions: chacune lit des plages disjointes
+// (RETRIEVE_FILE_RANGE) et les écrit à leur position dans le fichier de destination.
+// On commence avec une connexion et on en ajoute tant que le débit total progresse nettement:
+// sur un lien à forte latence chaque flux TCP est limité par sa fenêtre, plusieurs flux la multiplient.
+// Chaque plage est vérifiée par le CRC32C envoyé à sa suite, le fichier entier par la combinaison de ces CRC.
+public class ParallelDownload {
+    // Intervalle de mesure du débit avant de décider d'ajouter une connexion
+    private static final long PROBE_INTERVAL_MS = 500;
+    // Gain minimal de débit pour continuer à ajouter des connexions
+    private static final double MIN_GAIN = 1.10;
+    private static final int MAX_SEGMENT_ATTEMPTS = 5;
+
+    private final String host;
+    private final int port;
+    private final int maxStreams;
+    private final long segmentSize;
+
+    public ParallelDownload(String host, int port, int maxStreams, long segmentSize) {
+        this.host = host;
+        this.port = port;
+        this.maxStreams = Math.max(1, maxStreams);
+        this.segmentSize = Math.max(1, segmentSize);
+    }
+
+    // Retourne le nombre de connexions utilisées. progress reçoit régulièrement le nombre d'octets reçus.
+    // checksum: CRC32C attendu du fichier entier (Checksums.UNKNOWN pour ne vérifier que les plages)
+    public int download(String fileName, long version, long fileSize, long checksum, File target,
+                        LongConsumer progress) throws IOException {
+        List<Segment> all = new ArrayList<>();
+        for (long offset = 0; offset < fileSize; offset += segmentSize) {
+            all.add(new Segment(offset, Math.min(segmentSize, fileSize - offset)));
+        }
+        Queue<Segment> segments = new ConcurrentLinkedQueue<>(all);
+        AtomicLong received = new AtomicLong();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(fileSize);
+            FileChannel channel = raf.getChannel();
+
+            workers.add(startWorker(fileName, version, channel, segments, received, failure, 1));
+            long lastProbe = System.nanoTime();
+            long bytesAtProbe = 0;
+            double lastRate = 0;
+            boolean growing = maxStreams > 1;
+            while (received.get() < fileSize && failure.get() == null && anyAlive(workers)) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure.compareAndSet(null, new InterruptedIOException("Téléchargement interrompu"));
+                    break;
+                }
+                progress.accept(received.get());
+
+                long now = System.nanoTime();
+                if (growing && (now - lastProbe) / 1_000_000 >= PROBE_INTERVAL_MS) {
+                    long bytes = received.get();
+                    double rate = (bytes - bytesAtProbe) / ((now - lastProbe) / 1e9);
+                    if (rate > lastRate * MIN_GAIN && workers.size() < maxStreams && !segments.isEmpty()) {
+                        workers.add(startWorker(fileName, version, channel, segments, received, failure, workers.size() + 1));
+                    } else {
+                        // La dernière connexion ajoutée n'a pas apporté de gain: on garde ce nombre
+                        growing = false;
+                    }
+                    lastRate = Math.max(lastRate, rate);
+                    lastProbe = now;
+                    bytesAtProbe = bytes;
+                }
+            }
+
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure.compareAndSet(null, new InterruptedIOException("Téléchargement interrompu"));
+                }
+            }
+            progress.accept(received.get());
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (received.get() != fileSize) {
+            throw new EOFException("Téléchargement incomplet: " + received.get() + " octets sur " + fileSize);
+        }
+        if (checksum != Checksums.UNKNOWN) {
+            long crc = 0;
+            for (Segment segment : all) {
+                crc = Checksums.combine(crc, segment.crc, segment.length);
+            }
+            if (crc != checksum) {
+                throw new IOException("Le fichier " + fileName + " reçu ne correspond pas à son CRC32C");
+            }
+        }
+        return workers.size();
+    }
+
+    private Thread startWorker(String fileName, long version, FileChannel channel, Queue<Segment> segments,
+                               AtomicLong received, AtomicReference<IOException> failure, int index) {
+        Thread worker = new Thread(() -> {
+            ClientSession session = new ClientSession(host, port);
+            try {
+                Segment segment;
+                while (failure.get() == null && (segment = segments.poll()) != null) {
+                    try {
+                        fetch(session, fileName, version, channel, segment, received);
+                    } catch (FileNotFoundException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (IOException e) {
+                        session.reset();
+                        // La plage est reprise en entier par la prochaine connexion disponible
+                        if (++segment.attempts >= MAX_SEGMENT_ATTEMPTS) {
+                            failure.compareAndSet(null, e);
+                        } else {
+                            segments.add(segment);
+                        }
+                    }
+                }
+            } finally {
+                session.close();
+            }
+        }, "download-stream-" + index);
+        worker.setDaemon(true);
+        worker.start();
+        return worker;
+    }
+
+    // Une plage n'est acquise qu'une fois son CRC vérifié: en cas d'échec, ses octets sont décomptés
+    private void fetch(ClientSession session, String fileName, long version, FileChannel channel,
+                       Segment segment, AtomicLong received) throws IOException {
+        DataOutputStream dos = session.startRequest("RETRIEVE_FILE_RANGE");
+        dos.writeUTF(fileName);
+        dos.writeLong(segment.offset);
+        dos.writeLong(segment.length);
+        dos.writeLong(version);
+        DataInputStream dis = session.awaitResponse();
+        if (!dis.readBoolean()) {
+            throw new FileNotFoundException("Le fichier " + fileName + " n'existe plus sur le serveur");
+        }
+        dis.readLong();
+        dis.readLong();
+        dis.readLong();
+        long rangeLength = dis.readLong();
+        if (rangeLength < 0) {
+            throw new FileNotFoundException("Le fichier " + fileName + " a changé sur le serveur pendant le téléchargement");
+        }
+        if (rangeLength != segment.length) {
+            throw new EOFException("Plage de " + rangeLength + " octets au lieu de " + segment.length);
+        }
+
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[64 * 1024];
+        long position = segment.offset;
+        long fetched = 0;
+        try {
+            while (fetched < rangeLength) {
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, rangeLength - fetched));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connexion interrompue");
+                }
+                crc.update(buffer, 0, bytesRead);
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                fetched += bytesRead;
+                received.addAndGet(bytesRead);
+            }
+            if ((dis.readInt() & 0xFFFFFFFFL) != crc.getValue()) {
+                throw new IOException("Plage " + segment.offset + "+" + segment.length + " altérée pendant le transfert");
+            }
+            segment.crc = crc.getValue();
+        } catch (IOException e) {
+            received.addAndGet(-fetched);
+            throw e;
+        }
+    }
+
+    private static boolean anyAlive(List<Thread> workers) {
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Segment {
+        final long offset;
+        final long length;
+        long crc;
+        int attempts;
+
+        Segment(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Set;
+
+// Répartition d'un bloc stocké sur plusieurs sous-serveurs avec une partie de parité (XOR), comme un RAID 5:
+// le bloc est découpé en unités de 64 Ko distribuées à tour de rôle sur k parties de données, et chaque
+// rangée de k unités donne une unité de parité. Une partie perdue (sous-serveur arrêté, fichier effacé)
+// se reconstruit à la lecture à partir des k-1 autres et de la parité, pour 1/k de place en plus.
+// L'emplacement d'un bloc réparti est la liste de ses sous-serveurs séparés par des virgules,
+// la parité sur le dernier. Un emplacement sans virgule désigne un bloc stocké entier (ancien format).
+public class ParityStripe {
+    public static final int UNIT = 64 * 1024;
+    private static final String SEPARATOR = ",";
+    private static final String PARITY_SUFFIX = ".p";
+    // Lecture de 8 octets à la fois dans un byte[]: le XOR va environ deux fois plus vite qu'octet par octet
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    public static String location(String[] servers) {
+        return String.join(SEPARATOR, servers);
+    }
+
+    public static String[] servers(String location) {
+        return location.split(SEPARATOR);
+    }
+
+    // Nom sur le sous-serveur de la partie index d'un bloc réparti sur width sous-serveurs
+    public static String fragmentName(String partName, int index, int width) {
+        if (width == 1) {
+            return partName;
+        }
+        return index == width - 1 ? partName + PARITY_SUFFIX : partName + "." + index;
+    }
+
+    // Taille de la partie index (dataParts pour la parité); une partie vide n'est pas stockée
+    public static long fragmentLength(long storedLength, int dataParts, int index) {
+        if (index == dataParts) {
+            // Chaque unité de parité a la taille de la première unité de sa rangée
+            index = 0;
+        }
+        long units = (storedLength + UNIT - 1) / UNIT;
+        if (units <= index) {
+            return 0;
+        }
+        long length = ((units - 1 - index) / dataParts + 1) * UNIT;
+        long tail = storedLength % UNIT;
+        if (tail > 0 && (units - 1) % dataParts == index) {
+            length -= UNIT - tail;
+        }
+        return length;
+    }
+
+    public static void xor(byte[] target, int targetOffset, byte[] source, int sourceOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            LONGS.set(target, targetOffset + i,
+                    (long) LONGS.get(target, targetOffset + i) ^ (long) LONGS.get(source, sourceOffset + i));
+        }
+        for (; i < length; i++) {
+            target[targetOffset + i] ^= source[sourceOffset + i];
+        }
+    }
+
+    public interface Sink {
+        void write(int fragment, byte[] data, int offset, int length) throws IOException;
+    }
+
+    // Distribue le contenu d'un bloc sur ses parties au fil de l'eau. Les tampons reçus sont transmis tels
+    // quels (sans copie) à la partie de données; seule la parité est calculée dans un nouveau tampon.
+    public static final class Encoder {
+        private final int dataParts;
+        private final Sink sink;
+        private long position;
+        private byte[] parity;
+        private int parityLength;
+
+        public Encoder(int dataParts, Sink sink) {
+            this.dataParts = dataParts;
+            this.sink = sink;
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                long unit = position / UNIT;
+                int inUnit = (int) (position % UNIT);
+                int fragment = (int) (unit % dataParts);
+                int bytes = Math.min(length, UNIT - inUnit);
+                if (fragment == 0 && inUnit == 0) {
+                    flushParity();
+                    parity = new byte[UNIT];
+                }
+                sink.write(fragment, data, offset, bytes);
+                xor(parity, inUnit, data, offset, bytes);
+                if (fragment == 0) {
+                    parityLength = inUnit + bytes;
+                }
+                position += bytes;
+                offset += bytes;
+                length -= bytes;
+            }
+        }
+
+        public void finish() throws IOException {
+            flushParity();
+        }
+
+        private void flushParity() throws IOException {
+            if (parity != null) {
+                sink.write(dataParts, parity, 0, parityLength);
+                parity = null;
+            }
+        }
+    }
+
+    // Lecture d'un bloc réparti, rangée par rangée. Une partie absente à l'ouverture ou qui échoue en cours
+    // de lecture est reconstruite à partir de la parité; au-delà d'une partie perdue le bloc est illisible.
+    // Un bloc stocké entier (un seul sous-serveur) est lu directement.
+    public static final class Reader implements Closeable {
+        private final String[] servers;
+        // Sous-serveurs connus comme injoignables: leurs parties sont reconstruites sans tenter de connexion
+        private final Set<String> unavailable;
+        private final String partName;
+        private final long storedLength;
+        private final int dataParts;
+        private final SubServerClient[] connections;
+        private final long units;
+        private byte[][] rowUnits;
+        private byte[] parityUnit;
+        private long row = -1;
+        private int rowLength;
+        private int rowPosition;
+        private long position;
+        private int missing = -1;
+        private int rebuilt = -1;
+        private volatile boolean closed;
+
+        public Reader(String location, String partName, long storedLength, Set<String> unavailable) {
+            this.servers = servers(location);
+            this.unavailable = unavailable;
+            this.partName = partName;
+            this.storedLength = storedLength;
+            this.dataParts = Math.max(1, servers.length - 1);
+            this.connections = new SubServerClient[servers.length];
+            this.units = (storedLength + UNIT - 1) / UNIT;
+        }
+
+        // Taille du bloc stocké, -1 si un bloc entier est absent. Échoue si plus d'une partie manque.
+        public long open() throws IOException {
+            if (servers.length == 1) {
+                connections[0] = borrow(servers[0]);
+                return connections[0].openFetch(partName);
+            }
+            for (int i = 0; i < dataParts; i++) {
+                if (fragmentLength(storedLength, dataParts, i) > 0 && !openFragment(i)) {
+                    lose(i, 0);
+                }
+            }
+            rowUnits = new byte[dataParts][UNIT];
+            return storedLength;
+        }
+
+        // Partie reconstruite depuis la parité, -1 si aucune
+        public int getRebuilt() {
+            return rebuilt;
+        }
+
+        public String getServer(int index) {
+            return servers[index];
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (servers.length == 1) {
+                return connections[0].readPart(buffer, offset, length);
+            }
+            if (rowPosition == rowLength) {
+                if (position >= storedLength) {
+                    return -1;
+                }
+                fillRow();
+            }
+            int unit = rowPosition / UNIT;
+            int inUnit = rowPosition % UNIT;
+            int bytes = Math.min(length, unitLength(row, unit) - inUnit);
+            System.arraycopy(rowUnits[unit], inUnit, buffer, offset, bytes);
+            rowPosition += bytes;
+            position += bytes;
+            return bytes;
+        }
+
+        // Rend au pool les connexions entièrement lues
+        public void release() {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    connections[i].release();
+                    connections[i] = null;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            for (SubServerClient connection : connections) {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void fillRow() throws IOException {
+            row++;
+            rowLength = 0;
+            for (int i = 0; i < dataParts; i++) {
+                int length = unitLength(row, i);
+                rowLength += length;
+                if (length == 0 || i == missing) {
+                    continue;
+                }
+                try {
+                    readFully(connections[i], rowUnits[i], length);
+                } catch (IOException e) {
+                    if (closed) {
+                        throw e;
+                    }
+                    lose(i, row);
+                }
+            }
+            rowPosition = 0;
+            if (missing == -1) {
+                return;
+            }
+            // La parité est lue à chaque rangée pour rester alignée, même si l'unité perdue est vide
+            int parityLength = unitLength(row, 0);
+            readFully(connections[dataParts], parityUnit, parityLength);
+            int length = unitLength(row, missing);
+            if (length > 0) {
+                System.arraycopy(parityUnit, 0, rowUnits[missing], 0, length);
+                for (int i = 0; i < dataParts; i++) {
+                    if (i != missing) {
+                        xor(rowUnits[missing], 0, rowUnits[i], 0, Math.min(length, unitLength(row, i)));
+                    }
+                }
+            }
+        }
+
+        // La partie index devient illisible à partir de la rangée fromRow: la parité prend le relais
+        private void lose(int index, long fromRow) throws IOException {
+            if (connections[index] != null) {
+                try {
+                    connections[index].close();
+                } catch (IOException ignored) {
+                }
+                connections[index] = null;
+            }
+            if (missing != -1) {
+                throw new IOException("Bloc " + partName + " illisible: parties perdues sur " + servers[missing]
+                        + " et " + servers[index]);
+            }
+            missing = index;
+            rebuilt = index;
+            if (!openFragment(dataParts)) {
+                throw new IOException("Bloc " + partName + " illisible: partie perdue sur " + servers[index]
+                        + " et parité indisponible sur " + servers[dataParts]);
+            }
+            parityUnit = new byte[UNIT];
+            // Les rangées déjà lues ont toutes une unité de parité pleine
+            long skip = fromRow * UNIT;
+            while (skip > 0) {
+                int bytes = connections[dataParts].readPart(parityUnit, 0, (int) Math.min(UNIT, skip));
+                if (bytes == -1) {
+                    throw new EOFException("Parité de " + partName + " tronquée sur " + servers[dataParts]);
+                }
+                skip -= bytes;
+            }
+        }
+
+        // false si la partie est absente, n'a pas la taille attendue ou si son sous-serveur est injoignable
+        private boolean openFragment(int index) {
+            if (unavailable.contains(servers[index])) {
+                return false;
+            }
+            long expected = fragmentLength(storedLength, dataParts, index);
+            SubServerClient connection = null;
+            try {
+                connection = borrow(servers[index]);
+                long size = connection.openFetch(fragmentName(partName, index, servers.length));
+                if (size != expected) {
+                    if (size == -1) {
+                        connection.release();
+                    } else {
+                        connection.close();
+                    }
+                    return false;
+                }
+                connections[index] = connection;
+                if (closed) {
+                    connection.close();
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                return false;
+            }
+        }
+
+        private SubServerClient borrow(String server) throws IOException {
+            if (closed) {
+                throw new IOException("Lecture de " + partName + " annulée");
+            }
+            return SubServerClient.borrow(server);
+        }
+
+        // Taille de l'unité index de la rangée (0 au-delà de la fin du bloc)
+        private int unitLength(long row, int index) {
+            long unit = row * dataParts + index;
+            if (unit >= units) {
+                return 0;
+            }
+            return unit == units - 1 ? (int) (storedLength - unit * UNIT) : UNIT;
+        }
+
+        private void readFully(SubServerClient connection, byte[] buffer, int length) throws IOException {
+            int position = 0;
+            while (position < length) {
+                int bytes = connection.readPart(buffer, position, length - position);
+                if (bytes == -1) {
+                    throw new EOFException("Partie de " + partName + " tronquée");
+                }
+                position += bytes;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ligne de progression de la console: réécrite au plus toutes les INTERVAL_MS, quel que soit
+// le nombre de mises à jour (un tampon, un bloc ou un fichier), et toujours à la dernière.
+final class ProgressLine {
+    private static final long INTERVAL_MS = 200;
+
+    private final AtomicLong lastPrint = new AtomicLong();
+
+    // true si la ligne doit être réécrite maintenant; un seul thread l'obtient par intervalle
+    boolean due(boolean last) {
+        long now = System.currentTimeMillis();
+        long previous = lastPrint.get();
+        if (!last && now - previous < INTERVAL_MS) {
+            return false;
+        }
+        return lastPrint.compareAndSet(previous, now) || last;
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Journal des serveurs: les threads de traitement déposent leurs messages dans un tampon circulaire
+// sans verrou, un thread dédié les date, les met en forme et les écrit par lots.
+//
+// Les messages émis pour chaque élément (partie, fichier listé, requête de session) passent par un
+// Sampler: un sur log.sample.every est écrit au niveau INFO, tous au niveau DEBUG. Tampon plein, les
+// messages INFO et DEBUG sont abandonnés et comptés; les erreurs attendent une place.
+public final class ServerLog {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int ERROR = 2;
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "ERROR"};
+
+    private static final int LEVEL;
+    private static final boolean JSON;
+    private static final int SAMPLE_EVERY;
+    private static final Ring RING;
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final Thread WRITER;
+    private static volatile boolean writerParked;
+    // Nombre de messages déjà écrits sur leur sortie
+    private static volatile long flushed;
+
+    static {
+        Properties config = new Properties();
+        try (FileInputStream in = new FileInputStream("config.properties")) {
+            config.load(in);
+        } catch (IOException e) {
+            // Valeurs par défaut
+        }
+        String level = config.getProperty("log.level", "INFO").trim().toUpperCase();
+        LEVEL = level.equals("DEBUG") ? DEBUG : level.equals("ERROR") ? ERROR : INFO;
+        JSON = config.getProperty("log.format", "text").trim().equalsIgnoreCase("json");
+        SAMPLE_EVERY = Math.max(1, Integer.parseInt(config.getProperty("log.sample.every", "100").trim()));
+        RING = new Ring(Integer.parseInt(config.getProperty("log.buffer.size", "16384").trim()));
+
+        WRITER = new Thread(ServerLog::writeLoop, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(2000), "log-flush"));
+    }
+
+    private ServerLog() {
+    }
+
+    public static boolean isEnabled(int level) {
+        return level >= LEVEL;
+    }
+
+    public static void debug(String message) {
+        if (DEBUG >= LEVEL) {
+            publish(new Record(DEBUG, message, null));
+        }
+    }
+
+    public static void info(String message) {
+        if (INFO >= LEVEL) {
+            publish(new Record(INFO, message, null));
+        }
+    }
+
+    public static void error(String message, Throwable error) {
+        publish(new Record(ERROR, message, error));
+    }
+
+    // Attend que les messages déjà déposés soient écrits, au plus timeoutMs
+    public static void flush(long timeoutMs) {
+        long target = RING.reserved();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (flushed < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    private static void publish(Record record) {
+        while (!RING.offer(record)) {
+            if (record.level < ERROR) {
+                DROPPED.increment();
+                return;
+            }
+            LockSupport.unpark(WRITER);
+            Thread.yield();
+        }
+        if (writerParked) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    private static void writeLoop() {
+        Formatter formatter = new Formatter();
+        long lastDropReport = 0;
+        while (true) {
+            int written = 0;
+            Record record;
+            while ((record = RING.poll()) != null) {
+                formatter.append(record);
+                if (++written % 256 == 0) {
+                    formatter.flush();
+                    flushed = RING.consumed();
+                }
+            }
+            // Les abandons sont signalés au plus une fois par seconde
+            if (System.currentTimeMillis() - lastDropReport >= 1000 && DROPPED.sum() > 0) {
+                lastDropReport = System.currentTimeMillis();
+                formatter.append(new Record(ERROR, DROPPED.sumThenReset() + " messages du journal abandonnés (tampon plein)", null));
+            }
+            formatter.flush();
+            flushed = RING.consumed();
+
+            if (written == 0) {
+                // Un message réservé mais pas encore déposé: il arrive dans l'instant
+                if (!RING.isEmpty()) {
+                    Thread.yield();
+                    continue;
+                }
+                writerParked = true;
+                if (RING.isEmpty()) {
+                    LockSupport.parkNanos(100_000_000L);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    // Messages d'un même type émis pour chaque élément: un sur log.sample.every est retenu
+    public static final class Sampler {
+        private final AtomicLong count = new AtomicLong();
+
+        public boolean sample() {
+            if (DEBUG >= LEVEL) {
+                return true;
+            }
+            return INFO >= LEVEL && count.getAndIncrement() % SAMPLE_EVERY == 0;
+        }
+    }
+
+    private static final class Record {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final int level;
+        final String message;
+        final Throwable error;
+
+        Record(int level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    // Utilisé par le seul thread d'écriture: la date de la seconde courante n'est formatée qu'une fois
+    private static final class Formatter {
+        private final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                .withZone(ZoneId.systemDefault());
+        private final StringBuilder pending = new StringBuilder(1 << 16);
+        private PrintStream pendingStream;
+        private long second = Long.MIN_VALUE;
+        private String secondText;
+
+        void append(Record record) {
+            // INFO et DEBUG sur la sortie standard, ERROR sur la sortie d'erreur, dans l'ordre de dépôt
+            PrintStream stream = record.level == ERROR ? System.err : System.out;
+            if (stream != pendingStream) {
+                flush();
+                pendingStream = stream;
+            }
+            if (record.time / 1000 != second) {
+                second = record.time / 1000;
+                secondText = dateFormat.format(Instant.ofEpochMilli(record.time));
+            }
+            if (JSON) {
+                pending.append("{\"time\":\"").append(secondText).append('.');
+                appendMillis(record.time % 1000);
+                pending.append("\",\"level\":\"").append(LEVEL_NAMES[record.level]).append("\",\"thread\":");
+                appendJson(record.thread);
+                pending.append(",\"message\":");
+                appendJson(record.message);
+                if (record.error != null) {
+                    pending.append(",\"error\":");
+                    appendJson(stackTrace(record.error));
+                }
+                pending.append("}\n");
+            } else {
+                pending.append('[').append(secondText).append("] ").append(LEVEL_NAMES[record.level]).append(": ")
+                        .append(record.message).append('\n');
+                if (record.error != null) {
+                    pending.append(stackTrace(record.error));
+                }
+            }
+        }
+
+        void flush() {
+            if (pending.length() > 0) {
+                pendingStream.print(pending);
+                pendingStream.flush();
+                pending.setLength(0);
+            }
+        }
+
+        private void appendMillis(long millis) {
+            if (millis < 100) {
+                pending.append(millis < 10 ? "00" : "0");
+            }
+            pending.append(millis);
+        }
+
+        private void appendJson(String text) {
+            pending.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"': pending.append("\\\""); break;
+                    case '\\': pending.append("\\\\"); break;
+                    case '\n': pending.append("\\n"); break;
+                    case '\r': pending.append("\\r"); break;
+                    case '\t': pending.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            pending.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            pending.append(c);
+                        }
+                }
+            }
+            pending.append('"');
+        }
+
+        private static String stackTrace(Throwable error) {
+            StringWriter text = new StringWriter();
+            error.printStackTrace(new PrintWriter(text));
+            return text.toString();
+        }
+    }
+
+    // Tampon circulaire à plusieurs producteurs et un seul consommateur. Un producteur réserve un numéro
+    // par CAS sur tail puis dépose son message; le consommateur vide la case avant d'avancer head.
+    private static final class Ring {
+        private final AtomicReferenceArray<Record> slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(64, capacity - 1) << 1);
+            this.slots = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+        }
+
+        boolean offer(Record record) {
+            while (true) {
+                long sequence = tail.get();
+                if (sequence - head > mask) {
+                    return false;
+                }
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    slots.lazySet((int) sequence & mask, record);
+                    return true;
+                }
+            }
+        }
+
+        Record poll() {
+            int index = (int) head & mask;
+            Record record = slots.get(index);
+            if (record != null) {
+                slots.lazySet(index, null);
+                head = head + 1;
+            }
+            return record;
+        }
+
+        boolean isEmpty() {
+            return tail.get() == head;
+        }
+
+        long reserved() {
+            return tail.get();
+        }
+
+        long consumed() {
+            return head;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Mesures du serveur (un seul par processus): compteurs, débits et latences alimentés par des
+// LongAdder, donc sans verrou ni contention entre threads de traitement. Ils sont lus à la demande:
+// en texte sur http://<metrics.bind>:<port + metrics.port.offset>/metrics, en JSON sur /metrics.json,
+// et comme attributs de l'objet JMX fileserver:type=<serveur>.
+public final class ServerMetrics {
+    private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+    // Période de calcul des débits
+    private static final long RATE_WINDOW_MS = 5000;
+    private static final int PORT_OFFSET;
+    private static final String BIND_ADDRESS;
+
+    static {
+        Properties config = new Properties();
+        try (FileInputStream in = new FileInputStream("config.properties")) {
+            config.load(in);
+        } catch (IOException e) {
+            // Valeurs par défaut
+        }
+        PORT_OFFSET = Integer.parseInt(config.getProperty("metrics.port.offset", "100").trim());
+        BIND_ADDRESS = config.getProperty("metrics.bind", "127.0.0.1").trim();
+    }
+
+    private ServerMetrics() {
+    }
+
+    public static Counter counter(String name) {
+        return (Counter) METRICS.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public static Meter meter(String name) {
+        return (Meter) METRICS.computeIfAbsent(name, k -> new Meter());
+    }
+
+    public static Timer timer(String name) {
+        return (Timer) METRICS.computeIfAbsent(name, k -> new Timer());
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        METRICS.put(name, (prefix, out) -> out.put(prefix, value.getAsLong()));
+    }
+
+    // Publie les mesures via JMX et, sauf si metrics.port.offset vaut 0, sur le port HTTP local
+    public static void start(String serverType, String jmxName, int serverPort) {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-rates");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(ServerMetrics::updateRates, RATE_WINDOW_MS, RATE_WINDOW_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            ObjectName objectName = new ObjectName("fileserver:type=" + serverType + (jmxName == null ? "" : ",name=" + jmxName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(serverType), objectName);
+        } catch (JMException e) {
+            ServerLog.error("Publication JMX des mesures impossible", e);
+        }
+
+        if (PORT_OFFSET <= 0) {
+            return;
+        }
+        int port = serverPort + PORT_OFFSET;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(BIND_ADDRESS, port), 16);
+            server.createContext("/metrics", exchange -> respond(exchange, "text/plain", formatText()));
+            server.createContext("/metrics.json", exchange -> respond(exchange, "application/json", formatJson()));
+            server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            ServerLog.info("Mesures disponibles sur http://" + BIND_ADDRESS + ":" + port + "/metrics");
+        } catch (IOException e) {
+            ServerLog.error("Port des mesures " + port + " indisponible", e);
+        }
+    }
+
+    // Valeurs de toutes les mesures, par nom
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> entry : METRICS.entrySet()) {
+            entry.getValue().collect(entry.getKey(), values);
+        }
+        return values;
+    }
+
+    static String formatText() {
+        StringBuilder text = new StringBuilder(4096);
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    static String formatJson() {
+        StringBuilder json = new StringBuilder(4096).append('{');
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("\n  \"").append(entry.getKey()).append("\": ").append(entry.getValue());
+        }
+        return json.append("\n}\n").toString();
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void updateRates() {
+        long now = System.nanoTime();
+        for (Metric metric : METRICS.values()) {
+            if (metric instanceof Meter) {
+                ((Meter) metric).tick(now);
+            }
+        }
+    }
+
+    private interface Metric {
+        void collect(String name, Map<String, Number> out);
+    }
+
+    public static final class Counter implements Metric {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long value) {
+            count.add(value);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void collect(String name, Map<String, Number> out) {
+            out.put(name, count.sum());
+        }
+    }
+
+    // Total cumulé et débit par seconde sur la dernière période
+    public static final class Meter implements Metric {
+        private final LongAdder total = new LongAdder();
+        private long lastTotal;
+        private long lastTick = System.nanoTime();
+        private volatile long perSecond;
+
+        public void add(long value) {
+            total.add(value);
+        }
+
+        synchronized void tick(long now) {
+            long current = total.sum();
+            perSecond = (current - lastTotal) * 1_000_000_000L / Math.max(1, now - lastTick);
+            lastTotal = current;
+            lastTick = now;
+        }
+
+        @Override
+        public void collect(String name, Map<String, Number> out) {
+            out.put(name + ".total", total.sum());
+            out.put(name + ".per.second", perSecond);
+        }
+    }
+
+    // Nombre d'appels, échecs et répartition des durées en microsecondes. Les durées sont rangées par
+    // puissance de deux, elle-même découpée en 4: les centiles sont exacts à 25 % près.
+    public static final class Timer implements Metric {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+        Timer() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long startNanos, boolean success) {
+            long micros = Math.max(0, (System.nanoTime() - startNanos) / 1000);
+            buckets[bucket(micros)].increment();
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulate(micros);
+            if (!success) {
+                errors.increment();
+            }
+        }
+
+        private static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int power = 63 - Long.numberOfLeadingZeros(micros);
+            return power * SUB_BUCKETS + (int) ((micros >>> (power - 2)) & (SUB_BUCKETS - 1));
+        }
+
+        // Plus grande durée rangée dans le seau
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int power = bucket / SUB_BUCKETS;
+            long step = 1L << (power - 2);
+            return (1L << power) + (bucket % SUB_BUCKETS + 1) * step - 1;
+        }
+
+        @Override
+        public void collect(String name, Map<String, Number> out) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            out.put(name + ".count", count.sum());
+            out.put(name + ".errors", errors.sum());
+            out.put(name + ".mean.us", total == 0 ? 0 : totalMicros.sum() / total);
+            // La borne d'un seau peut dépasser la plus longue durée observée
+            long max = maxMicros.get();
+            out.put(name + ".p50.us", Math.min(max, percentile(counts, total, 0.50)));
+            out.put(name + ".p90.us", Math.min(max, percentile(counts, total, 0.90)));
+            out.put(name + ".p99.us", Math.min(max, percentile(counts, total, 0.99)));
+            out.put(name + ".max.us", max);
+        }
+
+        private static long percentile(long[] counts, long total, double fraction) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    // Chaque mesure est un attribut en lecture seule; la liste suit les mesures créées depuis
+    private static final class MetricsBean implements DynamicMBean {
+        private final String description;
+
+        MetricsBean(String serverType) {
+            this.description = "Mesures de " + serverType;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Mesure en lecture seule: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> entry : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(), description, attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,751 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Réparation et rééquilibrage en tâche de fond des blocs stockés sur les sous-serveurs. À chaque passage:
+//  - la liste des sous-serveurs est relue dans le fichier de configuration: un sous-serveur ajouté reçoit
+//    les nouveaux blocs puis une part des anciens, un sous-serveur retiré est vidé, sans redémarrage;
+//  - les parties perdues (sous-serveur injoignable depuis longtemps, ou partie absente d'un sous-serveur
+//    qui répond) sont reconstruites depuis la parité, sur place ou sur un sous-serveur de remplacement;
+//  - les blocs stockés entiers, sans parité, sont répartis avec parité;
+//  - des parties passent du sous-serveur le plus chargé au moins chargé.
+// Les copies sont limitées en débit, plus fortement pendant les transferts des clients. Une partie
+// remplacée n'est supprimée qu'au passage suivant: les lectures commencées avant le déplacement la
+// trouvent encore, et le nouvel emplacement est alors dans le journal.
+public class StripeRepair {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Nombre maximal d'emplacements par enregistrement du journal
+    private static final int RELOCATE_BATCH = 10_000;
+
+    private final File configFile;
+    private final ChunkIndex index;
+    private final FileCatalog catalog;
+    private final MetadataJournal journal;
+    private final boolean parity;
+    private final long intervalMs;
+    private final long deadAfterMs;
+    private final long rate;
+    private final long busyRate;
+    // Vrai pendant les transferts des clients
+    private final BooleanSupplier busy;
+    private volatile List<String> members;
+    // Sous-serveurs qui n'ont pas répondu au dernier passage, et depuis quand
+    private final Map<String, Long> downSince = new ConcurrentHashMap<>();
+    // Parties remplacées au passage précédent: {sous-serveur, nom de la partie, nom du bloc}
+    private List<String[]> superseded = new ArrayList<>();
+    // Blocs irrécupérables ou sans remplaçant déjà signalés, pour ne pas répéter le message à chaque passage
+    private final Set<String> reported = new HashSet<>();
+    // Passages qui doivent encore comparer les manifestes à l'index: au démarrage, puis après un déplacement
+    private int manifestChecks = 1;
+    private int stripes;
+    private long throttleStart = System.nanoTime();
+    private long throttleBytes;
+
+    public StripeRepair(File configFile, Properties config, String[] servers, boolean parity, ChunkIndex index,
+                        FileCatalog catalog, MetadataJournal journal, BooleanSupplier busy) {
+        this.configFile = configFile;
+        this.members = trim(servers);
+        this.parity = parity;
+        this.index = index;
+        this.catalog = catalog;
+        this.journal = journal;
+        this.busy = busy;
+        this.intervalMs = Long.parseLong(config.getProperty("repair.interval.ms", "60000"));
+        this.deadAfterMs = Long.parseLong(config.getProperty("repair.dead.after.ms", "600000"));
+        this.rate = Long.parseLong(config.getProperty("repair.rate.mb", "20")) * 1024 * 1024;
+        this.busyRate = Long.parseLong(config.getProperty("repair.rate.busy.mb", "5")) * 1024 * 1024;
+    }
+
+    public void start() {
+        if (intervalMs <= 0) {
+            return;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stripe-repair");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                runPass();
+            } catch (Exception e) {
+                logError("Passage de réparation interrompu", e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Sous-serveurs qui reçoivent les nouveaux blocs: ceux de la configuration qui répondent
+    public String[] getServers() {
+        List<String> available = new ArrayList<>();
+        for (String server : members) {
+            if (!downSince.containsKey(server)) {
+                available.add(server);
+            }
+        }
+        return (available.isEmpty() ? members : available).toArray(new String[0]);
+    }
+
+    // Sous-serveurs injoignables au dernier passage
+    public Set<String> getUnavailable() {
+        return Collections.unmodifiableSet(downSince.keySet());
+    }
+
+    public synchronized void runPass() throws IOException {
+        long start = System.currentTimeMillis();
+        reloadMembers();
+        // Avant l'inventaire: les parties remplacées ne doivent pas compter dans la charge des sous-serveurs
+        deleteSuperseded();
+        List<ChunkIndex.Placement> placements = index.placements();
+        Set<String> servers = new LinkedHashSet<>(members);
+        for (ChunkIndex.Placement placement : placements) {
+            servers.addAll(Arrays.asList(ParityStripe.servers(placement.getLocation())));
+        }
+        Map<String, Map<String, Long>> inventory = inventory(servers);
+
+        Map<String, Long> load = new HashMap<>();
+        for (String server : members) {
+            if (inventory.get(server) != null) {
+                long bytes = 0;
+                for (long size : inventory.get(server).values()) {
+                    bytes += size;
+                }
+                load.put(server, bytes);
+            }
+        }
+        int rebuilt = 0;
+        int striped = 0;
+        int moved = 0;
+        List<ChunkIndex.Placement> healthy = new ArrayList<>();
+        for (ChunkIndex.Placement placement : placements) {
+            try {
+                switch (repair(placement, inventory, load)) {
+                    case REBUILT:
+                        rebuilt++;
+                        break;
+                    case STRIPED:
+                        striped++;
+                        break;
+                    case MOVED:
+                        moved++;
+                        break;
+                    case HEALTHY:
+                        healthy.add(placement);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                logError("Réparation du bloc " + placement.getPartName() + " impossible", e);
+            }
+        }
+        moved += balance(healthy, load);
+        int relocated = 0;
+        if (manifestChecks > 0) {
+            manifestChecks--;
+            relocated = saveLocations(placements);
+        }
+        if (rebuilt + striped + moved + relocated > 0) {
+            logInfo("Réparation: " + rebuilt + " parties reconstruites, " + striped + " blocs répartis avec parité, "
+                    + moved + " parties déplacées, " + relocated + " emplacements mis à jour en "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private enum Outcome { HEALTHY, WAITING, LOST, REBUILT, STRIPED, MOVED }
+
+    // Une action au plus par bloc et par passage, la plus urgente
+    private Outcome repair(ChunkIndex.Placement placement, Map<String, Map<String, Long>> inventory,
+                           Map<String, Long> load) throws IOException {
+        String[] stripe = ParityStripe.servers(placement.getLocation());
+        int width = stripe.length;
+        int dataParts = Math.max(1, width - 1);
+        List<Integer> missing = new ArrayList<>();
+        List<Integer> draining = new ArrayList<>();
+        boolean waiting = false;
+        for (int i = 0; i < width; i++) {
+            long expected = width == 1 ? placement.getStoredLength()
+                    : ParityStripe.fragmentLength(placement.getStoredLength(), dataParts, i);
+            if (expected == 0) {
+                continue;
+            }
+            Map<String, Long> parts = inventory.get(stripe[i]);
+            if (parts == null) {
+                // Un sous-serveur brièvement injoignable (redémarrage) n'est pas reconstruit ailleurs
+                if (isLost(stripe[i])) {
+                    missing.add(i);
+                } else {
+                    waiting = true;
+                }
+            } else if (!Long.valueOf(expected).equals(parts.get(ParityStripe.fragmentName(placement.getPartName(), i, width)))) {
+                missing.add(i);
+            } else if (!members.contains(stripe[i])) {
+                draining.add(i);
+            }
+        }
+
+        if (width == 1) {
+            if (!missing.isEmpty()) {
+                report(placement, "perdu: stocké sans parité sur " + stripe[0]);
+                return Outcome.LOST;
+            }
+            if (waiting) {
+                return Outcome.WAITING;
+            }
+            String[] targets = getServers();
+            if (parity && targets.length >= 2) {
+                restripe(placement, rotate(targets, stripes++), load);
+                return Outcome.STRIPED;
+            }
+        }
+        if (missing.size() > 1) {
+            report(placement, "perdu: " + missing.size() + " parties manquantes sur " + width);
+            return Outcome.LOST;
+        }
+        if (missing.size() == 1) {
+            int lost = missing.get(0);
+            // Partie absente d'un sous-serveur qui répond (disque remplacé, fichier effacé): reconstruite sur place
+            String target = inventory.get(stripe[lost]) != null && members.contains(stripe[lost])
+                    ? stripe[lost] : spare(stripe, load);
+            if (target == null) {
+                report(placement, "dégradé: aucun sous-serveur de remplacement pour la partie sur " + stripe[lost]);
+                return Outcome.WAITING;
+            }
+            rebuild(placement, lost, target, load);
+            return Outcome.REBUILT;
+        }
+        if (!draining.isEmpty() && !waiting) {
+            int index = draining.get(0);
+            String target = spare(stripe, load);
+            if (target == null) {
+                report(placement, "non déplacé: aucun sous-serveur pour remplacer " + stripe[index]);
+                return Outcome.WAITING;
+            }
+            move(placement, index, target, load);
+            return Outcome.MOVED;
+        }
+        return waiting ? Outcome.WAITING : Outcome.HEALTHY;
+    }
+
+    // Reconstruit la partie lost à partir des autres et l'écrit sur target (sur place ou ailleurs).
+    // Le contenu est vérifié par son CRC avant que la partie soit validée par le sous-serveur.
+    private void rebuild(ChunkIndex.Placement placement, int lost, String target, Map<String, Long> load) throws IOException {
+        String[] stripe = ParityStripe.servers(placement.getLocation());
+        int dataParts = stripe.length - 1;
+        String fragmentName = ParityStripe.fragmentName(placement.getPartName(), lost, stripe.length);
+        long fragmentLength = ParityStripe.fragmentLength(placement.getStoredLength(), dataParts, lost);
+        Set<String> unavailable = new HashSet<>(downSince.keySet());
+        unavailable.add(stripe[lost]);
+        SubServerClient[] outputs = new SubServerClient[stripe.length];
+        try {
+            outputs[lost] = SubServerClient.borrow(target);
+            outputs[lost].beginStore(fragmentName, fragmentLength);
+        } catch (IOException e) {
+            closeAll(outputs);
+            throw e;
+        }
+        transcode(placement, placement.getLocation(), unavailable, dataParts, outputs);
+        load.merge(target, fragmentLength, Long::sum);
+
+        String[] replaced = stripe.clone();
+        replaced[lost] = target;
+        List<String[]> old = new ArrayList<>();
+        if (!target.equals(stripe[lost])) {
+            old.add(new String[] {stripe[lost], fragmentName, placement.getPartName()});
+        }
+        commit(placement, ParityStripe.location(replaced), old,
+                Collections.singletonList(new String[] {target, fragmentName, placement.getPartName()}));
+    }
+
+    // Répartit avec parité un bloc stocké entier sur targets
+    private void restripe(ChunkIndex.Placement placement, String[] targets, Map<String, Long> load) throws IOException {
+        int dataParts = targets.length - 1;
+        SubServerClient[] outputs = new SubServerClient[targets.length];
+        List<String[]> written = new ArrayList<>();
+        try {
+            for (int i = 0; i < targets.length; i++) {
+                long fragmentLength = ParityStripe.fragmentLength(placement.getStoredLength(), dataParts, i);
+                if (fragmentLength > 0) {
+                    String fragmentName = ParityStripe.fragmentName(placement.getPartName(), i, targets.length);
+                    outputs[i] = SubServerClient.borrow(targets[i]);
+                    outputs[i].beginStore(fragmentName, fragmentLength);
+                    written.add(new String[] {targets[i], fragmentName, placement.getPartName()});
+                    load.merge(targets[i], fragmentLength, Long::sum);
+                }
+            }
+        } catch (IOException e) {
+            closeAll(outputs);
+            throw e;
+        }
+        transcode(placement, placement.getLocation(), downSince.keySet(), dataParts, outputs);
+        commit(placement, ParityStripe.location(targets),
+                Collections.singletonList(new String[] {placement.getLocation(), placement.getPartName(), placement.getPartName()}),
+                written);
+    }
+
+    // Lit le bloc stocké (en reconstruisant au besoin), le vérifie, et envoie vers outputs[i] la partie i
+    // d'une répartition sur dataParts parties de données. Les sorties ont déjà commencé leur envoi.
+    private void transcode(ChunkIndex.Placement placement, String location, Set<String> unavailable, int dataParts,
+                           SubServerClient[] outputs) throws IOException {
+        ParityStripe.Reader reader = new ParityStripe.Reader(location, placement.getPartName(),
+                placement.getStoredLength(), unavailable);
+        ContentCheck check = new ContentCheck(placement);
+        try {
+            if (reader.open() != placement.getStoredLength()) {
+                throw new IOException("Bloc " + placement.getPartName() + " absent ou de taille inattendue sur " + location);
+            }
+            ParityStripe.Encoder encoder = new ParityStripe.Encoder(dataParts, (fragment, data, offset, length) -> {
+                if (outputs[fragment] != null) {
+                    outputs[fragment].write(data, offset, length);
+                    throttle(length);
+                }
+            });
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = placement.getStoredLength();
+            while (remaining > 0) {
+                int bytes = reader.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytes == -1) {
+                    throw new EOFException("Bloc " + placement.getPartName() + " tronqué sur " + location);
+                }
+                check.update(buffer, 0, bytes);
+                encoder.write(buffer, 0, bytes);
+                throttle(bytes);
+                remaining -= bytes;
+            }
+            encoder.finish();
+            // En cas d'écart, les connexions sont fermées sans terminer l'envoi: le sous-serveur l'abandonne
+            check.verify();
+            for (SubServerClient output : outputs) {
+                if (output != null && !output.endStore()) {
+                    throw new IOException("Partie de " + placement.getPartName() + " refusée par " + output.getAddress());
+                }
+            }
+            reader.release();
+            for (SubServerClient output : outputs) {
+                if (output != null) {
+                    output.release();
+                }
+            }
+        } catch (IOException e) {
+            reader.close();
+            closeAll(outputs);
+            throw e;
+        } finally {
+            check.end();
+        }
+    }
+
+    // Copie telle quelle la partie index vers target (sous-serveur retiré ou rééquilibrage)
+    private void move(ChunkIndex.Placement placement, int index, String target, Map<String, Long> load) throws IOException {
+        String[] stripe = ParityStripe.servers(placement.getLocation());
+        String fragmentName = ParityStripe.fragmentName(placement.getPartName(), index, stripe.length);
+        SubServerClient input = null;
+        SubServerClient output = null;
+        long size;
+        try {
+            input = SubServerClient.borrow(stripe[index]);
+            size = input.openFetch(fragmentName);
+            if (size < 0) {
+                throw new IOException("Partie " + fragmentName + " absente de " + stripe[index]);
+            }
+            output = SubServerClient.borrow(target);
+            output.beginStore(fragmentName, size);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = size;
+            while (remaining > 0) {
+                int bytes = input.readPart(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytes == -1) {
+                    throw new EOFException("Partie " + fragmentName + " tronquée sur " + stripe[index]);
+                }
+                output.write(buffer, 0, bytes);
+                throttle(bytes);
+                remaining -= bytes;
+            }
+            if (!output.endStore()) {
+                throw new IOException("Partie " + fragmentName + " refusée par " + target);
+            }
+            input.release();
+            output.release();
+        } catch (IOException e) {
+            closeAll(new SubServerClient[] {input, output});
+            throw e;
+        }
+        load.merge(target, size, Long::sum);
+        load.computeIfPresent(stripe[index], (server, bytes) -> bytes - size);
+
+        String[] replaced = stripe.clone();
+        replaced[index] = target;
+        commit(placement, ParityStripe.location(replaced),
+                Collections.singletonList(new String[] {stripe[index], fragmentName, placement.getPartName()}),
+                Collections.singletonList(new String[] {target, fragmentName, placement.getPartName()}));
+    }
+
+    // Publie le nouvel emplacement dans l'index; si le bloc a été supprimé entre-temps, les parties
+    // écrites ne servent à rien et sont supprimées tout de suite
+    private void commit(ChunkIndex.Placement placement, String location, List<String[]> old, List<String[]> written) {
+        if (index.relocate(placement.getPartName(), placement.getLocation(), location)) {
+            superseded.addAll(old);
+            if (!location.equals(placement.getLocation())) {
+                manifestChecks = 2;
+            }
+        } else {
+            deleteParts(written);
+        }
+    }
+
+    // Déplace des parties du sous-serveur le plus chargé vers le moins chargé, tant que l'écart dépasse
+    // un dixième de la charge moyenne et qu'un déplacement le réduit
+    private int balance(List<ChunkIndex.Placement> placements, Map<String, Long> load) {
+        if (load.size() < 2) {
+            return 0;
+        }
+        // Parties déplaçables de chaque sous-serveur: {bloc, indice de la partie}
+        Map<String, List<Object[]>> partsByServer = new HashMap<>();
+        for (ChunkIndex.Placement placement : placements) {
+            String[] stripe = ParityStripe.servers(placement.getLocation());
+            for (int i = 0; i < stripe.length; i++) {
+                partsByServer.computeIfAbsent(stripe[i], k -> new ArrayList<>()).add(new Object[] {placement, i});
+            }
+        }
+        Set<String> moved = new HashSet<>();
+        int moves = 0;
+        while (true) {
+            String from = null;
+            String to = null;
+            long total = 0;
+            for (Map.Entry<String, Long> entry : load.entrySet()) {
+                total += entry.getValue();
+                if (from == null || entry.getValue() > load.get(from)) {
+                    from = entry.getKey();
+                }
+                if (to == null || entry.getValue() < load.get(to)) {
+                    to = entry.getKey();
+                }
+            }
+            long gap = load.get(from) - load.get(to);
+            if (gap <= total / load.size() / 10) {
+                return moves;
+            }
+            Object[] candidate = null;
+            for (Object[] part : partsByServer.getOrDefault(from, Collections.emptyList())) {
+                ChunkIndex.Placement placement = (ChunkIndex.Placement) part[0];
+                String[] stripe = ParityStripe.servers(placement.getLocation());
+                long size = stripe.length == 1 ? placement.getStoredLength()
+                        : ParityStripe.fragmentLength(placement.getStoredLength(), stripe.length - 1, (int) part[1]);
+                if (size > 0 && size <= gap / 2 && !Arrays.asList(stripe).contains(to)
+                        && !moved.contains(placement.getPartName())) {
+                    candidate = part;
+                    break;
+                }
+            }
+            if (candidate == null) {
+                return moves;
+            }
+            ChunkIndex.Placement placement = (ChunkIndex.Placement) candidate[0];
+            partsByServer.get(from).remove(candidate);
+            moved.add(placement.getPartName());
+            try {
+                move(placement, (int) candidate[1], to, load);
+                moves++;
+            } catch (IOException e) {
+                logError("Déplacement d'une partie de " + placement.getPartName() + " vers " + to + " impossible", e);
+                return moves;
+            }
+        }
+    }
+
+    // Écrit dans le journal les emplacements qui ont changé (manifestes restés sur un ancien emplacement
+    // compris, par exemple un envoi validé pendant le déplacement d'un de ses blocs)
+    private int saveLocations(List<ChunkIndex.Placement> placements) throws IOException {
+        Map<String, String> locations = new LinkedHashMap<>();
+        for (FileManifest manifest : catalog.list("", "", Integer.MAX_VALUE)) {
+            for (FileManifest.Chunk chunk : manifest.getChunks()) {
+                String location = index.locationOf(chunk.getPartName());
+                if (location != null && !location.equals(chunk.getLocation())) {
+                    locations.put(chunk.getPartName(), location);
+                }
+            }
+        }
+        // Blocs des envois gardés pour une reprise, absents du catalogue
+        for (ChunkIndex.Placement placement : placements) {
+            String location = index.locationOf(placement.getPartName());
+            if (location != null && !location.equals(placement.getLocation())) {
+                locations.put(placement.getPartName(), location);
+            }
+        }
+        Map<String, String> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : locations.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() == RELOCATE_BATCH) {
+                journal.relocate(batch);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            journal.relocate(batch);
+        }
+        return locations.size();
+    }
+
+    // Supprime les parties remplacées au passage précédent, sauf si leur bloc est revenu à cet endroit
+    // Les parties d'un sous-serveur injoignable encore membre sont gardées pour une passe suivante
+    private void deleteSuperseded() {
+        List<String[]> parts = new ArrayList<>();
+        List<String[]> postponed = new ArrayList<>();
+        for (String[] part : superseded) {
+            String location = index.locationOf(part[2]);
+            if (location != null && holds(location, part[0], part[2], part[1])) {
+                continue;
+            }
+            (downSince.containsKey(part[0]) && members.contains(part[0]) ? postponed : parts).add(part);
+        }
+        superseded = postponed;
+        deleteParts(parts);
+    }
+
+    private static boolean holds(String location, String server, String partName, String fragmentName) {
+        String[] stripe = ParityStripe.servers(location);
+        for (int i = 0; i < stripe.length; i++) {
+            if (stripe[i].equals(server) && ParityStripe.fragmentName(partName, i, stripe.length).equals(fragmentName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Suppression au mieux: une partie qui n'a pas pu être supprimée est signalée et reste orpheline
+    private void deleteParts(List<String[]> parts) {
+        Map<String, Integer> failures = new TreeMap<>();
+        for (String[] part : parts) {
+            SubServerClient connection = null;
+            try {
+                connection = SubServerClient.borrow(part[0]);
+                if (!connection.deletePart(part[1])) {
+                    failures.merge(part[0], 1, Integer::sum);
+                }
+                connection.release();
+            } catch (IOException e) {
+                closeAll(new SubServerClient[] {connection});
+                failures.merge(part[0], 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+            logError(failure.getValue() + " partie(s) remplacée(s) non supprimée(s) sur " + failure.getKey(), null);
+        }
+    }
+
+    // Parties de chaque sous-serveur (nom -> taille), null pour un sous-serveur injoignable
+    private Map<String, Map<String, Long>> inventory(Set<String> servers) {
+        Map<String, Map<String, Long>> inventory = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (String server : servers) {
+            Map<String, Long> parts = listParts(server);
+            inventory.put(server, parts);
+            if (parts == null) {
+                if (downSince.putIfAbsent(server, now) == null) {
+                    logError("Sous-serveur " + server + " injoignable: ses parties sont lues depuis la parité", null);
+                }
+            } else if (downSince.remove(server) != null) {
+                logInfo("Sous-serveur " + server + " de nouveau joignable");
+            }
+        }
+        return inventory;
+    }
+
+    private static Map<String, Long> listParts(String server) {
+        // Une connexion du pool peut dater d'avant un redémarrage du sous-serveur: une seconde tentative
+        // se fait sur une connexion neuve
+        for (int attempt = 0; attempt < 2; attempt++) {
+            SubServerClient connection = null;
+            try {
+                connection = attempt == 0 ? SubServerClient.borrow(server) : new SubServerClient(server);
+                Map<String, Long> parts = connection.listParts();
+                connection.release();
+                return parts;
+            } catch (IOException e) {
+                closeAll(new SubServerClient[] {connection});
+            }
+        }
+        return null;
+    }
+
+    private boolean isLost(String server) {
+        Long since = downSince.get(server);
+        return since != null && (!members.contains(server) || System.currentTimeMillis() - since >= deadAfterMs);
+    }
+
+    // Sous-serveur en service le moins chargé hors de la répartition du bloc, null s'il n'y en a pas
+    private String spare(String[] stripe, Map<String, Long> load) {
+        String spare = null;
+        for (String server : getServers()) {
+            if (load.containsKey(server) && !Arrays.asList(stripe).contains(server)
+                    && (spare == null || load.get(server) < load.get(spare))) {
+                spare = server;
+            }
+        }
+        return spare;
+    }
+
+    // La parité tourne d'un bloc à l'autre, comme pour les nouveaux blocs
+    private static String[] rotate(String[] servers, int first) {
+        String[] rotated = new String[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            rotated[i] = servers[(first + i) % servers.length];
+        }
+        return rotated;
+    }
+
+    // Relit la liste des sous-serveurs: un ajout ou un retrait prend effet sans redémarrer le serveur
+    private void reloadMembers() {
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream(configFile)) {
+            config.load(fis);
+        } catch (IOException e) {
+            logError("Relecture de " + configFile + " impossible", e);
+            return;
+        }
+        String hosts = config.getProperty("subservers.hosts");
+        if (hosts == null) {
+            return;
+        }
+        List<String> updated = trim(hosts.split(","));
+        if (!updated.equals(members)) {
+            List<String> added = new ArrayList<>(updated);
+            added.removeAll(members);
+            List<String> removed = new ArrayList<>(members);
+            removed.removeAll(updated);
+            logInfo("Sous-serveurs: " + (added.isEmpty() ? "" : "ajout de " + added + " ")
+                    + (removed.isEmpty() ? "" : "retrait de " + removed));
+            members = updated;
+        }
+    }
+
+    private static List<String> trim(String[] servers) {
+        List<String> trimmed = new ArrayList<>();
+        for (String server : servers) {
+            if (!server.trim().isEmpty()) {
+                trimmed.add(server.trim());
+            }
+        }
+        return Collections.unmodifiableList(trimmed);
+    }
+
+    // Limite le débit des copies, plus bas pendant les transferts des clients
+    private void throttle(long bytes) throws InterruptedIOException {
+        long limit = busy.getAsBoolean() ? busyRate : rate;
+        if (limit <= 0) {
+            return;
+        }
+        throttleBytes += bytes;
+        long elapsed = System.nanoTime() - throttleStart;
+        long expected = throttleBytes * 1_000_000_000L / limit;
+        if (expected > elapsed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(expected - elapsed);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Réparation interrompue");
+            }
+        }
+        // Fenêtre d'une seconde: un changement de limite prend effet rapidement
+        if (elapsed > 1_000_000_000L) {
+            throttleStart = System.nanoTime();
+            throttleBytes = 0;
+        }
+    }
+
+    private void report(ChunkIndex.Placement placement, String problem) {
+        if (reported.add(placement.getPartName() + " " + problem)) {
+            logError("Bloc " + placement.getPartName() + " " + problem, null);
+        }
+    }
+
+    private static void closeAll(SubServerClient[] connections) {
+        for (SubServerClient connection : connections) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Vérifie le contenu d'origine d'un bloc stocké (décompressé au besoin) par sa taille et son CRC
+    private static final class ContentCheck {
+        private final ChunkIndex.Placement placement;
+        private final CRC32C crc = new CRC32C();
+        private final Inflater inflater;
+        private final byte[] output;
+        private long produced;
+
+        ContentCheck(ChunkIndex.Placement placement) {
+            this.placement = placement;
+            boolean deflate = placement.getCodec() == ChunkCodec.DEFLATE;
+            this.inflater = deflate ? new Inflater() : null;
+            this.output = deflate ? new byte[BUFFER_SIZE] : null;
+        }
+
+        void update(byte[] data, int offset, int length) throws IOException {
+            if (inflater == null) {
+                crc.update(data, offset, length);
+                produced += length;
+                return;
+            }
+            inflater.setInput(data, offset, length);
+            try {
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    int bytes = inflater.inflate(output);
+                    if (bytes == 0 && inflater.needsDictionary()) {
+                        throw new IOException("Bloc compressé " + placement.getPartName() + " invalide");
+                    }
+                    crc.update(output, 0, bytes);
+                    produced += bytes;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bloc compressé " + placement.getPartName() + " invalide", e);
+            }
+        }
+
+        void verify() throws IOException {
+            if (produced != placement.getLength() || (inflater != null && !inflater.finished())) {
+                throw new IOException("Bloc " + placement.getPartName() + " de taille inattendue après lecture");
+            }
+            if (placement.getChecksum() != Checksums.UNKNOWN && crc.getValue() != placement.getChecksum()) {
+                throw new IOException("Bloc " + placement.getPartName() + " corrompu: CRC32C "
+                        + Long.toHexString(crc.getValue()) + " au lieu de " + Long.toHexString(placement.getChecksum()));
+            }
+        }
+
+        void end() {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static void logInfo(String message) {
+        ServerLog.info(message);
+    }
+
+    private static void logError(String message, Exception e) {
+        ServerLog.error(message, e);
+    }
+}
@@ -1,16 +1,40 @@
 // SubServer.java
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Properties;
 
 public class SubServer {
     private static Properties config;
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    // Envoi des parties par FileChannel.transferTo (sendfile) plutôt que par copie en mémoire
+    private static final boolean ZERO_COPY;
+    // Écriture des parties reçues: "channel" (écritures positionnelles), "mmap" (régions projetées) ou "stream"
+    private static final String INGEST_MODE;
+    // Parties en cours d'écriture, renommées une fois complètes
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_CONNECTIONS;
+    private static final int CONNECTION_QUEUE;
+    // Une ligne par commande et par partie: échantillonnées au niveau INFO
+    private static final ServerLog.Sampler COMMAND_LOG = new ServerLog.Sampler();
+    private static final ServerLog.Sampler PART_LOG = new ServerLog.Sampler();
+    // Durée de chaque commande et octets reçus ou envoyés, exposés par ServerMetrics
+    private static final ServerMetrics.Timer STORE_TIMER = ServerMetrics.timer("command.STORE_PART");
+    private static final ServerMetrics.Timer FETCH_TIMER = ServerMetrics.timer("command.FETCH_PART");
+    private static final ServerMetrics.Timer DELETE_TIMER = ServerMetrics.timer("command.DELETE_PART");
+    private static final ServerMetrics.Timer DELETE_BATCH_TIMER = ServerMetrics.timer("command.DELETE_PARTS");
+    private static final ServerMetrics.Timer LIST_TIMER = ServerMetrics.timer("command.LIST_PARTS");
+    private static final ServerMetrics.Meter BYTES_RECEIVED = ServerMetrics.meter("bytes.received");
+    private static final ServerMetrics.Meter BYTES_SENT = ServerMetrics.meter("bytes.sent");
 
     static {
         config = new Properties();
@@ -19,6 +43,10 @@ public class SubServer {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        ZERO_COPY = Boolean.parseBoolean(config.getProperty("subserver.zero.copy", "true"));
+        INGEST_MODE = config.getProperty("subserver.ingest.mode", "channel");
+        MAX_CONNECTIONS = Integer.parseInt(config.getProperty("subserver.max.connections", "256"));
+        CONNECTION_QUEUE = Integer.parseInt(config.getProperty("subserver.connection.queue", "1024"));
     }
 
     private int port;
@@ -26,15 +54,17 @@ public class SubServer {
 
     public SubServer(int port) {
         this.port = port;
+        // Même arborescence que celle utilisée historiquement par le serveur principal
         this.storagePath = config.getProperty("server.storage.path",
-                System.getProperty("user.home") + File.separator + "ServerFile" +
-                        File.separator + "SubServer" + port + File.separator);
+                System.getProperty("user.home") + File.separator + "ServerFile" + File.separator)
+                + "SubServer" + port + File.separator;
     }
 
     public void start() {
         printServerBanner();
         try {
             initializeStorage();
+            ServerMetrics.start("SubServer", String.valueOf(port), port);
             startServer();
         } catch (IOException e) {
             logError("Erreur fatale du sous-serveur", e);
@@ -52,51 +82,96 @@ public class SubServer {
 
     private void initializeStorage() throws IOException {
         Files.createDirectories(Paths.get(storagePath));
-        logInfo("Répertoire de stockage initialisé: " + storagePath);
+        // Écritures interrompues par un arrêt: la partie qu'elles devaient remplacer est restée intacte
+        File[] unfinished = new File(storagePath).listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        int removed = 0;
+        for (File file : unfinished == null ? new File[0] : unfinished) {
+            if (file.delete()) {
+                removed++;
+            }
+        }
+        logInfo("Répertoire de stockage initialisé: " + storagePath
+                + (removed == 0 ? "" : " (" + removed + " écriture(s) inachevée(s) supprimée(s))"));
     }
 
     private void startServer() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            logInfo("Sous-serveur démarré sur le port " + port);
+        // Socket ouverte via un canal pour que chaque connexion dispose d'un SocketChannel (transferTo)
+        ConnectionExecutor handlers = new ConnectionExecutor("subserver-" + port, MAX_CONNECTIONS, CONNECTION_QUEUE);
+        ServerMetrics.gauge("connections.active", handlers::getActiveCount);
+        ServerMetrics.gauge("connections.queued", handlers::getQueueDepth);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), CONNECTION_QUEUE);
+            logInfo("Sous-serveur démarré sur le port " + port + " (" + MAX_CONNECTIONS + " connexions simultanées)");
 
             while (true) {
-                Socket socket = serverSocket.accept();
+                Socket socket = serverChannel.accept().socket();
+                // Les réponses sont déjà regroupées par les flux bufferisés: pas de délai de Nagle sur la dernière
+                socket.setTcpNoDelay(true);
                 logInfo("Nouvelle connexion depuis: " + socket.getInetAddress().getHostAddress());
-                new Thread(new ClientHandler(socket)).start();
+                if (!handlers.submit(new ClientHandler(socket, storagePath))) {
+                    logError("Sous-serveur saturé, connexion refusée: " + socket.getInetAddress().getHostAddress(), null);
+                    socket.close();
+                }
             }
         }
     }
 
     private static void logInfo(String message) {
-        System.out.println("[" + dateFormat.format(new Date()) + "] INFO: " + message);
+        ServerLog.info(message);
     }
 
     private static void logError(String message, Exception e) {
-        System.err.println("[" + dateFormat.format(new Date()) + "] ERROR: " + message);
-        if (e != null) {
-            e.printStackTrace();
-        }
+        ServerLog.error(message, e);
     }
 
     static class ClientHandler implements Runnable {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int INGEST_BUFFER_SIZE = 1024 * 1024;
+        private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
         private Socket socket;
         private String clientAddress;
+        private String storagePath;
+        private ByteBuffer ingestBuffer;
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, String storagePath) {
             this.socket = socket;
             this.clientAddress = socket.getInetAddress().getHostAddress();
+            this.storagePath = storagePath;
         }
 
         @Override
         public void run() {
+            // Entrée non bufferisée: les octets d'une partie peuvent ensuite être lus directement sur le canal
             try (DataInputStream dis = new DataInputStream(socket.getInputStream());
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-                
-                String command = dis.readUTF();
-                logInfo("Commande reçue de " + clientAddress + ": " + command);
-                
-                // Traitement des commandes spécifiques au sous-serveur
-                
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+
+                // Le serveur principal peut enchaîner plusieurs commandes sur la même connexion
+                while (true) {
+                    String command;
+                    try {
+                        command = dis.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (COMMAND_LOG.sample()) {
+                        logInfo("Commande reçue de " + clientAddress + ": " + command);
+                    }
+
+                    ServerMetrics.Timer timer = timerFor(command);
+                    if (timer == null) {
+                        logError("Commande inconnue reçue: " + command, null);
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    boolean success = false;
+                    try {
+                        success = execute(command, dis, dos);
+                    } finally {
+                        timer.record(start, success);
+                    }
+                    dos.flush();
+                }
             } catch (IOException e) {
                 logError("Erreur avec le client " + clientAddress, e);
             } finally {
@@ -108,6 +183,243 @@ public class SubServer {
                 }
             }
         }
+
+        private static ServerMetrics.Timer timerFor(String command) {
+            switch (command) {
+                case "STORE_PART":
+                    return STORE_TIMER;
+                case "FETCH_PART":
+                    return FETCH_TIMER;
+                case "DELETE_PART":
+                    return DELETE_TIMER;
+                case "DELETE_PARTS":
+                    return DELETE_BATCH_TIMER;
+                case "LIST_PARTS":
+                    return LIST_TIMER;
+                default:
+                    return null;
+            }
+        }
+
+        // false si la partie demandée n'existe pas ou n'a pas pu être supprimée
+        private boolean execute(String command, DataInputStream dis, DataOutputStream dos) throws IOException {
+            switch (command) {
+                case "STORE_PART":
+                    storePart(dis, dos);
+                    return true;
+                case "FETCH_PART":
+                    return fetchPart(dis, dos);
+                case "DELETE_PART":
+                    return deletePart(dis, dos);
+                case "DELETE_PARTS":
+                    return deleteParts(dis, dos);
+                default:
+                    listParts(dos);
+                    return true;
+            }
+        }
+
+        private void storePart(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String partName = dis.readUTF();
+            long length = dis.readLong();
+            File partFile = resolvePart(partName);
+            // La partie est écrite sous un nom temporaire puis renommée: une lecture en cours ou un
+            // remplacement par la réparation ne voient jamais une partie à moitié écrite, et un échec
+            // laisse l'ancienne partie intacte
+            File tempFile = Files.createTempFile(partFile.getParentFile().toPath(), partName + ".", TEMP_SUFFIX).toFile();
+
+            SocketChannel socketChannel = socket.getChannel();
+            try {
+                if (socketChannel == null || INGEST_MODE.equals("stream")) {
+                    receiveStream(dis, tempFile, length);
+                } else {
+                    // Taille connue d'avance: le fichier est dimensionné avant l'écriture
+                    try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+                        raf.setLength(length);
+                        if (INGEST_MODE.equals("mmap")) {
+                            receiveMapped(socketChannel, raf.getChannel(), length);
+                        } else {
+                            receivePositional(socketChannel, raf.getChannel(), length);
+                        }
+                        raf.getChannel().force(false);
+                    }
+                }
+                Files.move(tempFile.toPath(), partFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
+            }
+
+            dos.writeBoolean(true);
+            BYTES_RECEIVED.add(length);
+            if (PART_LOG.sample()) {
+                logInfo("Partie " + partName + " (" + length + " octets) enregistrée");
+            }
+        }
+
+        private void receiveStream(DataInputStream dis, File partFile, long length) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remainingBytes = length;
+            try (FileOutputStream fos = new FileOutputStream(partFile)) {
+                while (remainingBytes > 0) {
+                    int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Flux interrompu: " + remainingBytes + " octets manquants");
+                    }
+                    fos.write(buffer, 0, bytesRead);
+                    remainingBytes -= bytesRead;
+                }
+                fos.getFD().sync();
+            }
+        }
+
+        // Lecture réseau dans un grand tampon direct, écrit à sa position dans la partie
+        private void receivePositional(SocketChannel socketChannel, FileChannel partChannel, long length) throws IOException {
+            if (ingestBuffer == null) {
+                ingestBuffer = ByteBuffer.allocateDirect(INGEST_BUFFER_SIZE);
+            }
+            long position = 0;
+            while (position < length) {
+                ingestBuffer.clear();
+                ingestBuffer.limit((int) Math.min(ingestBuffer.capacity(), length - position));
+                fill(socketChannel, ingestBuffer, length - position);
+                ingestBuffer.flip();
+                while (ingestBuffer.hasRemaining()) {
+                    position += partChannel.write(ingestBuffer, position);
+                }
+            }
+        }
+
+        // Lecture réseau directement dans des fenêtres projetées de la partie; l'écriture disque est
+        // laissée au système, en parallèle des lectures suivantes
+        private void receiveMapped(SocketChannel socketChannel, FileChannel partChannel, long length) throws IOException {
+            long position = 0;
+            while (position < length) {
+                long window = Math.min(MAP_WINDOW_SIZE, length - position);
+                MappedByteBuffer region = partChannel.map(FileChannel.MapMode.READ_WRITE, position, window);
+                fill(socketChannel, region, length - position);
+                // Les pages projetées ne sont pas couvertes par FileChannel.force
+                region.force();
+                position += window;
+            }
+        }
+
+        private void fill(SocketChannel socketChannel, ByteBuffer buffer, long remainingBytes) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (socketChannel.read(buffer) == -1) {
+                    throw new EOFException("Flux interrompu: " + (remainingBytes - buffer.position()) + " octets manquants");
+                }
+            }
+        }
+
+        private boolean fetchPart(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String partName = dis.readUTF();
+            File partFile = resolvePart(partName);
+            if (!partFile.isFile()) {
+                dos.writeBoolean(false);
+                logError("Partie demandée introuvable: " + partName, null);
+                return false;
+            }
+
+            try (FileChannel partChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+                long length = partChannel.size();
+                dos.writeBoolean(true);
+                dos.writeLong(length);
+
+                SocketChannel socketChannel = socket.getChannel();
+                if (ZERO_COPY && socketChannel != null) {
+                    // L'en-tête doit partir avant que les octets ne soient écrits directement sur le canal
+                    dos.flush();
+                    long position = 0;
+                    while (position < length) {
+                        long sent = partChannel.transferTo(position, length - position, socketChannel);
+                        if (sent <= 0 && partChannel.size() <= position) {
+                            throw new EOFException("Partie " + partName + " tronquée pendant la lecture");
+                        }
+                        position += sent;
+                    }
+                } else {
+                    copyPart(partChannel, length, dos);
+                }
+                BYTES_SENT.add(length);
+            }
+            if (PART_LOG.sample()) {
+                logInfo("Partie " + partName + " envoyée à " + clientAddress);
+            }
+            return true;
+        }
+
+        private void copyPart(FileChannel partChannel, long length, DataOutputStream dos) throws IOException {
+            InputStream in = Channels.newInputStream(partChannel);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remainingBytes = length;
+            while (remainingBytes > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+                if (bytesRead == -1) {
+                    throw new EOFException("Partie tronquée pendant la lecture");
+                }
+                dos.write(buffer, 0, bytesRead);
+                remainingBytes -= bytesRead;
+            }
+        }
+
+        private boolean deletePart(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String partName = dis.readUTF();
+            File partFile = resolvePart(partName);
+            boolean success = !partFile.exists() || partFile.delete();
+            dos.writeBoolean(success);
+            if (!success) {
+                logError("Échec de la suppression de la partie " + partName, null);
+            } else if (PART_LOG.sample()) {
+                logInfo("Partie " + partName + " supprimée");
+            }
+            return success;
+        }
+
+        // Lot de parties à supprimer: un résultat par partie, dans l'ordre de la demande
+        private boolean deleteParts(DataInputStream dis, DataOutputStream dos) throws IOException {
+            int count = dis.readInt();
+            if (count < 0 || count > SubServerClient.MAX_DELETE_BATCH) {
+                throw new IOException("Lot de suppression invalide: " + count + " parties");
+            }
+            int failed = 0;
+            for (int i = 0; i < count; i++) {
+                String partName = dis.readUTF();
+                File partFile = resolvePart(partName);
+                boolean success = !partFile.exists() || partFile.delete();
+                dos.writeBoolean(success);
+                if (!success) {
+                    failed++;
+                    logError("Échec de la suppression de la partie " + partName, null);
+                }
+            }
+            if (PART_LOG.sample()) {
+                logInfo("Lot de " + count + " parties supprimé (" + failed + " échec(s))");
+            }
+            return failed == 0;
+        }
+
+        private void listParts(DataOutputStream dos) throws IOException {
+            File[] files = new File(storagePath).listFiles(file -> file.isFile() && !file.getName().endsWith(TEMP_SUFFIX));
+            if (files == null) {
+                files = new File[0];
+            }
+            dos.writeInt(files.length);
+            for (File file : files) {
+                dos.writeUTF(file.getName());
+                dos.writeLong(file.length());
+            }
+            logInfo("Liste des parties envoyée (" + files.length + " parties)");
+        }
+
+        private File resolvePart(String partName) throws IOException {
+            if (partName.isEmpty() || partName.contains("/") || partName.contains("\\") || partName.equals("..")
+                    || partName.endsWith(TEMP_SUFFIX)) {
+                throw new IOException("Nom de partie invalide: " + partName);
+            }
+            return new File(storagePath, partName);
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,314 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+// Connexion du serveur principal vers un sous-serveur.
+// Une même connexion peut enchaîner plusieurs commandes (STORE_PART, FETCH_PART, DELETE_PART, DELETE_PARTS, LIST_PARTS).
+public class SubServerClient implements Closeable {
+    // Parties par commande DELETE_PARTS: les réponses d'un lot tiennent dans les tampons des sockets
+    public static final int MAX_DELETE_BATCH = 1000;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_IDLE_PER_SERVER = 16;
+    // Un sous-serveur arrêté ne doit pas bloquer les lectures: ses blocs sont reconstruits depuis la parité
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // Connexions libres par sous-serveur, réutilisées d'une commande à l'autre
+    private static final Map<String, Deque<SubServerClient>> IDLE = new ConcurrentHashMap<>();
+
+    private final String address;
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final DataInputStream dis;
+    private final DataOutputStream dos;
+    private long pendingStoreBytes = -1;
+    private long pendingFetchBytes = -1;
+    private long storeStart;
+    // Débit et latences vers ce sous-serveur, partagés par toutes ses connexions
+    private final ServerMetrics.Meter bytesSent;
+    private final ServerMetrics.Meter bytesReceived;
+    private final ServerMetrics.Timer storeTimer;
+    private final ServerMetrics.Timer fetchTimer;
+
+    public SubServerClient(String address) throws IOException {
+        this.address = address.trim();
+        this.bytesSent = ServerMetrics.meter("subserver." + this.address + ".bytes.sent");
+        this.bytesReceived = ServerMetrics.meter("subserver." + this.address + ".bytes.received");
+        this.storeTimer = ServerMetrics.timer("subserver." + this.address + ".store");
+        this.fetchTimer = ServerMetrics.timer("subserver." + this.address + ".fetch");
+        String[] hostAndPort = this.address.split(":");
+        // Canal pour pouvoir sonder sans attendre une connexion du pool avant de la réutiliser (isAlive)
+        this.channel = SocketChannel.open();
+        this.socket = channel.socket();
+        try {
+            socket.connect(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.socket.setTcpNoDelay(true);
+        this.dis = new DataInputStream(new BufferedInputStream(new FailureInputStream(socket.getInputStream()), STREAM_BUFFER_SIZE));
+        this.dos = new DataOutputStream(new BufferedOutputStream(new FailureOutputStream(socket.getOutputStream()), STREAM_BUFFER_SIZE));
+    }
+
+    // Une connexion du pool peut avoir été fermée par le sous-serveur (redémarrage) pendant qu'elle était
+    // libre: elle est sondée avant d'être prêtée, et une connexion neuve la remplace si elle est morte
+    public static SubServerClient borrow(String address) throws IOException {
+        Deque<SubServerClient> idle = IDLE.get(address.trim());
+        if (idle != null) {
+            SubServerClient connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (connection.isAlive()) {
+                    return connection;
+                }
+                connection.discardIdle();
+                try {
+                    connection.socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return new SubServerClient(address);
+    }
+
+    // Rend la connexion au pool si aucun échange n'est resté en cours, la ferme sinon
+    public void release() {
+        boolean reusable = !socket.isClosed() && pendingStoreBytes == -1 && pendingFetchBytes <= 0;
+        if (reusable && IDLE.computeIfAbsent(address, k -> new LinkedBlockingDeque<>(MAX_IDLE_PER_SERVER)).offerFirst(this)) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // Envoi d'une partie: beginStore, puis write autant de fois que nécessaire, puis endStore
+    public void beginStore(String partName, long length) throws IOException {
+        dos.writeUTF("STORE_PART");
+        dos.writeUTF(partName);
+        dos.writeLong(length);
+        pendingStoreBytes = length;
+        storeStart = System.nanoTime();
+    }
+
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length > pendingStoreBytes) {
+            throw new IOException("Données en excès pour la partie envoyée à " + address);
+        }
+        dos.write(buffer, offset, length);
+        pendingStoreBytes -= length;
+        bytesSent.add(length);
+    }
+
+    public boolean endStore() throws IOException {
+        if (pendingStoreBytes != 0) {
+            throw new IOException("Partie incomplète pour " + address + " (" + pendingStoreBytes + " octets manquants)");
+        }
+        dos.flush();
+        pendingStoreBytes = -1;
+        boolean stored = dis.readBoolean();
+        storeTimer.record(storeStart, stored);
+        return stored;
+    }
+
+    // Retourne la taille de la partie, ou -1 si elle n'existe pas sur le sous-serveur.
+    // Les octets se lisent ensuite via readPart.
+    // La latence mesurée est celle de la réponse, avant le premier octet de la partie.
+    public long openFetch(String partName) throws IOException {
+        long start = System.nanoTime();
+        dos.writeUTF("FETCH_PART");
+        dos.writeUTF(partName);
+        dos.flush();
+        if (!dis.readBoolean()) {
+            pendingFetchBytes = -1;
+            fetchTimer.record(start, false);
+            return -1;
+        }
+        pendingFetchBytes = dis.readLong();
+        fetchTimer.record(start, true);
+        return pendingFetchBytes;
+    }
+
+    public int readPart(byte[] buffer, int offset, int length) throws IOException {
+        if (pendingFetchBytes <= 0) {
+            return -1;
+        }
+        int bytesRead = dis.read(buffer, offset, (int) Math.min(length, pendingFetchBytes));
+        if (bytesRead == -1) {
+            throw new EOFException("Connexion interrompue par " + address + " pendant la lecture d'une partie");
+        }
+        pendingFetchBytes -= bytesRead;
+        bytesReceived.add(bytesRead);
+        return bytesRead;
+    }
+
+    public boolean deletePart(String partName) throws IOException {
+        dos.writeUTF("DELETE_PART");
+        dos.writeUTF(partName);
+        dos.flush();
+        return dis.readBoolean();
+    }
+
+    // Supprime des parties par lots de MAX_DELETE_BATCH, un aller-retour par lot.
+    // Retourne le résultat de chaque partie, dans l'ordre de partNames.
+    public boolean[] deleteParts(List<String> partNames) throws IOException {
+        boolean[] results = new boolean[partNames.size()];
+        for (int start = 0; start < partNames.size(); start += MAX_DELETE_BATCH) {
+            int end = Math.min(start + MAX_DELETE_BATCH, partNames.size());
+            dos.writeUTF("DELETE_PARTS");
+            dos.writeInt(end - start);
+            for (String partName : partNames.subList(start, end)) {
+                dos.writeUTF(partName);
+            }
+            dos.flush();
+            for (int i = start; i < end; i++) {
+                results[i] = dis.readBoolean();
+            }
+        }
+        return results;
+    }
+
+    // Nom de partie -> taille
+    public Map<String, Long> listParts() throws IOException {
+        dos.writeUTF("LIST_PARTS");
+        dos.flush();
+        int count = dis.readInt();
+        Map<String, Long> parts = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = dis.readUTF();
+            parts.put(name, dis.readLong());
+        }
+        return parts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // Une connexion libre n'a rien à lire: une fin de flux signale une fermeture par le sous-serveur,
+    // des octets inattendus un échange désynchronisé. La lecture non bloquante n'attend pas.
+    private boolean isAlive() {
+        if (socket.isClosed()) {
+            return false;
+        }
+        try {
+            if (dis.available() > 0) {
+                return false;
+            }
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Après l'échec d'une connexion, les connexions libres vers le même sous-serveur datent probablement
+    // d'avant la même panne: elles sont fermées plutôt que prêtées une à une
+    private void discardIdle() {
+        Deque<SubServerClient> idle = IDLE.get(address);
+        if (idle == null) {
+            return;
+        }
+        SubServerClient connection;
+        while ((connection = idle.pollFirst()) != null) {
+            try {
+                connection.socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Erreur ou fin de flux sur la socket. Une socket fermée de ce côté (annulation, interruption du thread)
+    // ne dit rien de l'état du sous-serveur: le pool n'est vidé que pour une défaillance du sous-serveur.
+    private void failed() {
+        if (!socket.isClosed()) {
+            discardIdle();
+        }
+    }
+
+    private final class FailureInputStream extends FilterInputStream {
+        FailureInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int value = in.read();
+                if (value == -1) {
+                    failed();
+                }
+                return value;
+            } catch (IOException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                int bytesRead = in.read(buffer, offset, length);
+                if (bytesRead == -1) {
+                    failed();
+                }
+                return bytesRead;
+            } catch (IOException e) {
+                failed();
+                throw e;
+            }
+        }
+    }
+
+    private final class FailureOutputStream extends FilterOutputStream {
+        FailureOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            try {
+                out.write(value);
+            } catch (IOException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                out.write(buffer, offset, length);
+            } catch (IOException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed();
+                throw e;
+            }
+        }
+    }
+}
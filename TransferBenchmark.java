@@ -0,0 +1,823 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+// Mesures des chemins de copie utilisés par les serveurs.
+// Usage: java TransferBenchmark send [taille en Mo ...]
+//        java TransferBenchmark roundtrip [taille en Mo ...]   (serveurs démarrés, config.properties)
+//        java TransferBenchmark download [--latence=ms] [--flux=n] [taille en Mo ...]   (serveurs démarrés)
+//        java TransferBenchmark checksum [taille en Mo ...]
+//        java TransferBenchmark corruption [--essais=n] [taille en Mo]   (serveurs et sous-serveurs locaux démarrés)
+//        java TransferBenchmark parity [taille en Mo ...]
+//        java TransferBenchmark degraded [taille en Mo]   (serveurs et sous-serveurs locaux démarrés)
+//        java TransferBenchmark replay [--avance=ms]
+// download compare le téléchargement sur une connexion et sur plusieurs; --latence fait passer le trafic
+// par un relais local qui retarde chaque paquet, comme un lien lointain.
+// checksum mesure le coût processeur des sommes de contrôle et leur détection d'altérations simulées;
+// corruption altère un octet d'un bloc stocké sur un sous-serveur et vérifie que la lecture échoue.
+// parity mesure le calcul de la parité et la reconstruction d'une partie perdue en mémoire; degraded
+// compare la lecture d'un fichier intact à celle d'un fichier dont un sous-serveur a perdu ses parties.
+// replay rejoue un journal de métadonnées dont les versions sont en avance sur l'horloge (horloge reculée
+// depuis l'arrêt) et vérifie que les versions attribuées ensuite restent strictement supérieures.
+public class TransferBenchmark {
+    private static final long MB = 1024L * 1024;
+    private static final int ITERATIONS = 3;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "send";
+        switch (mode) {
+            case "send":
+                benchmarkSend(parseSizes(args, new long[]{1, 16, 256, 1024}));
+                break;
+            case "roundtrip":
+                roundTrip(parseSizes(args, new long[]{3 * 1024}));
+                break;
+            case "download":
+                benchmarkDownload(parseSizes(args, new long[]{256}), (int) option(args, "--latence=", 20),
+                        (int) option(args, "--flux=", 8));
+                break;
+            case "checksum":
+                benchmarkChecksums(parseSizes(args, new long[]{256}));
+                break;
+            case "corruption":
+                injectCorruption(parseSizes(args, new long[]{32})[0], (int) option(args, "--essais=", 10));
+                break;
+            case "parity":
+                benchmarkParity(parseSizes(args, new long[]{256}));
+                break;
+            case "degraded":
+                benchmarkDegradedRead(parseSizes(args, new long[]{128})[0]);
+                break;
+            case "replay":
+                verifyVersionsAfterReplay(option(args, "--avance=", 24 * 3600 * 1000L));
+                break;
+            default:
+                System.err.println("Mode inconnu: " + mode);
+                System.err.println("Usage: java TransferBenchmark send|roundtrip|download|checksum|corruption|parity|degraded|replay [taille en Mo ...]");
+                System.exit(1);
+        }
+    }
+
+    // Compare la copie par tampon de 1 Ko (ancien chemin) et FileChannel.transferTo vers une socket locale
+    private static void benchmarkSend(long[] sizesInMb) throws Exception {
+        System.out.println("Envoi fichier -> socket (meilleur de " + ITERATIONS + " essais)");
+        System.out.printf("%-10s %15s %15s%n", "Taille", "flux 1 Ko", "transferTo");
+
+        try (ServerSocketChannel sink = ServerSocketChannel.open()) {
+            sink.bind(new InetSocketAddress("localhost", 0));
+            Thread drain = startDrain(sink);
+
+            for (long sizeInMb : sizesInMb) {
+                Path file = createSampleFile(sizeInMb * MB);
+                try {
+                    double streamRate = 0;
+                    double zeroCopyRate = 0;
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        streamRate = Math.max(streamRate, rate(file, sink, false));
+                        zeroCopyRate = Math.max(zeroCopyRate, rate(file, sink, true));
+                    }
+                    System.out.printf("%-10s %11.1f Mo/s %11.1f Mo/s%n", sizeInMb + " Mo", streamRate, zeroCopyRate);
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            }
+            drain.interrupt();
+        }
+    }
+
+    private static double rate(Path file, ServerSocketChannel sink, boolean zeroCopy) throws IOException {
+        long length = Files.size(file);
+        try (SocketChannel channel = SocketChannel.open(sink.getLocalAddress())) {
+            long start = System.nanoTime();
+            if (zeroCopy) {
+                try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < length) {
+                        position += fileChannel.transferTo(position, length - position, channel);
+                    }
+                }
+            } else {
+                Socket socket = channel.socket();
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                try (FileInputStream fis = new FileInputStream(file.toFile())) {
+                    byte[] buffer = new byte[1024];
+                    int bytesRead;
+                    while ((bytesRead = fis.read(buffer)) != -1) {
+                        dos.write(buffer, 0, bytesRead);
+                    }
+                }
+                dos.flush();
+            }
+            return (length / (double) MB) / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    // Accepte les connexions et jette tout ce qui arrive
+    private static Thread startDrain(ServerSocketChannel sink) {
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (!Thread.currentThread().isInterrupted()) {
+                try (SocketChannel connection = sink.accept()) {
+                    while (connection.read(buffer) != -1) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+        return drain;
+    }
+
+    // Envoie un flux pseudo-aléatoire au serveur principal puis le relit et le compare octet par octet.
+    // Le contenu est régénéré à la volée des deux côtés: rien n'est conservé en mémoire ni sur disque.
+    // Le tout passe par une session: l'envoi est acquitté une fois le fichier publié, la relecture suit
+    // sans attente. Chaque passe utilise un nom qui lui est propre et supprime son fichier à la fin.
+    private static void roundTrip(long[] sizesInMb) throws Exception {
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream("config.properties")) {
+            config.load(fis);
+        }
+        String host = config.getProperty("main.server.host", "localhost");
+        int port = Integer.parseInt(config.getProperty("main.server.port", "5000"));
+
+        try (ClientSession session = new ClientSession(host, port)) {
+            for (long sizeInMb : sizesInMb) {
+                long size = sizeInMb * MB + 7; // taille volontairement non alignée sur les parties
+                String fileName = "roundtrip-" + sizeInMb + "MB-" + Long.toHexString(System.nanoTime()) + ".bin";
+                long mismatch;
+                double uploadSeconds;
+                double downloadSeconds;
+                try {
+                    long start = System.nanoTime();
+                    DataOutputStream dos = session.startRequest("SEND_FILE");
+                    dos.writeUTF(fileName);
+                    dos.writeLong(size);
+                    SampleStream sample = new SampleStream(size);
+                    byte[] buffer = new byte[64 * 1024];
+                    int length;
+                    while ((length = sample.next(buffer)) > 0) {
+                        dos.write(buffer, 0, length);
+                    }
+                    if (!session.awaitResponse().readBoolean()) {
+                        throw new IOException("Envoi de " + fileName + " refusé par le serveur");
+                    }
+                    uploadSeconds = (System.nanoTime() - start) / 1e9;
+
+                    start = System.nanoTime();
+                    mismatch = retrieveAndCompare(session, fileName, size);
+                    downloadSeconds = (System.nanoTime() - start) / 1e9;
+                } catch (IOException e) {
+                    // Échange interrompu: la suppression se fait sur une nouvelle connexion
+                    session.reset();
+                    throw e;
+                } finally {
+                    deleteQuietly(session, fileName);
+                }
+
+                System.out.printf("%-10s envoi %.1f Mo/s, récupération %.1f Mo/s, %s%n", sizeInMb + " Mo",
+                        size / (double) MB / uploadSeconds, size / (double) MB / downloadSeconds,
+                        mismatch < 0 ? "identique" : "DIFFÉRENCE à l'octet " + mismatch);
+                if (mismatch >= 0) {
+                    System.exit(2);
+                }
+            }
+        }
+    }
+
+    // Débit de Client.retrieveFile sur une seule connexion, puis en parallèle avec ajout adaptatif de connexions
+    private static void benchmarkDownload(long[] sizesInMb, int latencyMs, int maxStreams) throws Exception {
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream("config.properties")) {
+            config.load(fis);
+        }
+        String host = config.getProperty("main.server.host", "localhost");
+        int port = Integer.parseInt(config.getProperty("main.server.port", "5000"));
+        String downloadPath = config.getProperty("download.path", System.getProperty("user.home") + File.separator + "Downloads" + File.separator);
+        if (latencyMs > 0) {
+            LatencyProxy proxy = new LatencyProxy(host, port, latencyMs);
+            port = proxy.start();
+            host = "localhost";
+        }
+        System.out.println("Téléchargement (latence ajoutée " + latencyMs + " ms par sens, " + maxStreams + " flux au plus)");
+        System.out.printf("%-10s %15s %15s%n", "Taille", "1 flux", "parallèle");
+
+        PrintStream console = System.out;
+        for (long sizeInMb : sizesInMb) {
+            Path file = createSampleFile(sizeInMb * MB);
+            Path downloaded = Path.of(downloadPath, file.getFileName().toString());
+            try (Client client = new Client(host, port)) {
+                // Les messages de progression du client ne font pas partie de la mesure
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                client.sendFile(file.toString());
+
+                long start = System.nanoTime();
+                client.retrieveFile(file.getFileName().toString(), 1);
+                double single = sizeInMb / ((System.nanoTime() - start) / 1e9);
+                boolean singleOk = Files.mismatch(file, downloaded) == -1;
+
+                // Même chemin que Client.retrieveFile en mode parallèle, pour connaître le nombre de flux retenu
+                start = System.nanoTime();
+                int streams = new ParallelDownload(host, port, maxStreams, 8 * MB)
+                        .download(file.getFileName().toString(), 0, Files.size(file), Checksums.UNKNOWN, downloaded.toFile(),
+                                received -> { });
+                double parallel = sizeInMb / ((System.nanoTime() - start) / 1e9);
+                boolean parallelOk = Files.mismatch(file, downloaded) == -1;
+                System.setOut(console);
+
+                System.out.printf("%-10s %11.1f Mo/s %11.1f Mo/s (%d flux)%s%n", sizeInMb + " Mo", single, parallel, streams,
+                        singleOk && parallelOk ? "" : "  CONTENU DIFFÉRENT");
+            } finally {
+                System.setOut(console);
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(downloaded);
+            }
+        }
+    }
+
+    // Coût processeur par Go de chaque somme, seule puis dans la même passe qu'une copie (comme à la
+    // réception d'un bloc), puis proportion d'altérations détectées par CRC32C sur un bloc de 1 Mo
+    private static void benchmarkChecksums(long[] sizesInMb) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.println("Coût processeur des sommes de contrôle (meilleur de " + ITERATIONS + " essais)");
+        System.out.printf("%-10s %-22s %12s %14s%n", "Taille", "Calcul", "Débit", "Processeur");
+        for (long sizeInMb : sizesInMb) {
+            byte[] data = new byte[(int) (sizeInMb * MB)];
+            new Random(42).nextBytes(data);
+            byte[] copy = new byte[data.length];
+            String[] names = {"copie seule", "copie + CRC32C", "CRC32", "CRC32C", "SHA-256"};
+            for (int kind = 0; kind < names.length; kind++) {
+                long bestCpu = Long.MAX_VALUE;
+                long bestWall = Long.MAX_VALUE;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long cpu = threads.getCurrentThreadCpuTime();
+                    long wall = System.nanoTime();
+                    checksumPass(kind, data, copy);
+                    bestCpu = Math.min(bestCpu, threads.getCurrentThreadCpuTime() - cpu);
+                    bestWall = Math.min(bestWall, System.nanoTime() - wall);
+                }
+                double gigabytes = data.length / (double) (1024 * MB);
+                System.out.printf("%-10s %-22s %8.2f Go/s %8.0f ms/Go%n", sizeInMb + " Mo", names[kind],
+                        gigabytes / (bestWall / 1e9), bestCpu / 1e6 / gigabytes);
+            }
+        }
+
+        int trials = 10_000;
+        byte[] chunk = new byte[(int) MB];
+        Random random = new Random(7);
+        random.nextBytes(chunk);
+        long expected = crc32c(chunk);
+        String[] kinds = {"1 bit inversé", "2 bits inversés", "rafale de 32 bits", "16 octets aléatoires",
+                "4 Ko remis à zéro", "deux blocs de 4 Ko échangés"};
+        System.out.println("Altérations détectées par CRC32C sur un bloc de 1 Mo (" + trials + " essais par type)");
+        for (int kind = 0; kind < kinds.length; kind++) {
+            int detected = 0;
+            int changed = 0;
+            for (int i = 0; i < trials; i++) {
+                byte[] altered = chunk.clone();
+                corrupt(kind, altered, random);
+                if (Arrays.equals(altered, chunk)) {
+                    continue;
+                }
+                changed++;
+                if (crc32c(altered) != expected) {
+                    detected++;
+                }
+            }
+            System.out.printf("%-30s %6d/%d%n", kinds[kind], detected, changed);
+        }
+    }
+
+    private static void checksumPass(int kind, byte[] data, byte[] copy) throws Exception {
+        int piece = 64 * 1024;
+        Checksum checksum = kind == 2 ? new CRC32() : new CRC32C();
+        MessageDigest digest = kind == 4 ? MessageDigest.getInstance("SHA-256") : null;
+        for (int offset = 0; offset < data.length; offset += piece) {
+            int length = Math.min(piece, data.length - offset);
+            switch (kind) {
+                case 0:
+                    System.arraycopy(data, offset, copy, offset, length);
+                    break;
+                case 1:
+                    System.arraycopy(data, offset, copy, offset, length);
+                    checksum.update(copy, offset, length);
+                    break;
+                case 4:
+                    digest.update(data, offset, length);
+                    break;
+                default:
+                    checksum.update(data, offset, length);
+            }
+        }
+        if (digest != null) {
+            digest.digest();
+        }
+    }
+
+    private static void corrupt(int kind, byte[] data, Random random) {
+        switch (kind) {
+            case 0:
+                flipBit(data, random.nextInt(data.length * 8));
+                break;
+            case 1:
+                flipBit(data, random.nextInt(data.length * 8));
+                flipBit(data, random.nextInt(data.length * 8));
+                break;
+            case 2: {
+                // Premier et dernier bits de la rafale toujours inversés, ceux du milieu au hasard
+                int start = random.nextInt(data.length * 8 - 32);
+                flipBit(data, start);
+                flipBit(data, start + 31);
+                for (int bit = 1; bit < 31; bit++) {
+                    if (random.nextBoolean()) {
+                        flipBit(data, start + bit);
+                    }
+                }
+                break;
+            }
+            case 3: {
+                byte[] noise = new byte[16];
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, data, random.nextInt(data.length - 16), 16);
+                break;
+            }
+            case 4: {
+                int start = random.nextInt(data.length / 4096) * 4096;
+                Arrays.fill(data, start, start + 4096, (byte) 0);
+                break;
+            }
+            default: {
+                int blocks = data.length / 4096;
+                int first = random.nextInt(blocks);
+                int second = random.nextInt(blocks);
+                byte[] saved = Arrays.copyOfRange(data, first * 4096, first * 4096 + 4096);
+                System.arraycopy(data, second * 4096, data, first * 4096, 4096);
+                System.arraycopy(saved, 0, data, second * 4096, 4096);
+            }
+        }
+    }
+
+    private static void flipBit(byte[] data, int bit) {
+        data[bit / 8] ^= (byte) (1 << (bit % 8));
+    }
+
+    private static long crc32c(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    // Envoie un fichier, inverse un bit d'un octet d'une de ses parties directement dans le dossier d'un
+    // sous-serveur, puis le relit: la lecture doit échouer. Les sous-serveurs doivent tourner sur cette
+    // machine avec la même configuration (server.storage.path).
+    private static void injectCorruption(long sizeInMb, int trials) throws Exception {
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream("config.properties")) {
+            config.load(fis);
+        }
+        String host = config.getProperty("main.server.host", "localhost");
+        int port = Integer.parseInt(config.getProperty("main.server.port", "5000"));
+        String storagePath = config.getProperty("server.storage.path",
+                System.getProperty("user.home") + File.separator + "ServerFile" + File.separator);
+        List<File> partDirectories = new ArrayList<>();
+        for (String subServer : config.getProperty("subservers.hosts", "localhost:5001,localhost:5002,localhost:5003").split(",")) {
+            partDirectories.add(new File(storagePath + "SubServer" + subServer.substring(subServer.lastIndexOf(':') + 1)));
+        }
+
+        System.out.println("Altération d'un octet stocké (" + trials + " essais, fichiers de " + sizeInMb + " Mo)");
+        Random random = new Random();
+        int detected = 0;
+        int undetected = 0;
+        PrintStream console = System.out;
+        for (int trial = 0; trial < trials; trial++) {
+            // Contenu différent à chaque essai: aucun bloc n'est partagé avec un essai précédent
+            Path file = Files.createTempFile("corruption-bench", ".bin");
+            byte[] content = new byte[(int) (sizeInMb * MB)];
+            random.nextBytes(content);
+            Files.write(file, content);
+            String fileName = file.getFileName().toString();
+            try (Client client = new Client(host, port)) {
+                long uploadStart = System.currentTimeMillis() - 1000;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                client.sendFile(file.toString());
+                System.setOut(console);
+
+                List<File> parts = new ArrayList<>();
+                for (File directory : partDirectories) {
+                    File[] files = directory.listFiles(part -> part.isFile() && part.lastModified() >= uploadStart);
+                    if (files != null) {
+                        parts.addAll(Arrays.asList(files));
+                    }
+                }
+                if (parts.isEmpty()) {
+                    throw new IOException("Aucune partie trouvée sous " + storagePath + ": sous-serveurs distants?");
+                }
+                File part = parts.get(random.nextInt(parts.size()));
+                try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                    long position = (long) (random.nextDouble() * raf.length());
+                    raf.seek(position);
+                    int value = raf.read();
+                    raf.seek(position);
+                    raf.write(value ^ (1 << random.nextInt(8)));
+                }
+
+                ByteArrayOutputStream received = new ByteArrayOutputStream(content.length);
+                try {
+                    client.retrieveRange(fileName, 0, -1, received);
+                    if (Arrays.equals(received.toByteArray(), content)) {
+                        console.println("essai " + (trial + 1) + ": altération sans effet sur " + part.getName());
+                    } else {
+                        undetected++;
+                        console.println("essai " + (trial + 1) + ": ALTÉRATION NON DÉTECTÉE dans " + part.getName());
+                    }
+                } catch (IOException e) {
+                    detected++;
+                }
+                new FileTransferHistory(client).deleteFileFromServer(fileName);
+            } finally {
+                System.setOut(console);
+                Files.deleteIfExists(file);
+            }
+        }
+        System.out.printf("%d altérations détectées, %d non détectées sur %d essais%n", detected, undetected, trials);
+    }
+
+    // Débit du calcul de parité à l'envoi et de la reconstruction d'une partie perdue à la lecture,
+    // pour 3 à 8 sous-serveurs (k parties de données + 1 de parité)
+    private static void benchmarkParity(long[] sizesInMb) throws Exception {
+        System.out.println("Parité XOR en mémoire (meilleur de " + ITERATIONS + " essais)");
+        System.out.printf("%-10s %-14s %16s %20s%n", "Taille", "Répartition", "Calcul parité", "Reconstruction");
+        for (long sizeInMb : sizesInMb) {
+            byte[] data = new byte[(int) (sizeInMb * MB)];
+            new Random(42).nextBytes(data);
+            for (int dataParts : new int[]{2, 3, 4, 7}) {
+                byte[][] fragments = new byte[dataParts + 1][];
+                int[] filled = new int[dataParts + 1];
+                for (int i = 0; i <= dataParts; i++) {
+                    fragments[i] = new byte[(int) ParityStripe.fragmentLength(data.length, dataParts, i)];
+                }
+                ParityStripe.Encoder copier = new ParityStripe.Encoder(dataParts, (fragment, buffer, offset, length) -> {
+                    System.arraycopy(buffer, offset, fragments[fragment], filled[fragment], length);
+                    filled[fragment] += length;
+                });
+                copier.write(data, 0, data.length);
+                copier.finish();
+
+                long bestEncode = Long.MAX_VALUE;
+                long bestRebuild = Long.MAX_VALUE;
+                byte[] rebuilt = new byte[fragments[0].length];
+                for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                    // Les parties de données partent sans copie: seule la parité coûte à l'envoi
+                    long start = System.nanoTime();
+                    ParityStripe.Encoder encoder = new ParityStripe.Encoder(dataParts, (fragment, buffer, offset, length) -> { });
+                    for (int offset = 0; offset < data.length; offset += 64 * 1024) {
+                        encoder.write(data, offset, Math.min(64 * 1024, data.length - offset));
+                    }
+                    encoder.finish();
+                    bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+
+                    // La partie 0 (la plus longue) est perdue: parité XOR les autres, unité par unité
+                    start = System.nanoTime();
+                    for (int offset = 0; offset < rebuilt.length; offset += ParityStripe.UNIT) {
+                        int length = Math.min(ParityStripe.UNIT, rebuilt.length - offset);
+                        System.arraycopy(fragments[dataParts], offset, rebuilt, offset, length);
+                        for (int i = 1; i < dataParts; i++) {
+                            int available = Math.min(length, fragments[i].length - offset);
+                            if (available > 0) {
+                                ParityStripe.xor(rebuilt, offset, fragments[i], offset, available);
+                            }
+                        }
+                    }
+                    bestRebuild = Math.min(bestRebuild, System.nanoTime() - start);
+                }
+                if (!Arrays.equals(rebuilt, fragments[0])) {
+                    throw new IllegalStateException("Partie reconstruite différente de l'originale (k=" + dataParts + ")");
+                }
+                System.out.printf("%-10s %-14s %11.0f Mo/s %15.0f Mo/s%n", sizeInMb + " Mo", dataParts + "+1",
+                        data.length / (double) MB / (bestEncode / 1e9), rebuilt.length / (double) MB / (bestRebuild / 1e9));
+            }
+        }
+    }
+
+    // Envoie trois fichiers différents: le premier sert de préchauffage, le deuxième est lu intact et le
+    // dernier après avoir caché ses parties sur le premier sous-serveur, chaque bloc étant alors reconstruit
+    // depuis la parité. Les lectures se font sans cache (premier accès à chaque fichier). Les sous-serveurs doivent tourner sur cette machine.
+    private static void benchmarkDegradedRead(long sizeInMb) throws Exception {
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream("config.properties")) {
+            config.load(fis);
+        }
+        String host = config.getProperty("main.server.host", "localhost");
+        int port = Integer.parseInt(config.getProperty("main.server.port", "5000"));
+        String storagePath = config.getProperty("server.storage.path",
+                System.getProperty("user.home") + File.separator + "ServerFile" + File.separator);
+        String subServer = config.getProperty("subservers.hosts", "localhost:5001,localhost:5002,localhost:5003").split(",")[0];
+        File lostDirectory = new File(storagePath + "SubServer" + subServer.substring(subServer.lastIndexOf(':') + 1));
+
+        Random random = new Random();
+        byte[][] contents = new byte[3][(int) (sizeInMb * MB)];
+        Path[] files = new Path[3];
+        List<File> hidden = new ArrayList<>();
+        PrintStream console = System.out;
+        try (Client client = new Client(host, port)) {
+            long lossStart = 0;
+            for (int i = 0; i < files.length; i++) {
+                random.nextBytes(contents[i]);
+                files[i] = Files.createTempFile("degraded-bench", ".bin");
+                Files.write(files[i], contents[i]);
+                lossStart = System.currentTimeMillis() - 1000;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                client.sendFile(files[i].toString());
+                System.setOut(console);
+            }
+            long since = lossStart;
+            File[] lost = lostDirectory.listFiles(part -> part.isFile() && part.lastModified() >= since);
+            if (lost == null || lost.length == 0) {
+                throw new IOException("Aucune partie trouvée sous " + lostDirectory + ": sous-serveurs distants?");
+            }
+            for (File part : lost) {
+                File renamed = new File(part.getPath() + ".cache");
+                if (part.renameTo(renamed)) {
+                    hidden.add(renamed);
+                }
+            }
+            System.out.println("Lecture de " + sizeInMb + " Mo, " + hidden.size() + " parties cachées sur " + subServer);
+            String[] labels = {"préchauffage", "intacte", "dégradée"};
+            for (int i = 0; i < files.length; i++) {
+                ByteArrayOutputStream received = new ByteArrayOutputStream(contents[i].length);
+                long start = System.nanoTime();
+                client.retrieveRange(files[i].getFileName().toString(), 0, -1, received);
+                long elapsed = System.nanoTime() - start;
+                if (!Arrays.equals(received.toByteArray(), contents[i])) {
+                    throw new IOException("Contenu relu différent de l'original (lecture " + labels[i] + ")");
+                }
+                System.out.printf("lecture %-14s %8.1f Mo/s%n", labels[i], sizeInMb / (elapsed / 1e9));
+            }
+        } finally {
+            System.setOut(console);
+            for (File part : hidden) {
+                String name = part.getPath();
+                part.renameTo(new File(name.substring(0, name.length() - ".cache".length())));
+            }
+            try (Client client = new Client(host, port)) {
+                for (Path file : files) {
+                    if (file != null) {
+                        new FileTransferHistory(client).deleteFileFromServer(file.getFileName().toString());
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    // Relais TCP local qui retarde chaque paquet dans les deux sens. La file bornée de chaque sens joue
+    // le rôle de la fenêtre TCP: un flux ne peut avoir plus de WINDOW_PACKETS paquets en vol.
+    private static final class LatencyProxy {
+        private static final int WINDOW_PACKETS = 16;
+
+        private final String targetHost;
+        private final int targetPort;
+        private final long delayNanos;
+
+        LatencyProxy(String targetHost, int targetPort, int delayMs) {
+            this.targetHost = targetHost;
+            this.targetPort = targetPort;
+            this.delayNanos = delayMs * 1_000_000L;
+        }
+
+        int start() throws IOException {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress("localhost", 0));
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket client = listener.accept().socket();
+                        Socket server = new Socket(targetHost, targetPort);
+                        relay(client, server);
+                        relay(server, client);
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "latency-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            return listener.socket().getLocalPort();
+        }
+
+        private void relay(Socket from, Socket to) {
+            BlockingQueue<Object[]> packets = new ArrayBlockingQueue<>(WINDOW_PACKETS);
+            Thread reader = new Thread(() -> {
+                try (InputStream in = from.getInputStream()) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int length;
+                    while ((length = in.read(buffer)) != -1) {
+                        packets.put(new Object[]{System.nanoTime() + delayNanos, Arrays.copyOf(buffer, length)});
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                }
+                try {
+                    packets.put(new Object[]{System.nanoTime() + delayNanos, null});
+                } catch (InterruptedException ignored) {
+                }
+            });
+            Thread writer = new Thread(() -> {
+                try (OutputStream out = to.getOutputStream()) {
+                    while (true) {
+                        Object[] packet = packets.take();
+                        long wait = (Long) packet[0] - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                        }
+                        if (packet[1] == null) {
+                            to.shutdownOutput();
+                            return;
+                        }
+                        out.write((byte[]) packet[1]);
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                }
+            });
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+    }
+
+    // Position du premier octet différent, ou -1 si le fichier relu est identique
+    private static long retrieveAndCompare(ClientSession session, String fileName, long size) throws IOException {
+        session.startRequest("RETRIEVE_FILE").writeUTF(fileName);
+        DataInputStream dis = session.awaitResponse();
+        if (!dis.readBoolean()) {
+            throw new IOException("Fichier " + fileName + " introuvable après son envoi acquitté");
+        }
+        long received = dis.readLong();
+        if (received != size) {
+            // Le contenu annoncé n'est pas lu: la session ne peut plus servir
+            session.reset();
+            return Math.min(received, size);
+        }
+
+        SampleStream expected = new SampleStream(size);
+        byte[] reference = new byte[64 * 1024];
+        byte[] actual = new byte[64 * 1024];
+        long position = 0;
+        long mismatch = -1;
+        int length;
+        while ((length = expected.next(reference)) > 0) {
+            dis.readFully(actual, 0, length);
+            for (int i = 0; i < length && mismatch < 0; i++) {
+                if (reference[i] != actual[i]) {
+                    mismatch = position + i;
+                }
+            }
+            position += length;
+        }
+        return mismatch;
+    }
+
+    // Suppression au mieux du fichier d'une passe, y compris après un échec
+    private static void deleteQuietly(ClientSession session, String fileName) {
+        try {
+            session.startRequest("DELETE_FILE").writeUTF(fileName);
+            if (!session.awaitResponse().readBoolean()) {
+                System.err.println("Suppression de " + fileName + " échouée sur le serveur");
+            }
+        } catch (IOException e) {
+            session.reset();
+            System.err.println("Suppression de " + fileName + " impossible: " + e.getMessage());
+        }
+    }
+
+    // Journal écrit avec des versions en avance de aheadMs sur l'horloge, comme après un recul de l'horloge du
+    // serveur entre deux démarrages: après le rejeu, chaque nouvelle version doit dépasser toutes les anciennes
+    private static void verifyVersionsAfterReplay(long aheadMs) throws Exception {
+        Path directory = Files.createTempDirectory("journal-replay");
+        try {
+            long published = System.currentTimeMillis() + aheadMs;
+            long pending = published + 1;
+            try (MetadataJournal journal = new MetadataJournal(directory.toFile(), new FileCatalog(), 10000, false)) {
+                journal.replay();
+                FileManifest manifest = new FileManifest("publie.bin", 0, 1 << 20, published, published);
+                journal.beginUpload(manifest);
+                journal.commit(manifest);
+                // Envoi interrompu: sa version n'est connue que par le journal
+                journal.beginUpload(new FileManifest("interrompu.bin", 0, 1 << 20, pending, pending));
+            }
+
+            FileCatalog catalog = new FileCatalog();
+            long previous = pending;
+            long first = 0;
+            boolean increasing = true;
+            try (MetadataJournal journal = new MetadataJournal(directory.toFile(), catalog, 10000, false)) {
+                List<FileManifest> orphaned = journal.replay();
+                System.out.println("Rejeu: " + catalog.size() + " fichier(s), " + orphaned.size() + " envoi(s) interrompu(s)");
+                for (int i = 0; i < 1000; i++) {
+                    long version = journal.nextVersion();
+                    if (version <= previous) {
+                        System.out.println("VERSION NON CROISSANTE: " + version + " après " + previous);
+                        increasing = false;
+                        break;
+                    }
+                    if (first == 0) {
+                        first = version;
+                    }
+                    previous = version;
+                }
+            }
+            System.out.println("Versions en avance de " + aheadMs + " ms: " + (increasing
+                    ? "nouvelles versions de " + first + " à " + previous + ", toutes supérieures"
+                    : "ÉCHEC"));
+            if (!increasing) {
+                System.exit(2);
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.delete(directory);
+        }
+    }
+
+    // Contenu déterministe généré bloc par bloc
+    private static final class SampleStream {
+        private final long size;
+        private long position;
+        private long state = 0x9E3779B97F4A7C15L;
+
+        SampleStream(long size) {
+            this.size = size;
+        }
+
+        int next(byte[] buffer) {
+            int length = (int) Math.min(buffer.length, size - position);
+            for (int i = 0; i < length; i++) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                buffer[i] = (byte) state;
+            }
+            position += length;
+            return length;
+        }
+    }
+
+    private static Path createSampleFile(long size) throws IOException {
+        Path file = Files.createTempFile("transfer-bench", ".bin");
+        byte[] block = new byte[(int) Math.min(size, MB)];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), block.length)) {
+            long written = 0;
+            while (written < size) {
+                int length = (int) Math.min(block.length, size - written);
+                out.write(block, 0, length);
+                written += length;
+            }
+        }
+        return file;
+    }
+
+    private static long[] parseSizes(String[] args, long[] defaults) {
+        long[] sizes = new long[args.length];
+        int count = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                sizes[count++] = Long.parseLong(args[i]);
+            }
+        }
+        return count == 0 ? defaults : Arrays.copyOf(sizes, count);
+    }
+
+    private static long option(String[] args, String prefix, long defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return Long.parseLong(arg.substring(prefix.length()));
+            }
+        }
+        return defaultValue;
+    }
+}